@@ -0,0 +1,100 @@
+package org.renci.pubsub_daemon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.codec.binary.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Streamed, pooled CompressEncode against the array-based Deflater/Inflater
+ * and Base64 code it replaced, on scripts/manifests/test1.rdf repeated to
+ * the given number of copies
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressEncodeBenchmark {
+	private static final String MANIFEST = "scripts/manifests/test1.rdf";
+
+	@Param({"1", "16"})
+	public int copies;
+
+	private String manifest;
+	private String encoded;
+
+	@Setup
+	public void setup() throws Exception {
+		String one = new String(Files.readAllBytes(new File(MANIFEST).toPath()), CompressEncode.UTF8);
+		StringBuilder sb = new StringBuilder(one.length() * copies);
+		for (int i = 0; i < copies; i++)
+			sb.append(one);
+		manifest = sb.toString();
+		encoded = CompressEncode.compressEncode(manifest);
+		if (!manifest.equals(arrayDecodeDecompress(arrayCompressEncode(manifest))))
+			throw new IllegalStateException("baseline doesn't round trip");
+	}
+
+	@Benchmark
+	public String compressEncode() {
+		return CompressEncode.compressEncode(manifest);
+	}
+
+	@Benchmark
+	public String decodeDecompress() throws Exception {
+		return CompressEncode.decodeDecompress(encoded);
+	}
+
+	@Benchmark
+	public String arrayCompressEncode() {
+		return arrayCompressEncode(manifest);
+	}
+
+	@Benchmark
+	public String arrayDecodeDecompress() throws Exception {
+		return arrayDecodeDecompress(encoded);
+	}
+
+	private static String arrayCompressEncode(String s) {
+		byte[] input = s.getBytes(CompressEncode.UTF8);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(input.length);
+		Deflater comp = new Deflater(Deflater.BEST_SPEED);
+		comp.setInput(input);
+		comp.finish();
+		byte[] tmp = new byte[1024];
+		while (!comp.finished())
+			bos.write(tmp, 0, comp.deflate(tmp));
+		comp.end();
+		return new String(Base64.encodeBase64(bos.toByteArray()), CompressEncode.UTF8);
+	}
+
+	private static String arrayDecodeDecompress(String s) throws Exception {
+		byte[] decoded = Base64.decodeBase64(s.getBytes(CompressEncode.UTF8));
+		Inflater inf = new Inflater();
+		inf.setInput(decoded);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(decoded.length);
+		byte[] buf = new byte[1024];
+		while (!inf.finished())
+			bos.write(buf, 0, inf.inflate(buf));
+		inf.end();
+		return new String(bos.toByteArray(), CompressEncode.UTF8);
+	}
+}
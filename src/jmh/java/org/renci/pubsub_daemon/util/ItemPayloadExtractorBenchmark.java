@@ -0,0 +1,80 @@
+package org.renci.pubsub_daemon.util;
+
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.InputSource;
+
+/**
+ * ItemPayloadExtractor against the DOM + XPath '/item' evaluation it replaced,
+ * on items carrying a base64 payload of the given size. The escaped variant
+ * has an entity in it, which sends the extractor down the StAX path.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ItemPayloadExtractorBenchmark {
+	private static final String BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+	@Param({"1024", "65536", "1048576"})
+	public int payloadSize;
+
+	private String plainItem;
+	private String escapedItem;
+	private DocumentBuilder db;
+	private XPath xpath;
+
+	@Setup
+	public void setup() throws Exception {
+		Random r = new Random(1);
+		StringBuilder sb = new StringBuilder(payloadSize);
+		for (int i = 0; i < payloadSize; i++)
+			sb.append(BASE64.charAt(r.nextInt(BASE64.length())));
+		String payload = sb.toString();
+		plainItem = "<item id=\"manifest\">" + payload + "</item>";
+		escapedItem = "<item id=\"manifest\">" + payload + "&#10;</item>";
+
+		db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+		xpath = XPathFactory.newInstance().newXPath();
+
+		String expected = xpath.evaluate("/item", db.parse(new InputSource(new StringReader(plainItem))));
+		if (!expected.equals(ItemPayloadExtractor.getInstance().extract(plainItem)))
+			throw new IllegalStateException("extractor and XPath disagree");
+	}
+
+	@Benchmark
+	public String extractPlain() throws Exception {
+		return ItemPayloadExtractor.getInstance().extract(plainItem);
+	}
+
+	@Benchmark
+	public String extractEscaped() throws Exception {
+		return ItemPayloadExtractor.getInstance().extract(escapedItem);
+	}
+
+	@Benchmark
+	public String xpathPlain() throws Exception {
+		return xpath.evaluate("/item", db.parse(new InputSource(new StringReader(plainItem))));
+	}
+}
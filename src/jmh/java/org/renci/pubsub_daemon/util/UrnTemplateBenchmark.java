@@ -0,0 +1,78 @@
+package org.renci.pubsub_daemon.util;
+
+import java.util.concurrent.TimeUnit;
+
+import orca.ndl.NdlToRSpecHelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the sliver URNs of one interface (vlan, tap, vlan tap and link)
+ * with UrnTemplate, from a per-node prefix as GENIWorker does, and with the
+ * String.replaceAll chains it replaced.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UrnTemplateBenchmark {
+	private static final UrnTemplate SLIVER_URN = new UrnTemplate(NdlToRSpecHelper.SLIVER_URN_PATTERN, '@', '^', '%');
+	private static final String AGGREGATE = "exogeni.net:bbnvmsite";
+	private static final String WORKER = "bbn-w1";
+	private static final String GUID = "bbn-w1:guid4";
+	private static final String TAG = "3";
+
+	private String interfacePrefix;
+	private String linkPrefix;
+
+	@Setup
+	public void setup() {
+		interfacePrefix = SLIVER_URN.prefix(AGGREGATE, "interface");
+		linkPrefix = SLIVER_URN.prefix(AGGREGATE, "link");
+		String[] expected = replaceAll();
+		String[][] got = { fill(), prefix() };
+		for (String[] g: got)
+			for (int i = 0; i < expected.length; i++)
+				if (!expected[i].equals(g[i]))
+					throw new IllegalStateException("template and replaceAll disagree: " + g[i] + " " + expected[i]);
+	}
+
+	@Benchmark
+	public String[] replaceAll() {
+		return new String[] {
+			NdlToRSpecHelper.SLIVER_URN_PATTERN.replaceAll("@", AGGREGATE).replaceAll("\\^", "interface").replaceAll("%", WORKER + ":" + TAG),
+			NdlToRSpecHelper.SLIVER_URN_PATTERN.replaceAll("@", AGGREGATE).replaceAll("\\^", "interface").replaceAll("%", GUID + ":" + TAG) + "+tap",
+			NdlToRSpecHelper.SLIVER_URN_PATTERN.replaceAll("@", AGGREGATE).replaceAll("\\^", "interface").replaceAll("%", GUID + ":" + TAG) + "+tap+0",
+			NdlToRSpecHelper.SLIVER_URN_PATTERN.replaceAll("@", AGGREGATE).replaceAll("\\^", "link").replaceAll("%", GUID + ":" + TAG + ":link") };
+	}
+
+	@Benchmark
+	public String[] fill() {
+		return new String[] {
+			SLIVER_URN.fill(AGGREGATE, "interface", WORKER + ":" + TAG),
+			SLIVER_URN.fill(AGGREGATE, "interface", GUID + ":" + TAG) + "+tap",
+			SLIVER_URN.fill(AGGREGATE, "interface", GUID + ":" + TAG) + "+tap+0",
+			SLIVER_URN.fill(AGGREGATE, "link", GUID + ":" + TAG + ":link") };
+	}
+
+	@Benchmark
+	public String[] prefix() {
+		return new String[] {
+			interfacePrefix + WORKER + ":" + TAG,
+			interfacePrefix + GUID + ":" + TAG + "+tap",
+			interfacePrefix + GUID + ":" + TAG + "+tap+0",
+			linkPrefix + GUID + ":" + TAG + ":link" };
+	}
+}
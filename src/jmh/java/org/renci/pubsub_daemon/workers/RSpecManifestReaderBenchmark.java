@@ -0,0 +1,58 @@
+package org.renci.pubsub_daemon.workers;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * RSpecManifestReader against the DOM + per-sliver XPath reading GENIWorker
+ * used to do, on generated manifests with the given number of distinct nodes
+ * (and a link per pair of them), see RSpecManifests. Both produce one record
+ * per sliver with the fields GENIWorker uses; setup checks they agree.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RSpecManifestReaderBenchmark {
+
+	@Param({"10", "100", "1000"})
+	public int nodes;
+
+	private String manifest;
+
+	@Setup
+	public void setup() throws Exception {
+		manifest = RSpecManifests.synthetic(nodes);
+
+		List<String> expected = xpath();
+		if (expected.size() != nodes + nodes / 2)
+			throw new IllegalStateException("XPath found " + expected.size() + " slivers");
+		if (!expected.equals(stax()))
+			throw new IllegalStateException("reader and XPath disagree");
+	}
+
+	@Benchmark
+	public List<String> stax() throws Exception {
+		return RSpecManifests.read(manifest);
+	}
+
+	@Benchmark
+	public List<String> xpath() throws Exception {
+		return RSpecManifests.xpath(manifest);
+	}
+}
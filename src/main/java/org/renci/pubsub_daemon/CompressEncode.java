@@ -2,85 +2,332 @@ package org.renci.pubsub_daemon;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
 
-import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.apache.commons.codec.binary.Base64OutputStream;
 
 /**
  * This is a simple static compressor/decompressor that takes a string,
  * compresses and base64-encodes it (or does the reverse)
+ *
+ * Decoding and encoding are streamed: base64 text is read straight through
+ * the inflater without materializing the decoded bytes. Inflaters, deflaters
+ * and their buffers are kept per thread and reset between uses. Text is
+ * always UTF-8.
  * @author ibaldin
  *
  */
 public class CompressEncode {
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	// guards against decompression bombs unless the caller says otherwise
+	public static final long DEFAULT_MAX_SIZE = 64L*1024L*1024L;
+	private static final int BUFFER_SIZE = 8192;
+	// don't hang on to output buffers larger than this between calls
+	private static final int MAX_RETAINED_BUFFER = 4*1024*1024;
+
+	/**
+	 * Per-thread codec state. Only one stream per thread can use it at a time,
+	 * nested streams get their own.
+	 */
+	private static class Codec {
+		final Inflater inflater = new Inflater();
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		final byte[] inBuf = new byte[BUFFER_SIZE];
+		final byte[] outBuf = new byte[BUFFER_SIZE];
+		byte[] result = new byte[BUFFER_SIZE];
+		boolean inflaterBusy = false, deflaterBusy = false;
+	}
+
+	private static final ThreadLocal<Codec> perThread = new ThreadLocal<Codec>() {
+		@Override
+		protected Codec initialValue() {
+			return new Codec();
+		}
+	};
 
-	
 	/**
 	 * Compress (gzip) and base64 encode the string
 	 * @param res
 	 * @return
 	 */
 	public static String compressEncode(String inputString) {
-		// compress
-		byte[] input = inputString.getBytes();
-		ByteArrayOutputStream bos = new ByteArrayOutputStream(input.length);
-
-		Deflater comp = new Deflater();
-		comp.setLevel(Deflater.BEST_SPEED);
-		comp.setInput(input);
-		comp.finish();
-
-		byte[] tmp = new byte[1024];
-		while(!comp.finished()) {
-			int count = comp.deflate(tmp);
-			bos.write(tmp, 0, count);
-		}
-
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(inputString.length()/4 + 16);
 		try {
-			bos.close();
+			Writer w = encodeWriter(bos);
+			try {
+				w.write(inputString);
+			} finally {
+				w.close();
+			}
 		} catch (IOException e) {
-			;
+			// in-memory streams don't fail
+			throw new RuntimeException("Unable to compress: " + e);
 		}
-		// base64-encode
-		byte[] resBytes = Base64.encodeBase64(bos.toByteArray());
+		return new String(bos.toByteArray(), ASCII);
+	}
 
-		String res = new String(resBytes);
+	public static String decodeDecompress(CharSequence inputString) throws DataFormatException {
+		return decodeDecompress(inputString, DEFAULT_MAX_SIZE);
+	}
 
-		return res;
+	/**
+	 * Base64 decode and decompress into a string, refusing to inflate more than maxSize bytes
+	 * @param inputString
+	 * @param maxSize
+	 * @return
+	 * @throws DataFormatException if the input is malformed, truncated or inflates to more than maxSize
+	 */
+	public static String decodeDecompress(CharSequence inputString, long maxSize) throws DataFormatException {
+		return inflateToString(decodeStream(inputString, maxSize));
 	}
-	
-	public static String decodeDecompress(String inputString) throws DataFormatException {
-		
-		// base 64 decode
-		byte[] decoded = Base64.decodeBase64(inputString.getBytes());
 
-		// decompress
-		Inflater decompressor = new Inflater();
-		decompressor.setInput(decoded);
+	/**
+	 * Compress a string without base64 encoding it (for keeping it in memory or on disk)
+	 * @param inputString
+	 * @return
+	 */
+	public static byte[] compress(String inputString) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(inputString.length()/8 + 16);
+		try {
+			Writer w = new OutputStreamWriter(deflateStream(bos), UTF8);
+			try {
+				w.write(inputString);
+			} finally {
+				w.close();
+			}
+		} catch (IOException e) {
+			// in-memory streams don't fail
+			throw new RuntimeException("Unable to compress: " + e);
+		}
+		return bos.toByteArray();
+	}
 
-		// Create an expandable byte array to hold the decompressed data
-		ByteArrayOutputStream bos = new ByteArrayOutputStream(decoded.length);
+	/**
+	 * Reverse of compress(), reading the compressed bytes from a stream
+	 * @param compressed
+	 * @param maxSize
+	 * @return
+	 * @throws DataFormatException
+	 */
+	public static String decompress(InputStream compressed, long maxSize) throws DataFormatException {
+		return inflateToString(inflateStream(compressed, maxSize));
+	}
 
+	/**
+	 * Read an inflating stream to the end into a UTF-8 string using the per-thread buffer, closing the stream
+	 * @param is
+	 * @return
+	 * @throws DataFormatException
+	 */
+	private static String inflateToString(InputStream is) throws DataFormatException {
+		Codec c = perThread.get();
 		try {
-			// Decompress the data
-			byte[] buf = new byte[1024];
-			while (!decompressor.finished()) {
-				int count = decompressor.inflate(buf);
-				bos.write(buf, 0, count);
+			byte[] res = c.result;
+			int len = 0, count;
+			while ((count = is.read(res, len, res.length - len)) >= 0) {
+				len += count;
+				if (len == res.length) {
+					byte[] bigger = new byte[res.length * 2];
+					System.arraycopy(res, 0, bigger, 0, len);
+					res = bigger;
+				}
 			}
+			c.result = (res.length > MAX_RETAINED_BUFFER ? new byte[BUFFER_SIZE] : res);
+			return new String(res, 0, len, UTF8);
+		} catch (IOException e) {
+			DataFormatException dfe = new DataFormatException("Unable to decode: " + e.getMessage());
+			dfe.initCause(e);
+			throw dfe;
 		} finally {
 			try {
-				bos.close();
+				is.close();
 			} catch (IOException e) {
 				;
 			}
 		}
+	}
 
-		// Get the decompressed data
-		byte[] decompressedData = bos.toByteArray();
+	/**
+	 * Stream of decompressed bytes of base64-encoded compressed text. Must be closed
+	 * so the inflater can be reused. Reading past maxSize bytes throws a ZipException.
+	 * @param encoded
+	 * @param maxSize
+	 * @return
+	 */
+	public static InputStream decodeStream(CharSequence encoded, long maxSize) {
+		return inflateStream(new Base64InputStream(new CharSequenceInputStream(encoded), false), maxSize);
+	}
+
+	private static InputStream inflateStream(InputStream compressed, long maxSize) {
+		Codec c = perThread.get();
+		if (c.inflaterBusy)
+			return new LimitedInflaterInputStream(compressed, null, new Inflater(), new byte[BUFFER_SIZE], maxSize);
+		c.inflaterBusy = true;
+		return new LimitedInflaterInputStream(compressed, c, c.inflater, c.inBuf, maxSize);
+	}
+
+	/**
+	 * UTF-8 reader over the decompressed text of a base64-encoded compressed manifest
+	 * @param encoded
+	 * @param maxSize
+	 * @return
+	 */
+	public static Reader decodeReader(CharSequence encoded, long maxSize) {
+		return new InputStreamReader(decodeStream(encoded, maxSize), UTF8);
+	}
 
-		return new String(decompressedData);
+	/**
+	 * Stream that compresses and base64-encodes (no line breaks) whatever is written to it
+	 * into out. Closing it finishes the encoding and closes out.
+	 * @param out
+	 * @return
+	 */
+	public static OutputStream encodeStream(OutputStream out) {
+		return deflateStream(new Base64OutputStream(out, true, 0, null));
+	}
+
+	private static OutputStream deflateStream(OutputStream out) {
+		Codec c = perThread.get();
+		if (c.deflaterBusy)
+			return new PooledDeflaterOutputStream(out, null, new Deflater(Deflater.BEST_SPEED), new byte[BUFFER_SIZE]);
+		c.deflaterBusy = true;
+		return new PooledDeflaterOutputStream(out, c, c.deflater, c.outBuf);
+	}
+
+	/**
+	 * UTF-8 writer version of encodeStream
+	 * @param out
+	 * @return
+	 */
+	public static Writer encodeWriter(OutputStream out) {
+		return new OutputStreamWriter(encodeStream(out), UTF8);
+	}
+
+	/**
+	 * Base64 text is ASCII, so chars map to bytes directly
+	 */
+	private static class CharSequenceInputStream extends InputStream {
+		private final CharSequence cs;
+		private int pos = 0;
+
+		CharSequenceInputStream(CharSequence cs) {
+			this.cs = cs;
+		}
+
+		@Override
+		public int read() {
+			return (pos < cs.length() ? cs.charAt(pos++) & 0xff : -1);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			int left = cs.length() - pos;
+			if (left <= 0)
+				return -1;
+			if (len > left)
+				len = left;
+			for (int i = 0; i < len; i++)
+				b[off + i] = (byte)cs.charAt(pos++);
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return cs.length() - pos;
+		}
+	}
+
+	/**
+	 * Inflates using a supplied (possibly pooled) inflater and buffer, caps the output
+	 * and hands the inflater back on close
+	 */
+	private static class LimitedInflaterInputStream extends InflaterInputStream {
+		private final Codec owner;
+		private final long maxSize;
+		private long total = 0;
+		private boolean closed = false;
+
+		LimitedInflaterInputStream(InputStream in, Codec owner, Inflater inf, byte[] buffer, long maxSize) {
+			super(in, inf, 1);
+			buf = buffer;
+			this.owner = owner;
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if ((maxSize > 0) && (len > maxSize - total + 1))
+				len = (int)Math.max(maxSize - total + 1, 1);
+			int count = super.read(b, off, len);
+			if (count > 0) {
+				total += count;
+				if ((maxSize > 0) && (total > maxSize))
+					throw new ZipException("Decompressed size exceeds limit of " + maxSize + " bytes");
+			}
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				in.close();
+			} finally {
+				if (owner != null) {
+					inf.reset();
+					owner.inflaterBusy = false;
+				} else
+					inf.end();
+			}
+		}
+	}
+
+	/**
+	 * Deflates using a supplied (possibly pooled) deflater and buffer, hands the
+	 * deflater back on close
+	 */
+	private static class PooledDeflaterOutputStream extends DeflaterOutputStream {
+		private final Codec owner;
+		private boolean closed = false;
+
+		PooledDeflaterOutputStream(OutputStream out, Codec owner, Deflater def, byte[] buffer) {
+			super(out, def, 1);
+			buf = buffer;
+			this.owner = owner;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				finish();
+				out.close();
+			} finally {
+				if (owner != null) {
+					def.reset();
+					owner.deflaterBusy = false;
+				} else
+					def.end();
+			}
+		}
 	}
 }
@@ -0,0 +1,181 @@
+package org.renci.pubsub_daemon;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+
+/**
+ * Remembers RSpec conversions of NDL manifests so identical manifests (republishes,
+ * reconnects, backfills) don't go through a converter again. Keyed by SHA-256 of the
+ * NDL and the slice URN. Results are kept compressed in direct (off-heap) buffers;
+ * the cache is bounded by their total size and evicts least recently used entries.
+ *
+ */
+public class ConversionCache {
+	private static final String CACHE_BYTES_PROPERTY = "pubsub.conversion.cache.bytes";
+	private static final long DEFAULT_BYTES = 64L*1024L*1024L;
+
+	private static final ThreadLocal<MessageDigest> sha256 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException("SHA-256 not available: " + e);
+			}
+		}
+	};
+
+	private static class CachedRSpec {
+		final ByteBuffer compressed;
+		final int length;
+
+		CachedRSpec(ByteBuffer compressed, int length) {
+			this.compressed = compressed;
+			this.length = length;
+		}
+	}
+
+	private final long maxBytes;
+	// guarded by this
+	private final LinkedHashMap<String, CachedRSpec> entries = new LinkedHashMap<String, CachedRSpec>(16, 0.75f, true);
+	private long bytes = 0;
+	private long hits = 0, misses = 0, evictions = 0, bytesSaved = 0;
+
+	ConversionCache() {
+		maxBytes = Globals.getInstance().getConfigPropertyLong(CACHE_BYTES_PROPERTY, DEFAULT_BYTES);
+	}
+
+	public boolean enabled() {
+		return maxBytes > 0;
+	}
+
+	/**
+	 * Cache key for an NDL manifest of a slice
+	 * @param ndlMan
+	 * @param sliceUrn
+	 * @return
+	 */
+	public static String key(String ndlMan, String sliceUrn) {
+		MessageDigest md = sha256.get();
+		md.reset();
+		byte[] digest = md.digest(ndlMan.getBytes(CompressEncode.UTF8));
+		StringBuilder sb = new StringBuilder(digest.length * 2 + sliceUrn.length() + 1);
+		for (byte b: digest) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.append('/').append(sliceUrn).toString();
+	}
+
+	/**
+	 * Cached RSpec for the key or null
+	 * @param key
+	 * @return
+	 */
+	public String get(String key) {
+		if (!enabled())
+			return null;
+		CachedRSpec e;
+		synchronized(this) {
+			e = entries.get(key);
+			if (e == null) {
+				misses++;
+				return null;
+			}
+		}
+		try {
+			String ret = CompressEncode.decompress(new ByteBufferInputStream(e.compressed.duplicate()), 0);
+			synchronized(this) {
+				hits++;
+				bytesSaved += e.length;
+			}
+			return ret;
+		} catch (DataFormatException dfe) {
+			Globals.error("Unable to decompress cached RSpec, dropping it: " + dfe.getMessage());
+			invalidate(key);
+			return null;
+		}
+	}
+
+	/**
+	 * Remember a successful conversion
+	 * @param key
+	 * @param rspecMan
+	 */
+	public void put(String key, String rspecMan) {
+		if (!enabled())
+			return;
+		byte[] compressed = CompressEncode.compress(rspecMan);
+		if (compressed.length > maxBytes)
+			return;
+		ByteBuffer buf = ByteBuffer.allocateDirect(compressed.length);
+		buf.put(compressed);
+		buf.flip();
+		CachedRSpec e = new CachedRSpec(buf, rspecMan.length());
+
+		synchronized(this) {
+			CachedRSpec old = entries.put(key, e);
+			if (old != null)
+				bytes -= old.compressed.capacity();
+			bytes += compressed.length;
+			Iterator<Map.Entry<String, CachedRSpec>> it = entries.entrySet().iterator();
+			while ((bytes > maxBytes) && it.hasNext()) {
+				CachedRSpec eldest = it.next().getValue();
+				it.remove();
+				bytes -= eldest.compressed.capacity();
+				evictions++;
+			}
+		}
+	}
+
+	public synchronized void invalidate(String key) {
+		CachedRSpec old = entries.remove(key);
+		if (old != null)
+			bytes -= old.compressed.capacity();
+	}
+
+	public synchronized String getStats() {
+		if (!enabled())
+			return "conversion cache: disabled";
+		long lookups = hits + misses;
+		return "conversion cache: " + entries.size() + " entries, " + bytes + "/" + maxBytes + " bytes, hit ratio " +
+				(lookups > 0 ? (100 * hits / lookups) : 0) + "% (" + hits + "/" + lookups + "), " +
+				bytesSaved + " chars of RSpec not reconverted, " + evictions + " evicted";
+	}
+
+	/**
+	 * Reads a buffer without copying it to the heap first
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buf;
+
+		ByteBufferInputStream(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		public int read() {
+			return (buf.hasRemaining() ? buf.get() & 0xff : -1);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (!buf.hasRemaining())
+				return -1;
+			len = Math.min(len, buf.remaining());
+			buf.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return buf.remaining();
+		}
+	}
+}
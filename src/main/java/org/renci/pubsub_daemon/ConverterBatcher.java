@@ -0,0 +1,244 @@
+package org.renci.pubsub_daemon;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.xmlrpc.XmlRpcException;
+
+/**
+ * Groups converter calls made close together into one system.multicall request.
+ * A flusher thread collects calls for up to maxWait milliseconds or maxItems calls
+ * and hands the batch to a bounded pool, which sends it in one request and hands
+ * each caller its own result, so several batches (to different converters) can be
+ * in flight at once. Calls that can't be batched (single call in a batch, pool busy,
+ * multicall failed) are handed back to the caller to be made directly. If converters
+ * keep answering multicalls with faults or malformed responses batching is turned
+ * off; converters that can't be reached say nothing about multicall support.
+ * Multicall round trips are not sampled for the converter latency averages or the
+ * hedge delay.
+ *
+ */
+class ConverterBatcher {
+	private static final String MULTICALL = "system.multicall";
+	// consecutive failed multicalls after which we assume converters don't support it
+	private static final int MAX_MULTICALL_FAILURES = 3;
+	private static final long SENDER_KEEPALIVE = 60;
+
+	private final ConverterPool pool;
+	private final int maxItems;
+	private final long maxWaitMs;
+	private final BlockingQueue<PendingCall> queue = new LinkedBlockingQueue<PendingCall>();
+	private final ThreadPoolExecutor senders;
+	private volatile boolean enabled = true;
+	private final AtomicInteger multicallFailures = new AtomicInteger(0);
+
+	private final AtomicLong batches = new AtomicLong(0);
+	private final AtomicLong batchedCalls = new AtomicLong(0);
+	private final AtomicLong directCalls = new AtomicLong(0);
+	private final AtomicLong sendersBusy = new AtomicLong(0);
+
+	/**
+	 * A call waiting for its batch
+	 */
+	private static class PendingCall {
+		final String call;
+		final Object[] params;
+		final CountDownLatch done = new CountDownLatch(1);
+		Object result = null;
+		// caller should make the call itself
+		boolean direct = false;
+
+		PendingCall(String call, Object[] params) {
+			this.call = call;
+			this.params = params;
+		}
+
+		void complete(Object result, boolean direct) {
+			this.result = result;
+			this.direct = direct;
+			done.countDown();
+		}
+	}
+
+	/**
+	 * @param pool
+	 * @param maxItems - calls per batch
+	 * @param maxWaitMs - how long to wait for a batch to fill
+	 * @param threads - batches sent at the same time
+	 */
+	ConverterBatcher(ConverterPool pool, int maxItems, long maxWaitMs, int threads) {
+		this.pool = pool;
+		this.maxItems = maxItems;
+		this.maxWaitMs = maxWaitMs;
+
+		// no queue: a batch that can't be sent right away is made as direct calls
+		senders = new ThreadPoolExecutor(threads, threads, SENDER_KEEPALIVE, TimeUnit.SECONDS, 
+				new SynchronousQueue<Runnable>(), new ManifestExecutor.NamedThreadFactory("ConverterBatch"));
+		senders.allowCoreThreadTimeOut(true);
+
+		Thread flusher = new ManifestExecutor.NamedThreadFactory("ConverterBatcher").newThread(new Runnable() {
+			public void run() {
+				flushLoop();
+			}
+		});
+		flusher.start();
+	}
+
+	/**
+	 * Make the call as part of a batch
+	 * @param call
+	 * @param params
+	 * @return call result or null if no converter could be reached
+	 */
+	Object execute(String call, Object[] params) {
+		if (!enabled) {
+			directCalls.incrementAndGet();
+			return pool.executeDirect(call, params);
+		}
+		PendingCall pc = new PendingCall(call, params);
+		queue.add(pc);
+		try {
+			pc.done.await();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		if (pc.direct) {
+			directCalls.incrementAndGet();
+			return pool.executeDirect(call, params);
+		}
+		return pc.result;
+	}
+
+	private void flushLoop() {
+		while (true) {
+			final List<PendingCall> batch = new ArrayList<PendingCall>(maxItems);
+			try {
+				batch.add(queue.take());
+				long deadline = System.currentTimeMillis() + maxWaitMs;
+				while (batch.size() < maxItems) {
+					long left = deadline - System.currentTimeMillis();
+					PendingCall pc = (left > 0 ? queue.poll(left, TimeUnit.MILLISECONDS) : queue.poll());
+					if (pc == null)
+						break;
+					batch.add(pc);
+				}
+				if ((batch.size() == 1) || !enabled) {
+					completeDirect(batch);
+					continue;
+				}
+				senders.execute(new Runnable() {
+					public void run() {
+						try {
+							flush(batch);
+						} catch (RuntimeException re) {
+							Globals.error("Unable to send batch of converter calls: " + re);
+							completeDirect(batch);
+						}
+					}
+				});
+			} catch (RejectedExecutionException ree) {
+				sendersBusy.incrementAndGet();
+				completeDirect(batch);
+			} catch (InterruptedException ie) {
+				completeDirect(batch);
+				return;
+			} catch (RuntimeException re) {
+				Globals.error("Unable to send batch of converter calls: " + re);
+				completeDirect(batch);
+			}
+		}
+	}
+
+	/**
+	 * Have the callers make the calls themselves
+	 * @param batch
+	 */
+	private static void completeDirect(List<PendingCall> batch) {
+		for (PendingCall pc: batch)
+			pc.complete(null, true);
+	}
+
+	/**
+	 * Send one multicall for the batch and demultiplex results
+	 * @param batch
+	 */
+	private void flush(List<PendingCall> batch) {
+
+		List<Map<String, Object>> calls = new ArrayList<Map<String, Object>>(batch.size());
+		for (PendingCall pc: batch) {
+			Map<String, Object> c = new HashMap<String, Object>();
+			c.put("methodName", pc.call);
+			c.put("params", pc.params);
+			calls.add(c);
+		}
+
+		Globals.debug("Sending " + batch.size() + " converter calls in one " + MULTICALL);
+		Object res;
+		try {
+			res = pool.executeUnsampled(MULTICALL, new Object[]{ calls.toArray() });
+		} catch (XmlRpcException xe) {
+			Globals.warn("Converter answered " + MULTICALL + " with " + xe);
+			unsupported();
+			completeDirect(batch);
+			return;
+		}
+		if (res == null) {
+			// no converter could be reached, the callers will find out for themselves
+			completeDirect(batch);
+			return;
+		}
+		if (!(res instanceof Object[]) || (((Object[])res).length != batch.size())) {
+			Globals.warn("Converter returned malformed response to " + MULTICALL);
+			unsupported();
+			completeDirect(batch);
+			return;
+		}
+		multicallFailures.set(0);
+		batches.incrementAndGet();
+		batchedCalls.addAndGet(batch.size());
+
+		// each result is either a one-element array with the value or a fault struct
+		Object[] results = (Object[])res;
+		for (int i = 0; i < results.length; i++) {
+			PendingCall pc = batch.get(i);
+			if ((results[i] instanceof Object[]) && (((Object[])results[i]).length == 1))
+				pc.complete(((Object[])results[i])[0], false);
+			else {
+				if (results[i] instanceof Map)
+					Globals.error("Converter returned fault for " + pc.call + ": " + ((Map<?, ?>)results[i]).get("faultString"));
+				else
+					Globals.error("Converter returned unexpected result for " + pc.call + " in " + MULTICALL);
+				pc.complete(null, false);
+			}
+		}
+	}
+
+	/**
+	 * A multicall was answered with a fault or a malformed response
+	 */
+	private void unsupported() {
+		if ((multicallFailures.incrementAndGet() >= MAX_MULTICALL_FAILURES) && enabled) {
+			Globals.warn("Converters don't seem to support " + MULTICALL + ", no longer batching calls");
+			enabled = false;
+		}
+	}
+
+	String getStats() {
+		long b = batches.get();
+		return (enabled ? "" : "disabled, ") + b + " batches of " + batchedCalls.get() + " calls (avg " +
+				(b > 0 ? batchedCalls.get() / b : 0) + "), " + directCalls.get() + " calls made directly (" + 
+				sendersBusy.get() + " batches with all senders busy)";
+	}
+}
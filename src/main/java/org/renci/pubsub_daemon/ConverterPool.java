@@ -0,0 +1,514 @@
+package org.renci.pubsub_daemon;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+import org.apache.xmlrpc.client.XmlRpcHttpTransportException;
+
+/**
+ * Long-lived XML-RPC clients for the configured NDL converters. Each endpoint
+ * keeps a latency EWMA and the number of calls in flight; calls go to the endpoint
+ * with the lowest expected wait first. Endpoints that repeatedly can't be reached are
+ * taken out of rotation (circuit breaker) and re-probed with a single call after a delay;
+ * faults don't count, the converter did answer.
+ *
+ * Clients are reused across calls so the HTTP transport can keep connections alive.
+ * 
+ * Optionally calls are hedged: if the preferred converter hasn't answered within a
+ * percentile of recent call latencies, the same call is sent to the next converter
+ * and whichever answers first wins. Hedged calls run on a bounded pool; when it is
+ * saturated calls are made without hedging. The losing call is abandoned, not
+ * cancelled: XML-RPC reads can't be interrupted, so it keeps its pool thread until
+ * the converter answers or the reply timeout expires.
+ * 
+ * Also optionally calls made close together are batched into a single request
+ * (see ConverterBatcher).
+ *
+ */
+public class ConverterPool {
+	private static final String CONNECT_TIMEOUT_PROPERTY = "pubsub.ndl.converter.connect.timeout";
+	private static final String REPLY_TIMEOUT_PROPERTY = "pubsub.ndl.converter.reply.timeout";
+	private static final String FAILURES_PROPERTY = "pubsub.ndl.converter.failures";
+	private static final String PROBE_INTERVAL_PROPERTY = "pubsub.ndl.converter.probe.interval";
+	private static final String HEDGE_PROPERTY = "pubsub.ndl.converter.hedge";
+	private static final String HEDGE_PERCENTILE_PROPERTY = "pubsub.ndl.converter.hedge.percentile";
+	private static final String HEDGE_THREADS_PROPERTY = "pubsub.ndl.converter.hedge.threads";
+	private static final String BATCH_SIZE_PROPERTY = "pubsub.ndl.converter.batch.size";
+	private static final String BATCH_WAIT_PROPERTY = "pubsub.ndl.converter.batch.wait.ms";
+	private static final String BATCH_THREADS_PROPERTY = "pubsub.ndl.converter.batch.threads";
+
+	private static final int DEFAULT_CONNECT_TIMEOUT = 10;
+	private static final int DEFAULT_REPLY_TIMEOUT = 300;
+	private static final int DEFAULT_FAILURES = 3;
+	private static final int DEFAULT_PROBE_INTERVAL = 30;
+	// weight of the newest sample in the latency average
+	private static final double EWMA_ALPHA = 0.2;
+	private static final int DEFAULT_HEDGE_PERCENTILE = 95;
+	private static final int DEFAULT_HEDGE_THREADS = 16;
+	private static final int DEFAULT_BATCH_WAIT = 5;
+	private static final int DEFAULT_BATCH_THREADS = 4;
+	// latencies remembered for the hedge delay and how many are needed before hedging starts
+	private static final int LATENCY_SAMPLES = 256;
+	private static final int MIN_LATENCY_SAMPLES = 20;
+
+	private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+	private final int failureThreshold;
+	private final long probeIntervalMs;
+	private final int hedgePercentile;
+	private ExecutorService hedgePool = null;
+	private ConverterBatcher batcher = null;
+
+	// ring buffer of recent successful call latencies, guarded by itself
+	private final long[] latencies = new long[LATENCY_SAMPLES];
+	private int latencyCount = 0, latencyPos = 0;
+
+	private final AtomicLong hedgeableCalls = new AtomicLong(0);
+	private final AtomicLong hedges = new AtomicLong(0);
+	private final AtomicLong hedgeWins = new AtomicLong(0);
+	private final AtomicLong hedgesSkipped = new AtomicLong(0);
+
+	/**
+	 * One converter URL with its client, health and load
+	 */
+	static class Endpoint {
+		final String url;
+		final XmlRpcClient client;
+		final AtomicInteger inFlight = new AtomicInteger(0);
+		final AtomicLong calls = new AtomicLong(0);
+		final AtomicLong failures = new AtomicLong(0);
+		// guarded by this
+		private double ewmaMs = 0;
+		// no latency sample yet (a real sample can round to 0ms)
+		private boolean sampled = false;
+		private int consecutiveFailures = 0;
+		private long openUntil = 0;
+		private boolean probing = false;
+
+		Endpoint(String url, XmlRpcClient client) {
+			this.url = url;
+			this.client = client;
+		}
+
+		/**
+		 * Expected wait for a new call, 0 with no samples yet so they get some
+		 * @return
+		 */
+		synchronized double score() {
+			return ewmaMs * (inFlight.get() + 1);
+		}
+
+		/**
+		 * Can this endpoint take a call now? Open circuits let one probe through once the delay expires
+		 * @param now
+		 * @return
+		 */
+		synchronized boolean admit(long now) {
+			if (openUntil == 0)
+				return true;
+			if (probing || (now < openUntil))
+				return false;
+			probing = true;
+			return true;
+		}
+
+		/**
+		 * A probe admitted by admit() was not used after all
+		 */
+		synchronized void releaseProbe() {
+			probing = false;
+		}
+
+		synchronized void success(long latencyMs) {
+			ewmaMs = (sampled ? EWMA_ALPHA * latencyMs + (1 - EWMA_ALPHA) * ewmaMs : latencyMs);
+			sampled = true;
+			reachable();
+		}
+
+		/**
+		 * The endpoint answered, without a latency sample
+		 */
+		synchronized void reachable() {
+			consecutiveFailures = 0;
+			openUntil = 0;
+			probing = false;
+		}
+
+		/**
+		 * @param threshold
+		 * @param probeIntervalMs
+		 * @return true if this failure opened the circuit
+		 */
+		synchronized boolean failure(int threshold, long probeIntervalMs) {
+			failures.incrementAndGet();
+			consecutiveFailures++;
+			boolean wasOpen = (openUntil > 0);
+			probing = false;
+			if (consecutiveFailures >= threshold) {
+				openUntil = System.currentTimeMillis() + probeIntervalMs;
+				return !wasOpen;
+			}
+			return false;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return url + " (" + (sampled ? Math.round(ewmaMs) + "ms avg, " : "no samples, ") + inFlight.get() + " in flight, " + calls.get() + " calls, " +
+					failures.get() + " failures" + (openUntil > 0 ? ", down" : "") + ")";
+		}
+	}
+
+	/**
+	 * @param urls - comma-separated list of converter URLs
+	 * @throws MalformedURLException
+	 */
+	ConverterPool(String urls) throws MalformedURLException {
+		Globals g = Globals.getInstance();
+		int connectTimeout = g.getConfigPropertyInt(CONNECT_TIMEOUT_PROPERTY, DEFAULT_CONNECT_TIMEOUT);
+		int replyTimeout = g.getConfigPropertyInt(REPLY_TIMEOUT_PROPERTY, DEFAULT_REPLY_TIMEOUT);
+		failureThreshold = Math.max(g.getConfigPropertyInt(FAILURES_PROPERTY, DEFAULT_FAILURES), 1);
+		probeIntervalMs = g.getConfigPropertyLong(PROBE_INTERVAL_PROPERTY, DEFAULT_PROBE_INTERVAL) * 1000L;
+		hedgePercentile = Math.min(Math.max(g.getConfigPropertyInt(HEDGE_PERCENTILE_PROPERTY, DEFAULT_HEDGE_PERCENTILE), 1), 100);
+
+		for (String u: urls.split(",")) {
+			u = u.trim();
+			if (u.length() == 0)
+				continue;
+			XmlRpcClientConfigImpl config = new XmlRpcClientConfigImpl();
+			config.setServerURL(new URL(u));
+			config.setConnectionTimeout(connectTimeout * 1000);
+			config.setReplyTimeout(replyTimeout * 1000);
+			XmlRpcClient client = new XmlRpcClient();
+			client.setConfig(config);
+			endpoints.add(new Endpoint(u, client));
+		}
+		Globals.info("Using NDL converters " + endpoints);
+
+		if (g.getConfigPropertyBoolean(HEDGE_PROPERTY, false) && (endpoints.size() > 1)) {
+			int hedgeThreads = Math.max(g.getConfigPropertyInt(HEDGE_THREADS_PROPERTY, DEFAULT_HEDGE_THREADS), 2);
+			Globals.info("Hedging NDL converter calls at p" + hedgePercentile + " of recent latency using up to " + hedgeThreads + " threads");
+			// no queue: a call that can't get a thread right away isn't hedged
+			ThreadPoolExecutor tpe = new ThreadPoolExecutor(hedgeThreads, hedgeThreads, 60L, TimeUnit.SECONDS, 
+					new SynchronousQueue<Runnable>(), new ManifestExecutor.NamedThreadFactory("ConverterCall"));
+			tpe.allowCoreThreadTimeOut(true);
+			hedgePool = tpe;
+		}
+
+		int batchSize = g.getConfigPropertyInt(BATCH_SIZE_PROPERTY, 0);
+		if (batchSize > 1) {
+			long batchWait = g.getConfigPropertyLong(BATCH_WAIT_PROPERTY, DEFAULT_BATCH_WAIT);
+			int batchThreads = Math.max(g.getConfigPropertyInt(BATCH_THREADS_PROPERTY, DEFAULT_BATCH_THREADS), 1);
+			Globals.info("Batching up to " + batchSize + " NDL converter calls made within " + batchWait + "ms, sending up to " + 
+					batchThreads + " batches at a time");
+			batcher = new ConverterBatcher(this, batchSize, batchWait, batchThreads);
+		}
+	}
+
+	/**
+	 * Endpoints in the order they should be tried: healthy ones by expected wait,
+	 * then (as a last resort) the ones that are down
+	 * @return
+	 */
+	List<Endpoint> candidates() {
+		long now = System.currentTimeMillis();
+		List<Endpoint> up = new ArrayList<Endpoint>(), down = new ArrayList<Endpoint>();
+		for (Endpoint e: endpoints) {
+			if (e.admit(now))
+				up.add(e);
+			else
+				down.add(e);
+		}
+		// shuffle first so ties (e.g. no latency data yet) spread the load
+		Collections.shuffle(up);
+		final Map<Endpoint, Double> scores = new IdentityHashMap<Endpoint, Double>();
+		for (Endpoint e: up)
+			scores.put(e, e.score());
+		Collections.sort(up, new Comparator<Endpoint>() {
+			public int compare(Endpoint o1, Endpoint o2) {
+				return Double.compare(scores.get(o1), scores.get(o2));
+			}
+		});
+		if (up.isEmpty())
+			Globals.warn("All NDL converters are down, trying them anyway");
+		up.addAll(down);
+		return up;
+	}
+
+	/**
+	 * Invoke a call on one endpoint, updating its health
+	 * @param e
+	 * @param call
+	 * @param params
+	 * @param sample - use the latency for the endpoint average and the hedge delay
+	 * @return
+	 * @throws XmlRpcException
+	 */
+	Object invoke(Endpoint e, String call, Object[] params, boolean sample) throws XmlRpcException {
+		Globals.debug("Invoking NDL converter " + call + " at " + e.url);
+		e.calls.incrementAndGet();
+		e.inFlight.incrementAndGet();
+		long start = System.currentTimeMillis();
+		try {
+			Object ret = e.client.execute(call, params);
+			long latency = System.currentTimeMillis() - start;
+			if (sample) {
+				e.success(latency);
+				recordLatency(latency);
+			} else
+				e.reachable();
+			return ret;
+		} catch (XmlRpcException xe) {
+			// a cancelled hedge loser isn't the endpoint's fault, nor is a fault it answered with
+			if (Thread.currentThread().isInterrupted())
+				e.releaseProbe();
+			else if (!isTransportFailure(xe))
+				e.reachable();
+			else if (e.failure(failureThreshold, probeIntervalMs))
+				Globals.warn("NDL converter at " + e.url + " is down, will retry in " + probeIntervalMs/1000 + "s");
+			throw xe;
+		} finally {
+			e.inFlight.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Try endpoints in order of preference until one answers, batching the call
+	 * with others if configured
+	 * @param call
+	 * @param params
+	 * @return first response or null if no converter could be reached
+	 */
+	public Object execute(String call, Object[] params) {
+		if (batcher != null)
+			return batcher.execute(call, params);
+		return executeDirect(call, params);
+	}
+
+	/**
+	 * Did the call fail to reach the converter or get an HTTP answer from it, as opposed
+	 * to the converter answering with a fault or a response that can't be parsed?
+	 * @param xe
+	 * @return
+	 */
+	static boolean isTransportFailure(XmlRpcException xe) {
+		if (xe instanceof XmlRpcHttpTransportException)
+			return true;
+		for (Throwable t = xe.getCause(); t != null; t = t.getCause()) {
+			if (t instanceof IOException)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Make a call whose round trip says nothing about the latency of single calls
+	 * (a multicall): tried on the candidates in order without hedging and not sampled
+	 * for the latency averages or the hedge delay
+	 * @param call
+	 * @param params
+	 * @return response or null if no converter could be reached
+	 * @throws XmlRpcException if a converter answered with a fault or an unparseable response
+	 */
+	Object executeUnsampled(String call, Object[] params) throws XmlRpcException {
+		List<Endpoint> candidates = candidates();
+		for (int i = 0; i < candidates.size(); i++) {
+			Endpoint e = candidates.get(i);
+			try {
+				Object ret = invoke(e, call, params, false);
+				releaseProbes(candidates, i + 1);
+				return ret;
+			} catch (XmlRpcException xe) {
+				if (!isTransportFailure(xe)) {
+					releaseProbes(candidates, i + 1);
+					throw xe;
+				}
+				Globals.error("Unable to contact NDL converter at " + e.url + " due to " + xe);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Make the call on its own
+	 * @param call
+	 * @param params
+	 * @return
+	 */
+	Object executeDirect(String call, Object[] params) {
+		List<Endpoint> candidates = candidates();
+		if ((hedgePool != null) && (candidates.size() > 1)) {
+			hedgeableCalls.incrementAndGet();
+			long delay = hedgeDelay();
+			if (delay > 0)
+				return executeHedged(candidates, call, params, delay);
+		}
+		return executeFrom(candidates, 0, call, params);
+	}
+
+	/**
+	 * Try candidates one at a time starting at the given one
+	 * @param candidates
+	 * @param first
+	 * @param call
+	 * @param params
+	 * @return
+	 */
+	private Object executeFrom(List<Endpoint> candidates, int first, String call, Object[] params) {
+		for (int i = first; i < candidates.size(); i++) {
+			Endpoint e = candidates.get(i);
+			try {
+				Object ret = invoke(e, call, params, true);
+				releaseProbes(candidates, i + 1);
+				return ret;
+			} catch (XmlRpcException xe) {
+				// skip it
+				Globals.error("Unable to contact NDL converter at " + e.url + " due to " + xe);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Call the preferred converter; if it is slower than the hedge delay also call
+	 * the next one and take whichever answers first, abandoning the other (its
+	 * thread is interrupted, which doesn't stop the read, so it runs to completion
+	 * or to the reply timeout). Falls back to the remaining converters if both fail.
+	 * Calls the converters one at a time instead if the pool is saturated.
+	 * @param candidates
+	 * @param call
+	 * @param params
+	 * @param delay
+	 * @return
+	 */
+	private Object executeHedged(List<Endpoint> candidates, final String call, final Object[] params, long delay) {
+		CompletionService<Object> cs = new ExecutorCompletionService<Object>(hedgePool);
+		Map<Future<Object>, Endpoint> running = new HashMap<Future<Object>, Endpoint>();
+		Endpoint primary = candidates.get(0);
+		try {
+			running.put(cs.submit(callOn(primary, call, params)), primary);
+		} catch (RejectedExecutionException ree) {
+			hedgesSkipped.incrementAndGet();
+			return executeFrom(candidates, 0, call, params);
+		}
+		int next = 1;
+		boolean hedged = false;
+		try {
+			Future<Object> done = cs.poll(delay, TimeUnit.MILLISECONDS);
+			if (done == null) {
+				Endpoint second = candidates.get(next);
+				try {
+					running.put(cs.submit(callOn(second, call, params)), second);
+					next++;
+					hedged = true;
+					hedges.incrementAndGet();
+					Globals.debug("NDL converter at " + primary.url + " slower than " + delay + "ms, hedging to " + second.url);
+				} catch (RejectedExecutionException ree) {
+					// keep waiting for the primary
+					hedgesSkipped.incrementAndGet();
+				}
+				done = cs.take();
+			}
+			while (true) {
+				Endpoint e = running.remove(done);
+				try {
+					Object ret = done.get();
+					if (hedged && (e != primary))
+						hedgeWins.incrementAndGet();
+					// abandon the loser, the interrupt only keeps its failure from counting against the endpoint
+					for (Future<Object> loser: running.keySet())
+						loser.cancel(true);
+					releaseProbes(candidates, next);
+					return ret;
+				} catch (ExecutionException ee) {
+					Globals.error("Unable to contact NDL converter at " + e.url + " due to " + ee.getCause());
+				}
+				if (running.isEmpty())
+					break;
+				done = cs.take();
+			}
+		} catch (InterruptedException ie) {
+			for (Future<Object> f: running.keySet())
+				f.cancel(true);
+			releaseProbes(candidates, next);
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		return executeFrom(candidates, next, call, params);
+	}
+
+	private Callable<Object> callOn(final Endpoint e, final String call, final Object[] params) {
+		return new Callable<Object>() {
+			public Object call() throws XmlRpcException {
+				return invoke(e, call, params, true);
+			}
+		};
+	}
+
+	/**
+	 * Let probes we didn't get to happen on the next call
+	 * @param candidates
+	 * @param from
+	 */
+	private static void releaseProbes(List<Endpoint> candidates, int from) {
+		for (Endpoint skipped: candidates.subList(from, candidates.size()))
+			skipped.releaseProbe();
+	}
+
+	private void recordLatency(long latency) {
+		synchronized(latencies) {
+			latencies[latencyPos] = latency;
+			latencyPos = (latencyPos + 1) % latencies.length;
+			if (latencyCount < latencies.length)
+				latencyCount++;
+		}
+	}
+
+	/**
+	 * Configured percentile of recent latencies, 0 if there isn't enough data yet
+	 * @return
+	 */
+	long hedgeDelay() {
+		long[] sorted;
+		synchronized(latencies) {
+			if (latencyCount < MIN_LATENCY_SAMPLES)
+				return 0;
+			sorted = Arrays.copyOf(latencies, latencyCount);
+		}
+		Arrays.sort(sorted);
+		int idx = (int)Math.ceil(hedgePercentile / 100.0 * sorted.length) - 1;
+		return Math.max(sorted[Math.max(idx, 0)], 1);
+	}
+
+	public String getStats() {
+		String ret = "converters: " + endpoints;
+		if (hedgePool != null)
+			ret += ", hedged " + hedges.get() + " of " + hedgeableCalls.get() + " calls (hedge won " + hedgeWins.get() + 
+					", skipped " + hedgesSkipped.get() + " with pool busy)";
+		if (batcher != null)
+			ret += ", " + batcher.getStats();
+		return ret;
+	}
+}
@@ -8,6 +8,8 @@ import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
+import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -16,12 +18,12 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
-
-import orca.ndl_conversion.IMultiFormatConverter;
-import orca.ndl_conversion.UniversalNDLConverter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.log4j.Logger;
 import org.renci.pubsub_daemon.ManifestSubscriber.SubscriptionPair;
+import org.renci.pubsub_daemon.util.DbPool;
 import org.renci.pubsub_daemon.workers.AbstractWorker;
 import org.renci.xmpp_pubsub.XMPPPubSub;
 
@@ -32,6 +34,7 @@ import org.renci.xmpp_pubsub.XMPPPubSub;
  */
 public class Globals {
 	private static final Globals instance = new Globals();
+	private static final String STAGE_THREADS_PROPERTY = "pubsub.worker.threads";
 	
 	private String converters = null;
 	private Boolean compression = true;
@@ -42,7 +45,12 @@ public class Globals {
 	private Date since = null;
 	private long manifestsSubscribed = 0;
 	private long eventsServed = 0;
-	private IMultiFormatConverter internalConverter = null;
+	private InternalConverterPool internalConverters = null;
+	private ManifestDedupCache dedupCache = null;
+	private ExecutorService stagePool = null;
+	private ConverterPool converterPool = null;
+	private ConversionCache conversionCache = null;
+	private SliceDeltaTracker deltaTracker = null;
 	
 	private SliceListEventListener sll = new SliceListEventListener();
 	private ManifestEventListener ml = new ManifestEventListener();
@@ -134,7 +142,18 @@ public class Globals {
 	}
 	
 	public String toString() {
-		return ManifestSubscriber.buildVersion + ": Up since " + since + " subscribed to " + manifestsSubscribed + ", served " + eventsServed + " manifest events";
+		StringBuilder workerStats = new StringBuilder();
+		for (AbstractWorker w: workers) {
+			String ws = w.getStats();
+			if (ws != null)
+				workerStats.append("; ").append(ws);
+		}
+		return ManifestSubscriber.buildVersion + ": Up since " + since + " subscribed to " + manifestsSubscribed + ", served " + eventsServed + " manifest events; " + 
+				ml.getStats() + "; " + getDedupCache().getStats() + "; " + ManifestWorkerThread.getStats() + "; " + getConversionCache().getStats() + 
+				"; " + getDeltaTracker().getStats() + 
+				(converterPool != null ? "; " + converterPool.getStats() : "") + 
+				(internalConverters != null ? "; " + internalConverters.getStats() : "") + workerStats + 
+				(DbPool.getPoolStats() != null ? "; " + DbPool.getPoolStats() : "") + "; " + SystemExecutor.getStats();
 	}
 	
 	synchronized void incManifests() {
@@ -191,6 +210,10 @@ public class Globals {
 		if (w != null)
 			workers.add(w);
 	}
+
+	public void removeWorker(AbstractWorker w) {
+		workers.remove(w);
+	}
 	
 	/**
 	 * Parse a comma-separated string, instantiate workers and add them to
@@ -252,11 +275,22 @@ public class Globals {
 	
 
 	public static String executeCommand(List<String> cmd, Properties env) {
+		return executeCommand(cmd, env, null);
+	}
+	
+	/**
+	 * Execute a command feeding it input on stdin
+	 * @param cmd
+	 * @param env
+	 * @param input - may be null
+	 * @return stdout of the command or null if it failed
+	 */
+	public static String executeCommand(List<String> cmd, Properties env, String input) {
 		SystemExecutor se = new SystemExecutor();
 
 		String response = null;
 		try {
-			response = se.execute(cmd, env, null, (Reader)null);
+			response = se.execute(cmd, env, null, (input != null ? new StringReader(input) : (Reader)null));
 		} catch (RuntimeException re) {
 			Globals.error("Unable to execute command " + cmd + ": " + re);
 		}
@@ -281,6 +315,47 @@ public class Globals {
 		return null;
 	}
 	
+	/**
+	 * Return an integer configuration property or the default if not set or malformed
+	 * @param name
+	 * @param def
+	 * @return
+	 */
+	public int getConfigPropertyInt(String name, int def) {
+		return (int)getConfigPropertyLong(name, def);
+	}
+	
+	/**
+	 * Return a long configuration property or the default if not set or malformed
+	 * @param name
+	 * @param def
+	 * @return
+	 */
+	public long getConfigPropertyLong(String name, long def) {
+		String val = getConfigProperty(name);
+		if ((val == null) || (val.length() == 0))
+			return def;
+		try {
+			return Long.decode(val);
+		} catch (NumberFormatException nfe) {
+			Globals.warn("Property " + name + " has invalid value " + val + ", using default " + def);
+			return def;
+		}
+	}
+	
+	/**
+	 * Return a boolean configuration property ('yes' or 'true') or the default if not set
+	 * @param name
+	 * @param def
+	 * @return
+	 */
+	public boolean getConfigPropertyBoolean(String name, boolean def) {
+		String val = getConfigProperty(name);
+		if ((val == null) || (val.length() == 0))
+			return def;
+		return "yes".equalsIgnoreCase(val) || "true".equalsIgnoreCase(val);
+	}
+	
     public static String readFileToString(String path) {
         byte[] buffer = new byte[(int) new File(path).length()];
         BufferedInputStream f = null;
@@ -303,11 +378,68 @@ public class Globals {
     public void createInternalConverter() {
     	if (logger == null)
     		logger = Logger.getLogger(this.getClass());
-    	internalConverter = new UniversalNDLConverter(logger);
+    	internalConverters = new InternalConverterPool(logger);
+    }
+    
+    public InternalConverterPool getInternalConverter() {
+    	return internalConverters;
     }
     
-    public IMultiFormatConverter getInternalConverter() {
-    	return internalConverter;
+    /**
+     * Created on first use because it needs configuration properties
+     * @return
+     */
+    public synchronized ManifestDedupCache getDedupCache() {
+    	if (dedupCache == null)
+    		dedupCache = new ManifestDedupCache();
+    	return dedupCache;
+    }
+
+    /**
+     * Cache of NDL to RSpec conversions. 
+     * Created on first use because it needs configuration properties
+     * @return
+     */
+    public synchronized ConversionCache getConversionCache() {
+    	if (conversionCache == null)
+    		conversionCache = new ConversionCache();
+    	return conversionCache;
+    }
+
+    /**
+     * Slivers of the last processed manifest of each slice.
+     * Created on first use because it needs configuration properties
+     * @return
+     */
+    public synchronized SliceDeltaTracker getDeltaTracker() {
+    	if (deltaTracker == null)
+    		deltaTracker = new SliceDeltaTracker();
+    	return deltaTracker;
+    }
+
+    /**
+     * Clients for the external converters (null if none are configured).
+     * Created on first use because it needs configuration properties
+     * @return
+     * @throws MalformedURLException
+     */
+    public synchronized ConverterPool getConverterPool() throws MalformedURLException {
+    	if ((converterPool == null) && (converters != null))
+    		converterPool = new ConverterPool(converters);
+    	return converterPool;
+    }
+
+    /**
+     * Shared pool that runs conversions and workers of all manifests being processed.
+     * Created on first use because it needs configuration properties
+     * @return
+     */
+    public synchronized ExecutorService getStagePool() {
+    	if (stagePool == null) {
+    		int threads = getConfigPropertyInt(STAGE_THREADS_PROPERTY, 2 * Runtime.getRuntime().availableProcessors());
+    		stagePool = Executors.newFixedThreadPool(Math.max(threads, 1), new ManifestExecutor.NamedThreadFactory("ManifestStage"));
+    	}
+    	return stagePool;
     }
     
 
@@ -0,0 +1,116 @@
+package org.renci.pubsub_daemon;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import orca.ndl_conversion.IMultiFormatConverter;
+import orca.ndl_conversion.UniversalNDLConverter;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Fixed set of internal NDL converters. A converter is checked out for the
+ * duration of one conversion so no two threads ever use the same instance.
+ * Optionally each instance converts a sample manifest at startup so the
+ * first real conversions don't pay for class loading and model setup. All
+ * instances must produce the same warm-up conversion, otherwise the pool
+ * refuses to start (instances sharing state they shouldn't would show up
+ * this way).
+ *
+ */
+public class InternalConverterPool {
+	private static final String INSTANCES_PROPERTY = "pubsub.internal.converter.instances";
+	private static final String WARMUP_PROPERTY = "pubsub.internal.converter.warmup";
+	private static final String WARMUP_SLICE = "urn:publicid:IDN+warmup+slice+warmup";
+
+	private final BlockingQueue<IMultiFormatConverter> idle;
+	private final int size;
+
+	private final AtomicLong conversions = new AtomicLong(0);
+	private final AtomicLong waits = new AtomicLong(0);
+	private final AtomicLong waitMs = new AtomicLong(0);
+
+	/**
+	 * @param logger
+	 * @throws RuntimeException if warm-up fails or instances disagree on it
+	 */
+	InternalConverterPool(Logger logger) {
+		Globals g = Globals.getInstance();
+		size = Math.max(g.getConfigPropertyInt(INSTANCES_PROPERTY, Runtime.getRuntime().availableProcessors()), 1);
+		idle = new ArrayBlockingQueue<IMultiFormatConverter>(size);
+
+		String warmupFile = g.getConfigProperty(WARMUP_PROPERTY);
+		String warmup = null;
+		if (warmupFile != null) {
+			warmup = Globals.readFileToString(warmupFile);
+			if ((warmup == null) || (warmup.length() == 0)) {
+				Globals.warn("Unable to read converter warm-up manifest " + warmupFile + ", skipping warm-up");
+				warmup = null;
+			}
+		}
+
+		Globals.info("Creating " + size + " internal NDL converters" + (warmup != null ? ", warming up with " + warmupFile : ""));
+		String expected = null;
+		for (int i = 0; i < size; i++) {
+			IMultiFormatConverter c = new UniversalNDLConverter(logger);
+			if (warmup != null) {
+				String out = warmUp(c, warmup, i);
+				if (expected == null)
+					expected = out;
+				else if (!out.equals(expected))
+					throw new RuntimeException("Internal converter " + i + " produced a different warm-up conversion than converter 0");
+			}
+			idle.add(c);
+		}
+	}
+
+	/**
+	 * Convert the warm-up manifest
+	 * @param c
+	 * @param warmup
+	 * @param i - instance number
+	 * @return the RSpec
+	 * @throws RuntimeException if the conversion failed
+	 */
+	private static String warmUp(IMultiFormatConverter c, String warmup, int i) {
+		Map<String, Object> res;
+		try {
+			res = c.manifestToRSpec3(warmup, WARMUP_SLICE);
+		} catch (Exception e) {
+			throw new RuntimeException("Internal converter " + i + " failed warm-up: " + e, e);
+		}
+		if ((res == null) || Boolean.TRUE.equals(res.get("err")) || (res.get("ret") == null))
+			throw new RuntimeException("Internal converter " + i + " failed warm-up: " + (res != null ? res.get("msg") : "no result"));
+		return (String)res.get("ret");
+	}
+
+	/**
+	 * Convert using an idle converter, waiting for one if all are busy
+	 * @param ndlMan
+	 * @param sliceUrn
+	 * @return converter result map
+	 * @throws InterruptedException
+	 */
+	public Map<String, Object> manifestToRSpec3(String ndlMan, String sliceUrn) throws InterruptedException {
+		IMultiFormatConverter c = idle.poll();
+		if (c == null) {
+			long start = System.currentTimeMillis();
+			c = idle.take();
+			waits.incrementAndGet();
+			waitMs.addAndGet(System.currentTimeMillis() - start);
+		}
+		try {
+			conversions.incrementAndGet();
+			return c.manifestToRSpec3(ndlMan, sliceUrn);
+		} finally {
+			idle.add(c);
+		}
+	}
+
+	public String getStats() {
+		return "internal converters: " + (size - idle.size()) + "/" + size + " busy, " + conversions.get() + " conversions, " +
+				waits.get() + " waited for a converter (" + waitMs.get() + "ms total)";
+	}
+}
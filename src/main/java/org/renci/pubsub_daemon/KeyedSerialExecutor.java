@@ -0,0 +1,137 @@
+package org.renci.pubsub_daemon;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs at most one task per key at a time on the target executor. Tasks
+ * submitted for a key that is already queued or running replace any
+ * task still waiting for that key (latest wins), so a burst of updates
+ * for one key results in at most one extra run. An optional debounce
+ * delays the first dispatch for a key to let bursts collapse.
+ *
+ */
+class KeyedSerialExecutor {
+	private final Executor target;
+	private final ScheduledExecutorService timer;
+	private final long debounceMs;
+
+	// guarded by this
+	private final Map<String, Slot> slots = new HashMap<String, Slot>();
+
+	private final AtomicLong coalesced = new AtomicLong(0);
+
+	private static class Slot {
+		// latest task not yet started
+		Runnable pending = null;
+	}
+
+	/**
+	 * @param target - executor that actually runs the tasks
+	 * @param timer - used for debounce, may be null if debounceMs is 0
+	 * @param debounceMs
+	 */
+	KeyedSerialExecutor(Executor target, ScheduledExecutorService timer, long debounceMs) {
+		this.target = target;
+		this.timer = timer;
+		this.debounceMs = ((timer != null) && (debounceMs > 0) ? debounceMs : 0);
+	}
+
+	void execute(String key, Runnable task) {
+		synchronized(this) {
+			Slot slot = slots.get(key);
+			if (slot != null) {
+				// a runner for this key is queued or running and will pick this up
+				if (slot.pending != null)
+					coalesced.incrementAndGet();
+				slot.pending = task;
+				return;
+			}
+			slot = new Slot();
+			slot.pending = task;
+			slots.put(key, slot);
+		}
+
+		final KeyedRunner runner = new KeyedRunner(key);
+		if (debounceMs > 0) {
+			timer.schedule(new Runnable() {
+				public void run() {
+					target.execute(runner);
+				}
+			}, debounceMs, TimeUnit.MILLISECONDS);
+		} else
+			target.execute(runner);
+	}
+
+	/**
+	 * Number of tasks that were replaced by newer ones before they could run
+	 * @return
+	 */
+	long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Number of keys with a task queued or running
+	 * @return
+	 */
+	synchronized int getActiveKeys() {
+		return slots.size();
+	}
+
+	/**
+	 * Take the next task for the key or release the key if there is none
+	 * @param key
+	 * @return
+	 */
+	private synchronized Runnable next(String key) {
+		Slot slot = slots.get(key);
+		if (slot == null)
+			return null;
+		Runnable r = slot.pending;
+		slot.pending = null;
+		if (r == null)
+			slots.remove(key);
+		return r;
+	}
+
+	/**
+	 * Runnable that is handed to the target executor. It picks up the newest
+	 * task for its key when it starts and keeps going while newer tasks
+	 * arrive, so tasks for one key never overlap.
+	 */
+	class KeyedRunner implements Runnable {
+		private final String key;
+
+		KeyedRunner(String key) {
+			this.key = key;
+		}
+
+		public void run() {
+			Runnable r;
+			while((r = next(key)) != null) {
+				try {
+					r.run();
+				} catch (RuntimeException re) {
+					Globals.error("Task for " + key + " failed: " + re);
+				}
+			}
+		}
+
+		/**
+		 * Called if the target executor drops this runner without running it.
+		 * Releases the key and returns the task that would have run (or null).
+		 * @return
+		 */
+		Runnable abandon() {
+			synchronized(KeyedSerialExecutor.this) {
+				Slot slot = slots.remove(key);
+				return (slot != null ? slot.pending : null);
+			}
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package org.renci.pubsub_daemon;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers a hash of the last successfully processed compressed manifest
+ * of each slice so byte-identical republishes can skip decoding, conversion
+ * and the workers altogether. Bounded LRU; entries older than the configured
+ * maximum age are treated as misses so slices get reprocessed periodically.
+ *
+ */
+public class ManifestDedupCache {
+	private static final String DEDUP_SIZE_PROPERTY = "pubsub.dedup.cache.size";
+	private static final String DEDUP_MAX_AGE_PROPERTY = "pubsub.dedup.max.age.hours";
+	private static final int DEFAULT_SIZE = 1000;
+	private static final long HOURS_TO_MS = 3600L*1000L;
+
+	// FNV-1a 64 bit
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * Hash and length of a compressed manifest, computed once per manifest
+	 * and outside the cache lock
+	 */
+	public static class Digest {
+		final long hash;
+		final int length;
+
+		Digest(long hash, int length) {
+			this.hash = hash;
+			this.length = length;
+		}
+
+		boolean matches(Digest d) {
+			return (hash == d.hash) && (length == d.length);
+		}
+	}
+
+	private static class SliceEntry {
+		final Digest digest;
+		final long processed;
+
+		SliceEntry(Digest digest, long processed) {
+			this.digest = digest;
+			this.processed = processed;
+		}
+	}
+
+	private final int maxSize;
+	private final long maxAgeMs;
+	private final Map<String, SliceEntry> entries;
+	private long hits = 0, misses = 0, expired = 0;
+
+	ManifestDedupCache() {
+		maxSize = Globals.getInstance().getConfigPropertyInt(DEDUP_SIZE_PROPERTY, DEFAULT_SIZE);
+		maxAgeMs = Globals.getInstance().getConfigPropertyLong(DEDUP_MAX_AGE_PROPERTY, 0) * HOURS_TO_MS;
+
+		// access-ordered map evicts least recently seen slices
+		entries = new LinkedHashMap<String, SliceEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, SliceEntry> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	public boolean enabled() {
+		return maxSize > 0;
+	}
+
+	/**
+	 * Digest of a compressed manifest to pass to isUnchanged() and record()
+	 * @param compressedManifest
+	 * @return null if the cache is disabled or there is no manifest
+	 */
+	public Digest digest(String compressedManifest) {
+		if (!enabled() || (compressedManifest == null))
+			return null;
+		return new Digest(hash(compressedManifest), compressedManifest.length());
+	}
+
+	/**
+	 * Was this exact compressed manifest the last one successfully processed for the slice?
+	 * @param sliceKey
+	 * @param digest - from digest()
+	 * @return
+	 */
+	public synchronized boolean isUnchanged(String sliceKey, Digest digest) {
+		if (digest == null)
+			return false;
+		SliceEntry e = entries.get(sliceKey);
+		if ((e == null) || !e.digest.matches(digest)) {
+			misses++;
+			return false;
+		}
+		if ((maxAgeMs > 0) && (System.currentTimeMillis() - e.processed > maxAgeMs)) {
+			expired++;
+			return false;
+		}
+		hits++;
+		return true;
+	}
+
+	/**
+	 * Remember the manifest after it has been fully processed
+	 * @param sliceKey
+	 * @param digest - from digest()
+	 */
+	public synchronized void record(String sliceKey, Digest digest) {
+		if (digest == null)
+			return;
+		entries.put(sliceKey, new SliceEntry(digest, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Forget the slice so its next manifest is processed regardless
+	 * @param sliceKey
+	 */
+	public synchronized void invalidate(String sliceKey) {
+		entries.remove(sliceKey);
+	}
+
+	public synchronized String getStats() {
+		if (!enabled())
+			return "dedup cache: disabled";
+		return "dedup cache: " + entries.size() + "/" + maxSize + " slices, hits " + hits + ", misses " + misses + ", expired " + expired;
+	}
+
+	/**
+	 * Payload is base64 text, so hashing chars directly avoids encoding it to bytes
+	 * @param s
+	 * @return
+	 */
+	static long hash(CharSequence s) {
+		long h = FNV_OFFSET;
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			h ^= s.charAt(i);
+			h *= FNV_PRIME;
+		}
+		return h;
+	}
+}
@@ -1,33 +1,44 @@
 package org.renci.pubsub_daemon;
 
-import java.io.StringReader;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathFactory;
-
 import org.jivesoftware.smackx.pubsub.Item;
 import org.jivesoftware.smackx.pubsub.ItemPublishEvent;
 import org.jivesoftware.smackx.pubsub.listener.ItemEventListener;
-import org.xml.sax.InputSource;
+import org.renci.pubsub_daemon.util.ItemPayloadExtractor;
 
 public class ManifestEventListener implements ItemEventListener<Item> {
-	private final ExecutorService exec;
-		private Pattern sliceNodePat;
+	private ManifestExecutor exec = null;
+	private Pattern sliceNodePat;
 	
 	ManifestEventListener() {		
-		// create a threadpool
-		exec = Executors.newCachedThreadPool();	
-		
 		// thread-safe
 		sliceNodePat = Pattern.compile("^/orca/sm/(.+)---(.+)/(.+)---(.+)/manifest$");
 	}
 	
+	/**
+	 * Pool is created on first use because it needs configuration properties
+	 * @return
+	 */
+	private synchronized ManifestExecutor getExecutor() {
+		if (exec == null)
+			exec = new ManifestExecutor();
+		return exec;
+	}
+	
+	/**
+	 * Pool statistics for periodic reporting
+	 * @return
+	 */
+	public synchronized String getStats() {
+		if (exec == null)
+			return "manifest pool: idle";
+		return exec.getStats();
+	}
+	
 	public void handlePublishedItems(ItemPublishEvent<Item> item) {
 		// get the manifest, de-base64. unzip, convert it and push it to GMOC
 		if (Globals.getInstance().isShuttingDown())
@@ -38,18 +49,17 @@ public class ManifestEventListener implements ItemEventListener<Item> {
 			Iterator<Item> it = items.iterator();
 
 			while(it.hasNext()) {
-				String itemXml = null;
+				CharSequence itemXml = null;
 				try {
-					itemXml = (String) it.next().toXML();
+					itemXml = it.next().toXML();
 				}
 				catch (Exception e){
 					Globals.error("Exception for toXML: " + e);
 				}
 
 				Globals.info("Received publish event on " + item.getNodeId());
-				InputSource is = new InputSource(new StringReader(itemXml));
-				XPath xp = XPathFactory.newInstance().newXPath();
-				String gzippedManifest = xp.evaluate("/item", is);
+				// text of the item without re-parsing it into a DOM (per-thread, reused)
+				String gzippedManifest = ItemPayloadExtractor.getInstance().extract(itemXml);
 
 				// get slice urn/name from item
 				// create/compile pattern
@@ -66,8 +76,8 @@ public class ManifestEventListener implements ItemEventListener<Item> {
 				String sliceSmName = matcher.group(1);
 				String sliceSmGuid = matcher.group(2);
 
-				// spawn a thread from a pool
-				exec.execute(new ManifestWorkerThread(gzippedManifest, sliceUrn, sliceUuid, sliceSmName, sliceSmGuid));
+				// queue up in a bounded pool (may block, shed or spill depending on policy)
+				getExecutor().execute(new ManifestWorkerThread(gzippedManifest, sliceUrn, sliceUuid, sliceSmName, sliceSmGuid));
 			}
 		} catch (Exception e) {
 			Globals.error("Unable to parse item XML: " + e);
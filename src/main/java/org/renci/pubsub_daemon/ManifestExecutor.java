@@ -0,0 +1,402 @@
+package org.renci.pubsub_daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool that runs manifest worker threads. It has a fixed number of
+ * threads and a bounded queue; what happens when the queue is full is decided
+ * by the overload policy:
+ * - block: the pubsub listener thread waits until there is room in the queue
+ * - shed: the oldest queued manifest is dropped (SM will republish eventually)
+ * - spill: the manifest is saved to a spill directory and replayed once the queue drains
+ * 
+ * Manifests of the same slice never run concurrently; if newer versions arrive while
+ * one is queued or running, only the newest one is kept (see KeyedSerialExecutor).
+ *
+ */
+public class ManifestExecutor {
+	private static final String EXECUTOR_THREADS_PROPERTY = "pubsub.executor.threads";
+	private static final String EXECUTOR_QUEUE_PROPERTY = "pubsub.executor.queue.size";
+	private static final String EXECUTOR_POLICY_PROPERTY = "pubsub.executor.overload.policy";
+	private static final String EXECUTOR_SPILL_DIR_PROPERTY = "pubsub.executor.spill.dir";
+	private static final String EXECUTOR_DEBOUNCE_PROPERTY = "pubsub.executor.debounce.ms";
+
+	private static final int DEFAULT_QUEUE_SIZE = 100;
+	private static final String DEFAULT_SPILL_DIR = "/var/spool/blowhole";
+	private static final String SPILL_SUFFIX = ".spill";
+	private static final long REPLAY_PERIOD_MS = 1000;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// spill files start with this, followed by the sequence number of the manifest
+	private static final int SPILL_MAGIC = 0xB10E5EC0;
+	// slices whose newest queued manifest is remembered (spill policy only)
+	private static final int MAX_QUEUED_SLICES = 10000;
+
+	public enum OverloadPolicy { BLOCK, SHED, SPILL };
+
+	private final ThreadPoolExecutor pool;
+	private final OverloadPolicy policy;
+	private final File spillDir;
+	private final KeyedSerialExecutor keyed;
+	private ScheduledExecutorService timer = null;
+	// sequence number of the newest manifest queued (not spilled) for each slice, so older spilled
+	// ones are not replayed over it (spill policy only). Bounded LRU; for a slice evicted
+	// from it an older spilled manifest can be replayed after a newer one.
+	private final Map<String, Long> lastQueued = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > MAX_QUEUED_SLICES;
+		}
+	};
+	// sequence numbers of manifests in order of arrival, continued across restarts from the spill directory
+	private final AtomicLong acceptSeq = new AtomicLong(0);
+
+	private final AtomicLong shed = new AtomicLong(0);
+	private final AtomicLong spilled = new AtomicLong(0);
+	private final AtomicLong replayed = new AtomicLong(0);
+	private final AtomicLong rejected = new AtomicLong(0);
+
+	ManifestExecutor() {
+		Globals g = Globals.getInstance();
+
+		int threads = g.getConfigPropertyInt(EXECUTOR_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+		int queueSize = g.getConfigPropertyInt(EXECUTOR_QUEUE_PROPERTY, DEFAULT_QUEUE_SIZE);
+		if (threads < 1)
+			threads = 1;
+		if (queueSize < 1)
+			queueSize = 1;
+
+		OverloadPolicy p = OverloadPolicy.BLOCK;
+		String policyName = g.getConfigProperty(EXECUTOR_POLICY_PROPERTY);
+		if (policyName != null) {
+			try {
+				p = OverloadPolicy.valueOf(policyName.toUpperCase());
+			} catch (IllegalArgumentException iae) {
+				Globals.warn("Unknown overload policy " + policyName + ", using " + p);
+			}
+		}
+		policy = p;
+
+		String spillDirName = g.getConfigProperty(EXECUTOR_SPILL_DIR_PROPERTY);
+		spillDir = new File(spillDirName != null ? spillDirName : DEFAULT_SPILL_DIR);
+
+		long debounceMs = g.getConfigPropertyLong(EXECUTOR_DEBOUNCE_PROPERTY, 0);
+
+		Globals.info("Creating manifest pool with " + threads + " threads, queue of " + queueSize + 
+				", overload policy " + policy + " and debounce of " + debounceMs + "ms");
+		pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new NamedThreadFactory("ManifestWorker"), new OverloadHandler());
+
+		if ((policy == OverloadPolicy.SPILL) || (debounceMs > 0))
+			timer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("ManifestTimer"));
+
+		keyed = new KeyedSerialExecutor(new Executor() {
+			@Override
+			public void execute(Runnable r) {
+				try {
+					pool.execute(r);
+				} catch (RejectedExecutionException ree) {
+					rejected.incrementAndGet();
+					ManifestWorkerThread mwt = abandon(r);
+					Globals.error("Unable to queue manifest" + (mwt != null ? " for slice " + mwt.getSliceUrn() : "") + ": " + ree.getMessage());
+				}
+			}
+		}, timer, debounceMs);
+
+		if (policy == OverloadPolicy.SPILL) {
+			if (!spillDir.isDirectory() && !spillDir.mkdirs())
+				Globals.error("Unable to create spill directory " + spillDir + ", overflowing manifests will be lost");
+			for (File f: listSpilled())
+				acceptSeq.set(Math.max(acceptSeq.get(), spillSeq(f)));
+			// also picks up manifests spilled by previous runs
+			timer.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					replaySpilled();
+				}
+			}, REPLAY_PERIOD_MS, REPLAY_PERIOD_MS, TimeUnit.MILLISECONDS);
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				Globals.info("Destroying the manifest pool");
+				shutdown();
+			}
+		});
+	}
+
+	/**
+	 * Queue up a manifest for processing, subject to overload policy. Replaces
+	 * an older manifest of the same slice that hasn't started yet.
+	 * @param mwt
+	 */
+	void execute(ManifestWorkerThread mwt) {
+		if (policy == OverloadPolicy.SPILL)
+			mwt.setSequence(acceptSeq.incrementAndGet());
+		keyed.execute(mwt.getSliceKey(), mwt);
+		if (policy == OverloadPolicy.SPILL)
+			markQueued(mwt);
+	}
+
+	/**
+	 * Remember the manifest as the newest one queued for its slice, unless it was spilled
+	 * @param mwt
+	 */
+	private void markQueued(ManifestWorkerThread mwt) {
+		if (mwt.isSpilled())
+			return;
+		synchronized(lastQueued) {
+			Long seq = lastQueued.get(mwt.getSliceKey());
+			if ((seq == null) || (seq < mwt.getSequence()))
+				lastQueued.put(mwt.getSliceKey(), mwt.getSequence());
+		}
+	}
+
+	/**
+	 * Stop accepting manifests. With spill policy whatever is still queued
+	 * is saved to disk so it can be replayed on restart.
+	 */
+	void shutdown() {
+		if (timer != null)
+			timer.shutdownNow();
+		if (policy == OverloadPolicy.SPILL) {
+			List<Runnable> left = new ArrayList<Runnable>();
+			pool.getQueue().drainTo(left);
+			for (Runnable r: left) {
+				ManifestWorkerThread mwt = abandon(r);
+				if (mwt != null)
+					spill(mwt);
+			}
+		}
+		pool.shutdown();
+	}
+
+	/**
+	 * Queue depth, activity and overload counters
+	 * @return
+	 */
+	public String getStats() {
+		return "manifest pool: active " + pool.getActiveCount() + ", queued " + pool.getQueue().size() +
+				"/" + (pool.getQueue().size() + pool.getQueue().remainingCapacity()) +
+				", completed " + pool.getCompletedTaskCount() + ", shed " + shed.get() + ", spilled " + spilled.get() +
+				", replayed " + replayed.get() + ", rejected " + rejected.get() + 
+				", slices in flight " + keyed.getActiveKeys() + ", superseded " + keyed.getCoalesced();
+	}
+
+	/**
+	 * Release the slice of a queued runnable that will not be run and
+	 * return the manifest it would have processed
+	 * @param r
+	 * @return
+	 */
+	private static ManifestWorkerThread abandon(Runnable r) {
+		if (r instanceof KeyedSerialExecutor.KeyedRunner)
+			r = ((KeyedSerialExecutor.KeyedRunner)r).abandon();
+		if (r instanceof ManifestWorkerThread)
+			return (ManifestWorkerThread)r;
+		return null;
+	}
+
+	/**
+	 * Decides what to do with a manifest that doesn't fit in the queue
+	 */
+	private class OverloadHandler implements RejectedExecutionHandler {
+
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if (executor.isShutdown())
+				throw new RejectedExecutionException("manifest pool is shut down");
+
+			switch(policy) {
+			case BLOCK:
+				try {
+					executor.getQueue().put(r);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new RejectedExecutionException("interrupted while waiting for room in the queue");
+				}
+				break;
+			case SHED:
+				Runnable oldest = executor.getQueue().poll();
+				if (!executor.getQueue().offer(r))
+					throw new RejectedExecutionException("unable to make room in the queue");
+				if (oldest != null) {
+					ManifestWorkerThread dropped = abandon(oldest);
+					shed.incrementAndGet();
+					if (dropped != null)
+						Globals.warn("Manifest pool is full, dropping queued manifest for slice " + dropped.getSliceUrn());
+				}
+				break;
+			case SPILL:
+				ManifestWorkerThread mwt = abandon(r);
+				if ((mwt != null) && !spill(mwt))
+					Globals.error("Unable to spill manifest for slice " + mwt.getSliceUrn() + " to " + spillDir + ", dropping it");
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Save manifest to spill directory
+	 * @param mwt
+	 * @return
+	 */
+	private boolean spill(ManifestWorkerThread mwt) {
+		if (mwt.getSequence() == 0)
+			mwt.setSequence(acceptSeq.incrementAndGet());
+		// names sort in order of arrival
+		String name = String.format("%020d", mwt.getSequence());
+		File tmp = new File(spillDir, name + ".tmp");
+		DataOutputStream dos = null;
+		try {
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			dos.writeInt(SPILL_MAGIC);
+			dos.writeLong(mwt.getSequence());
+			dos.writeUTF(mwt.getSliceUrn());
+			dos.writeUTF(mwt.getSliceUuid());
+			dos.writeUTF(mwt.getSliceSmName());
+			dos.writeUTF(mwt.getSliceSmGuid());
+			byte[] man = mwt.getCompressedManifest().getBytes(UTF8);
+			dos.writeInt(man.length);
+			dos.write(man);
+			dos.close();
+			dos = null;
+			if (!tmp.renameTo(new File(spillDir, name + SPILL_SUFFIX)))
+				throw new IOException("unable to rename " + tmp);
+			mwt.setSpilled();
+			spilled.incrementAndGet();
+			Globals.info("Manifest pool is full, spilled manifest for slice " + mwt.getSliceUrn() + " to " + spillDir);
+			return true;
+		} catch (IOException ie) {
+			Globals.error("Unable to spill manifest for slice " + mwt.getSliceUrn() + ": " + ie);
+			tmp.delete();
+			return false;
+		} finally {
+			if (dos != null) try { dos.close(); } catch (IOException ignored) { }
+		}
+	}
+
+	/**
+	 * Move spilled manifests back into the queue while there is room
+	 */
+	private void replaySpilled() {
+		try {
+			for (File f: listSpilled()) {
+				if (pool.getQueue().remainingCapacity() == 0)
+					return;
+				ManifestWorkerThread mwt = readSpilled(f);
+				f.delete();
+				if (mwt == null)
+					continue;
+				// don't let a spilled manifest overwrite a newer one that got in after it
+				Long queued;
+				synchronized(lastQueued) {
+					queued = lastQueued.get(mwt.getSliceKey());
+				}
+				if ((queued != null) && (queued > mwt.getSequence())) {
+					Globals.debug("Discarding spilled manifest for slice " + mwt.getSliceUrn() + ", a newer one has been received");
+					continue;
+				}
+				replayed.incrementAndGet();
+				Globals.debug("Replaying spilled manifest for slice " + mwt.getSliceUrn());
+				keyed.execute(mwt.getSliceKey(), mwt);
+				markQueued(mwt);
+			}
+		} catch (RuntimeException re) {
+			Globals.error("Unable to replay spilled manifests: " + re);
+		}
+	}
+
+	/**
+	 * Spilled manifests in order of arrival
+	 * @return
+	 */
+	private File[] listSpilled() {
+		File[] files = spillDir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SPILL_SUFFIX);
+			}
+		});
+		if (files == null)
+			return new File[0];
+		Arrays.sort(files);
+		return files;
+	}
+
+	private static long spillSeq(File f) {
+		try {
+			return Long.parseLong(f.getName().substring(0, f.getName().length() - SPILL_SUFFIX.length()));
+		} catch (RuntimeException re) {
+			return 0;
+		}
+	}
+
+	private ManifestWorkerThread readSpilled(File f) {
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			if (dis.readInt() != SPILL_MAGIC)
+				throw new IOException("not a spilled manifest");
+			long seq = dis.readLong();
+			String sliceUrn = dis.readUTF();
+			String sliceUuid = dis.readUTF();
+			String sliceSmName = dis.readUTF();
+			String sliceSmGuid = dis.readUTF();
+			byte[] man = new byte[dis.readInt()];
+			dis.readFully(man);
+			ManifestWorkerThread mwt = new ManifestWorkerThread(new String(man, UTF8), sliceUrn, sliceUuid, sliceSmName, sliceSmGuid);
+			mwt.setSequence(seq);
+			return mwt;
+		} catch (IOException ie) {
+			Globals.error("Unable to read spilled manifest " + f + ", discarding: " + ie);
+			return null;
+		} finally {
+			if (dis != null) try { dis.close(); } catch (IOException ignored) { }
+		}
+	}
+
+	/**
+	 * Names pool threads so they are recognizable in the logs
+	 */
+	static class NamedThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger(0);
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
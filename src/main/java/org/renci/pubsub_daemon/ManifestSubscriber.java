@@ -124,7 +124,12 @@ public class ManifestSubscriber implements IPubSubReconnectCallback {
 			Globals.getInstance().setConverters(converters);
 		} else { 
 			// 	create internal NDL converter
-			Globals.getInstance().createInternalConverter();
+			try {
+				Globals.getInstance().createInternalConverter();
+			} catch (RuntimeException re) {
+				logger.error("Unable to create internal NDL converters: " + re.getMessage());
+				System.exit(1);
+			}
 		}
 		
 		Globals.info("Creating XMPP connection for new account creation");
@@ -1,22 +1,32 @@
 package org.renci.pubsub_daemon;
 
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.DataFormatException;
 
-import orca.ndl_conversion.IMultiFormatConverter;
-
-import org.apache.xmlrpc.XmlRpcException;
-import org.apache.xmlrpc.client.XmlRpcClient;
-import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
 import org.renci.pubsub_daemon.workers.AbstractWorker;
 import org.renci.pubsub_daemon.workers.AbstractWorker.DocType;
+import org.renci.pubsub_daemon.workers.INdlParseListener;
+import org.renci.pubsub_daemon.workers.ManifestContext;
+import org.renci.pubsub_daemon.workers.NdlParseDispatcher;
+import org.renci.pubsub_daemon.workers.SliceDelta;
 
 /**
  * This thread takes a base-64-encoded and gzipped manifest,
@@ -25,17 +35,41 @@ import org.renci.pubsub_daemon.workers.AbstractWorker.DocType;
  * 
  * It also puts manifests into the database
  * 
+ * Conversion and workers run on the shared stage pool; each worker is
+ * started as soon as the manifest types it lists are available. A stage
+ * that times out is cancelled, but workers blocked in JDBC or XML-RPC
+ * calls don't notice, so run() only returns (and lets the next manifest
+ * of the slice go) once every stage it started has actually finished.
+ * 
  * @author ibaldin
  *
  */
 public class ManifestWorkerThread implements Runnable {
 
 	private static final String MANIFEST_TO_RSPEC = "ndlConverter.manifestToRSpec3";
+	private static final String WORKER_TIMEOUT_PROPERTY = "pubsub.worker.timeout";
+	private static final String MAX_SIZE_PROPERTY = "pubsub.manifest.max.size";
 	private final String sliceUrn;
 	private final String sliceUuid;
 	private final String sliceSmName;
 	private final String sliceSmGuid;
 	private Map<DocType, String> manifests = new HashMap<DocType, String>();
+	// what changed since the last manifest of the slice, known once RSpec is available
+	private SliceDelta delta = null;
+	// order of arrival and whether it was spilled, used by the spill overload policy
+	private long sequence = 0;
+	private volatile boolean spilled = false;
+
+	// stages skipped because no worker consumes what they produce
+	private static final AtomicLong decodesSkipped = new AtomicLong(0);
+	private static final AtomicLong parsesSkipped = new AtomicLong(0);
+	private static final AtomicLong conversionsSkipped = new AtomicLong(0);
+	private static final AtomicLong stagesTimedOut = new AtomicLong(0);
+	// how often to complain about a cancelled stage that is still running
+	private static final long STAGE_STUCK_WARN_MS = 60000;
+
+	// stages started for this manifest
+	private final List<Stage<?>> stagesStarted = new ArrayList<Stage<?>>();
 
 	ManifestWorkerThread(String manifest, String sliceUrn, String sliceUuid, String sliceSmName, String sliceSmGuid) {
 		Globals.debug("Worker thread starting for slice "  + sliceUrn + " from " + sliceSmName);
@@ -46,27 +80,360 @@ public class ManifestWorkerThread implements Runnable {
 		this.sliceSmGuid = sliceSmGuid;
 	}
 
+	String getCompressedManifest() {
+		return manifests.get(DocType.COMPRESSED_NDL_MANIFEST);
+	}
+
+	String getSliceUrn() {
+		return sliceUrn;
+	}
+
+	String getSliceUuid() {
+		return sliceUuid;
+	}
+
+	String getSliceSmName() {
+		return sliceSmName;
+	}
+
+	String getSliceSmGuid() {
+		return sliceSmGuid;
+	}
+
+	long getSequence() {
+		return sequence;
+	}
+
+	void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	boolean isSpilled() {
+		return spilled;
+	}
+
+	void setSpilled() {
+		spilled = true;
+	}
+
+	/**
+	 * Identifies the slice across SMs; manifests with the same key are processed in order
+	 * @return
+	 */
+	String getSliceKey() {
+		return sliceSmName + "/" + sliceUuid;
+	}
+
 	public void run() {
-		Globals.info("Decoding/decompressing manifest for slice " + sliceUrn);
+		// skip byte-identical republishes of a manifest we already processed
+		ManifestDedupCache dedup = Globals.getInstance().getDedupCache();
+		ManifestDedupCache.Digest digest = dedup.digest(manifests.get(DocType.COMPRESSED_NDL_MANIFEST));
+		if (dedup.isUnchanged(getSliceKey(), digest)) {
+			Globals.info("Manifest for slice " + sliceUrn + " is unchanged since it was last processed, skipping");
+			return;
+		}
+
+		// only produce the document types some worker actually consumes
+		List<AbstractWorker> workers = Globals.getInstance().getWorkers();
+		Set<DocType> needed = EnumSet.noneOf(DocType.class);
+		for(AbstractWorker w: workers)
+			needed.addAll(w.listDocTypes());
+
 		if (Globals.getInstance().isDebugOn())
 			Globals.writeToFile(manifests.get(DocType.COMPRESSED_NDL_MANIFEST), "/tmp/rawman" + sliceUrn + "---" + sliceUuid);
 
+		// RSpec is converted from NDL, so NDL is needed for either
 		String ndlMan = null;
+		if (needed.contains(DocType.NDL_MANIFEST) || needed.contains(DocType.RSPEC_MANIFEST)) {
+			Globals.info("Decoding/decompressing manifest for slice " + sliceUrn);
+
+			try {
+				ndlMan = CompressEncode.decodeDecompress(manifests.get(DocType.COMPRESSED_NDL_MANIFEST), 
+						Globals.getInstance().getConfigPropertyLong(MAX_SIZE_PROPERTY, CompressEncode.DEFAULT_MAX_SIZE));
+			} catch (DataFormatException dfe) {
+				Globals.error("Unable to decode manifest: " + dfe.getMessage());
+				return;
+			}
+
+			if (ndlMan == null)
+				return;
+
+			manifests.put(DocType.NDL_MANIFEST, ndlMan);
+
+			if (Globals.getInstance().isDebugOn())
+				Globals.writeToFile(ndlMan, "/tmp/ndlman" + sliceUrn + "---" + sliceUuid);
+		} else {
+			Globals.debug("No worker needs the NDL manifest, skipping decoding");
+			decodesSkipped.incrementAndGet();
+		}
+
+		// workers start as soon as the document types they declare are available
+		List<WorkerRun> pending = new LinkedList<WorkerRun>(), started = new ArrayList<WorkerRun>();
+		for(AbstractWorker w: workers) {
+			INdlParseListener l = (ndlMan != null ? w.getNdlParseListener(sliceUrn) : null);
+			pending.add(new WorkerRun(w, l));
+		}
+
+		ExecutorService stages = Globals.getInstance().getStagePool();
+		long timeoutMs = Globals.getInstance().getConfigPropertyLong(WORKER_TIMEOUT_PROPERTY, 0) * 1000L;
+		boolean processed = true;
+		Future<String> conversion = null;
 		try {
-			ndlMan = CompressEncode.decodeDecompress(manifests.get(DocType.COMPRESSED_NDL_MANIFEST));
-		} catch (DataFormatException dfe) {
-			Globals.error("Unable to decode manifest");
+			// conversion is the slowest stage, get it going first
+			if (needed.contains(DocType.RSPEC_MANIFEST)) {
+				final String ndl = ndlMan;
+				conversion = submitStage(stages, new Callable<String>() {
+					public String call() {
+						return convertToRSpec(ndl);
+					}
+				});
+			} else {
+				Globals.debug("No worker needs the RSpec manifest, skipping conversion");
+				conversionsSkipped.incrementAndGet();
+			}
+
+			// workers that don't need the parsed model can go right away
+			startReady(pending, started, stages, false, timeoutMs);
+
+			// parse NDL once for all workers that want the model
+			List<INdlParseListener> listeners = new ArrayList<INdlParseListener>();
+			for(WorkerRun wr: pending) {
+				if (wr.parsed != null)
+					listeners.add(wr.parsed);
+			}
+			if (!listeners.isEmpty()) {
+				Globals.debug("Parsing NDL manifest for " + listeners.size() + " workers");
+				NdlParseDispatcher.parse(ndlMan, listeners);
+			} else
+				parsesSkipped.incrementAndGet();
+			startReady(pending, started, stages, true, timeoutMs);
+
+			if (conversion != null) {
+				String rspecMan = waitFor(conversion, timeoutMs, "RSpec conversion");
+				if (rspecMan != null) {
+					manifests.put(DocType.RSPEC_MANIFEST, rspecMan);
+					delta = Globals.getInstance().getDeltaTracker().update(getSliceKey(), rspecMan);
+					startReady(pending, started, stages, true, timeoutMs);
+				}
+			}
+
+			// skip workers if we can't give them the type of manifest they need
+			for(WorkerRun wr: pending) {
+				processed = false;
+				Globals.info("Manifest types " + wr.worker.listDocTypes() + " are not available, skipping " + wr.worker.getName());
+			}
+
+			for(WorkerRun wr: started) {
+				Boolean ok = waitFor(wr.result, (timeoutMs > 0 ? Math.max(wr.deadline - System.currentTimeMillis(), 1) : 0), 
+						wr.worker.getName());
+				if ((ok == null) || !ok)
+					processed = false;
+			}
+		} catch (InterruptedException ie) {
+			Globals.warn("Interrupted while processing manifest for slice " + sliceUrn);
+			if (conversion != null)
+				conversion.cancel(true);
+			for(WorkerRun wr: started)
+				wr.result.cancel(true);
+			// shutting down, nothing else of the slice will run
+			Globals.getInstance().getDeltaTracker().forget(getSliceKey());
+			Thread.currentThread().interrupt();
+			return;
+		} catch (RuntimeException re) {
+			// a bug in one of the stages; don't leave workers running unattended
+			Globals.error("Unexpected error processing manifest for slice " + sliceUrn + ": " + re);
+			if (conversion != null)
+				conversion.cancel(true);
+			for(WorkerRun wr: started)
+				wr.result.cancel(true);
+			awaitStages();
+			Globals.getInstance().getDeltaTracker().forget(getSliceKey());
 			return;
 		}
 
-		if (ndlMan == null)
+		// stages that timed out may still be running
+		if (!awaitStages()) {
+			Globals.getInstance().getDeltaTracker().forget(getSliceKey());
 			return;
+		}
+
+		// only remember manifests that went through cleanly so failures get retried on republish
+		if (processed)
+			dedup.record(getSliceKey(), digest);
+		else
+			Globals.getInstance().getDeltaTracker().forget(getSliceKey());
+	}
+
+	/**
+	 * A worker and its share of processing of this manifest
+	 */
+	private static class WorkerRun {
+		final AbstractWorker worker;
+		final INdlParseListener parsed;
+		Future<Boolean> result = null;
+		long deadline = 0;
+
+		WorkerRun(AbstractWorker worker, INdlParseListener parsed) {
+			this.worker = worker;
+			this.parsed = parsed;
+		}
+	}
+
+	/**
+	 * Submit pending workers whose document types are all available (and whose 
+	 * parsed model is ready if they asked for one)
+	 * @param pending
+	 * @param started
+	 * @param stages
+	 * @param parseDone
+	 * @param timeoutMs
+	 */
+	private void startReady(List<WorkerRun> pending, List<WorkerRun> started, ExecutorService stages, boolean parseDone, long timeoutMs) {
+		for(Iterator<WorkerRun> it = pending.iterator(); it.hasNext();) {
+			final WorkerRun wr = it.next();
+			if ((wr.parsed != null) && !parseDone)
+				continue;
+			if (!manifests.keySet().containsAll(wr.worker.listDocTypes()))
+				continue;
+			it.remove();
+			// each worker gets its own view, later stages keep adding to ours
+			final ManifestContext ctx = new ManifestContext(manifests, wr.parsed, delta, sliceUrn, sliceUuid, sliceSmName, sliceSmGuid);
+			wr.deadline = System.currentTimeMillis() + timeoutMs;
+			wr.result = submitStage(stages, new Callable<Boolean>() {
+				public Boolean call() {
+					Globals.info("Processing manifest with " + wr.worker.getName());
+					try {
+						wr.worker.processManifest(ctx);
+						return true;
+					} catch(RuntimeException re) {
+						Globals.error("Unable to process due to runtime error: " + re);
+					} catch(Exception e) {
+						Globals.error("Unable to process due to exception: " + e);
+						e.printStackTrace();
+					}
+					return false;
+				}
+			});
+			started.add(wr);
+		}
+	}
+
+	/**
+	 * Submit a stage, remembering it so run() can wait for it to really finish
+	 * @param stages
+	 * @param c
+	 * @return
+	 */
+	private <T> Future<T> submitStage(ExecutorService stages, Callable<T> c) {
+		Stage<T> s = new Stage<T>(c);
+		s.future = stages.submit(s);
+		stagesStarted.add(s);
+		return s.future;
+	}
+
+	/**
+	 * Wait until every stage started for this manifest has finished running, including
+	 * cancelled ones that ignored the interrupt
+	 * @return false if interrupted while waiting
+	 */
+	private boolean awaitStages() {
+		for (Stage<?> s: stagesStarted) {
+			try {
+				while (!s.awaitFinished(STAGE_STUCK_WARN_MS))
+					Globals.warn("A cancelled stage is still running on slice " + sliceUrn + ", holding later manifests of the slice");
+			} catch (InterruptedException ie) {
+				Globals.warn("Interrupted waiting for stages of slice " + sliceUrn);
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A stage that knows whether it has finished running, which its Future doesn't
+	 * say once it has been cancelled
+	 */
+	private static class Stage<T> implements Callable<T> {
+		private static final int NEW = 0, RUNNING = 1, ABANDONED = 2;
+		private final Callable<T> c;
+		private final AtomicInteger state = new AtomicInteger(NEW);
+		private final CountDownLatch finished = new CountDownLatch(1);
+		Future<T> future = null;
+
+		Stage(Callable<T> c) {
+			this.c = c;
+		}
+
+		public T call() throws Exception {
+			// cancelled before it got going
+			if (!state.compareAndSet(NEW, RUNNING))
+				return null;
+			try {
+				return c.call();
+			} finally {
+				finished.countDown();
+			}
+		}
+
+		/**
+		 * @param ms
+		 * @return whether the stage finished, or will never run, within the time
+		 * @throws InterruptedException
+		 */
+		boolean awaitFinished(long ms) throws InterruptedException {
+			if (future.isDone() && state.compareAndSet(NEW, ABANDONED))
+				return true;
+			if (state.get() == ABANDONED)
+				return true;
+			return finished.await(ms, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Wait for a stage to finish, cancelling it if it takes longer than the timeout
+	 * @param f
+	 * @param timeoutMs - 0 means wait indefinitely
+	 * @param what
+	 * @return stage result or null if it failed or timed out
+	 * @throws InterruptedException
+	 */
+	private <T> T waitFor(Future<T> f, long timeoutMs, String what) throws InterruptedException {
+		try {
+			if (timeoutMs > 0)
+				return f.get(timeoutMs, TimeUnit.MILLISECONDS);
+			return f.get();
+		} catch (TimeoutException te) {
+			stagesTimedOut.incrementAndGet();
+			Globals.error(what + " timed out on slice " + sliceUrn + ", cancelling");
+			f.cancel(true);
+		} catch (ExecutionException ee) {
+			Globals.error(what + " failed on slice " + sliceUrn + ": " + ee.getCause());
+		} catch (CancellationException ce) {
+			Globals.error(what + " was cancelled on slice " + sliceUrn);
+		}
+		return null;
+	}
+
+
+	/**
+	 * Convert NDL manifest to RSpec using external converters if configured, internal otherwise
+	 * @param ndlMan
+	 * @return RSpec manifest or null on failure
+	 */
+	private String convertToRSpec(String ndlMan) {
+		// identical NDL converts to identical RSpec
+		ConversionCache cache = Globals.getInstance().getConversionCache();
+		String cacheKey = null;
+		if (cache.enabled()) {
+			cacheKey = ConversionCache.key(ndlMan, sliceUrn);
+			String rspecMan = cache.get(cacheKey);
+			if (rspecMan != null) {
+				Globals.info("Using cached RSpec conversion for slice " + sliceUrn);
+				return rspecMan;
+			}
+		}
 
-		manifests.put(DocType.NDL_MANIFEST, ndlMan);
-		
-		if (Globals.getInstance().isDebugOn())
-			Globals.writeToFile(ndlMan, "/tmp/ndlman" + sliceUrn + "---" + sliceUuid);
-		
 		Globals.debug("Running through NDL converter");
 
 		String rspecMan = null;
@@ -77,100 +444,63 @@ public class ManifestWorkerThread implements Runnable {
 				
 			} else {
 				Globals.info("Invoking internal converter");
-				IMultiFormatConverter ucc = Globals.getInstance().getInternalConverter();
+				InternalConverterPool ucc = Globals.getInstance().getInternalConverter();
 
 				Map<String, Object> res = ucc.manifestToRSpec3(ndlMan, sliceUrn);
 				if ((res.get("err") != null) && ((Boolean)res.get("err") == true)) {
 					Globals.error("Error encountered while converting to RSpec: " + res.get("err"));
-					return;
+					return null;
 				}
 				else
 					rspecMan = (String)res.get("ret");
 			}
 			if (rspecMan == null) {
 				Globals.error("RSpec manifest is null, conversion failed, exiting");
-				return;
+				return null;
 			}
 			
 		} catch (Exception e) {
 			Globals.error("Error converting NDL manifest: " + e.getMessage());
-			return;
+			return null;
 		}
 
 		Globals.debug("Conversion successful");
 		if (Globals.getInstance().isDebugOn())
 			Globals.writeToFile(rspecMan, "/tmp/rspecman" + sliceUrn + "---" + sliceUuid);
-		
-		manifests.put(DocType.RSPEC_MANIFEST, rspecMan);
-		
-		// go through the workers and let them process
-		for(AbstractWorker w: Globals.getInstance().getWorkers()) {
-			Globals.info("Processing manifest with " + w.getName());
-			List<DocType> types = w.listDocTypes();
-			boolean notAvailable = false;
-			for (DocType t: types) {
-				if (manifests.get(t) == null) {
-					notAvailable = true;
-					Globals.info("Manifest type " + t + " is not available, skipping");
-					break;
-				}
-			}
-			// skip this worker if we can't give it the type of manifest it needs
-			if (notAvailable) 
-				continue;
-			
-			try {
-				w.processManifest(manifests, sliceUrn, sliceUuid, sliceSmName, sliceSmGuid);
-			} catch(RuntimeException re) {
-				Globals.error("Unable to process due to runtime error: " + re);
-			} catch(Exception e) {
-				Globals.error("Unable to process due to exception: " + e);
-				e.printStackTrace();
-			}
-		}
+		if (cacheKey != null)
+			cache.put(cacheKey, rspecMan);
+		return rspecMan;
 	}
 
+	/**
+	 * Counts of processing stages skipped because no worker needed their output
+	 * @return
+	 */
+	static String getStats() {
+		return "skipped decodes " + decodesSkipped.get() + ", parses " + parsesSkipped.get() + ", conversions " + conversionsSkipped.get() + 
+				"; stages timed out " + stagesTimedOut.get();
+	}
 
 	/**
-	 * Make RR calls to converters until success or list exhausted
+	 * Call converters in order of preference until success or list exhausted
 	 * @param call
 	 * @param params
 	 * @return
 	 */
 	@SuppressWarnings("unchecked")
 	protected String callConverter(String call, Object[] params) throws MalformedURLException, Exception  {
-		Map<String, Object> ret = null;
-
-		// make a round robin call to all converters (list is shuffled to do load balancing)
 		Globals.debug("Choosing NDL converter from list: " + Globals.getInstance().getConverters());
-		ArrayList<String> urlList = new ArrayList<String>(Arrays.asList(Globals.getInstance().getConverters().split(",")));
-		Collections.shuffle(urlList);
-		for(String cUrl: urlList) {
-			try {
-				XmlRpcClientConfigImpl config = new XmlRpcClientConfigImpl();
-				config.setServerURL(new URL(cUrl.trim()));
-				XmlRpcClient client = new XmlRpcClient();
-				client.setConfig(config);
-
-				Globals.debug("Invoking NDL converter " + call + " at " + cUrl);
-				ret = (Map<String, Object>)client.execute(call, params);
-
-				break;
-			} catch (XmlRpcException e) {
-				// skip it
-				Globals.error("Unable to contact NDL converter at " + cUrl + " due to " + e);
-				continue;
-			} catch (ClassCastException ce) {
-				// old converter, skip it
-				Globals.error("Unable to use NDL converter at " + cUrl + " because converter return does not match expected type");
-				continue;
-			}
-		}
+		Object res = Globals.getInstance().getConverterPool().execute(call, params);
 
-		if (ret == null) {
+		if (res == null) {
 			throw new Exception("Unable to contact/get response any converters from " + Globals.getInstance().getConverters());
 		}
 
+		// old converters return a different type
+		if (!(res instanceof Map))
+			throw new Exception("Converter return does not match expected type");
+		Map<String, Object> ret = (Map<String, Object>)res;
+
 		if ((ret.get("err") != null) && ((Boolean)ret.get("err") == true))
 			throw new Exception("Converter returned an error " + ret.get("msg"));
 
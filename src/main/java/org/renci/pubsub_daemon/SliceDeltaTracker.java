@@ -0,0 +1,217 @@
+package org.renci.pubsub_daemon;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.renci.pubsub_daemon.workers.SliceDelta;
+
+/**
+ * Remembers the slivers (nodes and links) of the last processed RSpec manifest of
+ * each slice and computes what changed in the next one, so workers can do work
+ * proportional to the change rather than to the slice size. Slivers are read with
+ * a single StAX pass; for each we keep its state, expiration time and a hash of
+ * everything else about it (attributes of the element and its descendants, e.g.
+ * interfaces). Bounded LRU on the number of slices.
+ *
+ */
+public class SliceDeltaTracker {
+	private static final String DELTA_SLICES_PROPERTY = "pubsub.delta.slices";
+	private static final int DEFAULT_SLICES = 1000;
+
+	private static final String NODE = "node";
+	private static final String LINK = "link";
+	private static final String SLIVER_ID = "sliver_id";
+	private static final String SLIVER_INFO = "geni_sliver_info";
+	private static final String STATE = "state";
+	private static final String EXPIRATION = "expiration_time";
+
+	private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+	static {
+		// manifests don't need DTDs or external entities
+		xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	private static class SliverEntry {
+		final String state;
+		final String expires;
+		final long hash;
+
+		SliverEntry(String state, String expires, long hash) {
+			this.state = state;
+			this.expires = expires;
+			this.hash = hash;
+		}
+	}
+
+	private final int maxSlices;
+	private final Map<String, Map<String, SliverEntry>> slices;
+	private long deltas = 0, initial = 0, slivers = 0, unchanged = 0, failures = 0;
+
+	SliceDeltaTracker() {
+		maxSlices = Globals.getInstance().getConfigPropertyInt(DELTA_SLICES_PROPERTY, DEFAULT_SLICES);
+
+		// access-ordered map evicts least recently seen slices
+		slices = new LinkedHashMap<String, Map<String, SliverEntry>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Map<String, SliverEntry>> eldest) {
+				return size() > maxSlices;
+			}
+		};
+	}
+
+	public boolean enabled() {
+		return maxSlices > 0;
+	}
+
+	/**
+	 * Compare the manifest with the last one of the slice and remember it in its place
+	 * @param sliceKey
+	 * @param rspecMan
+	 * @return delta or null if disabled or the manifest could not be read
+	 */
+	public SliceDelta update(String sliceKey, String rspecMan) {
+		if (!enabled() || (rspecMan == null))
+			return null;
+
+		Map<String, SliverEntry> current;
+		try {
+			current = readSlivers(rspecMan);
+		} catch (XMLStreamException xe) {
+			Globals.warn("Unable to read slivers of RSpec manifest for " + sliceKey + ", processing it in full: " + xe.getMessage());
+			synchronized(this) {
+				failures++;
+				slices.remove(sliceKey);
+			}
+			return null;
+		}
+
+		Map<String, SliverEntry> previous;
+		synchronized(this) {
+			previous = slices.put(sliceKey, current);
+		}
+
+		SliceDelta delta = new SliceDelta(previous == null);
+		for (Map.Entry<String, SliverEntry> e: current.entrySet()) {
+			SliverEntry old = (previous != null ? previous.get(e.getKey()) : null);
+			if (old == null) {
+				delta.addAdded(e.getKey());
+				continue;
+			}
+			SliverEntry cur = e.getValue();
+			delta.addExisting(e.getKey(), !equal(old.state, cur.state), !equal(old.expires, cur.expires), old.hash != cur.hash);
+		}
+		if (previous != null) {
+			for (String sliver: previous.keySet()) {
+				if (!current.containsKey(sliver))
+					delta.addRemoved(sliver);
+			}
+		}
+
+		synchronized(this) {
+			deltas++;
+			if (delta.isInitial())
+				initial++;
+			slivers += current.size();
+			unchanged += delta.getUnchangedCount();
+		}
+		Globals.debug("Slice " + sliceKey + " delta: " + delta);
+		return delta;
+	}
+
+	/**
+	 * Forget the slice, e.g. because its manifest could not be fully processed,
+	 * so the next manifest is treated as all new
+	 * @param sliceKey
+	 */
+	public synchronized void forget(String sliceKey) {
+		slices.remove(sliceKey);
+	}
+
+	public synchronized String getStats() {
+		if (!enabled())
+			return "slice deltas: disabled";
+		return "slice deltas: " + slices.size() + "/" + maxSlices + " slices, " + deltas + " deltas (" + initial + " initial), " +
+				unchanged + "/" + slivers + " slivers unchanged, " + failures + " unreadable";
+	}
+
+	/**
+	 * Read top-level nodes and links of the manifest
+	 * @param rspecMan
+	 * @return slivers by sliver URN
+	 * @throws XMLStreamException
+	 */
+	private static Map<String, SliverEntry> readSlivers(String rspecMan) throws XMLStreamException {
+		Map<String, SliverEntry> ret = new HashMap<String, SliverEntry>();
+		XMLStreamReader r;
+		synchronized(xmlInputFactory) {
+			r = xmlInputFactory.createXMLStreamReader(new StringReader(rspecMan));
+		}
+		try {
+			int depth = 0;
+			// sliver being read
+			String sliver = null, state = null, expires = null;
+			int sliverDepth = 0;
+			StringBuilder sig = new StringBuilder();
+			while (r.hasNext()) {
+				switch (r.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					depth++;
+					String name = r.getLocalName();
+					// nodes and links are children of the root rspec element
+					if ((sliver == null) && (depth == 2) && (NODE.equals(name) || LINK.equals(name))) {
+						sliver = r.getAttributeValue(null, SLIVER_ID);
+						if (sliver == null)
+							continue;
+						sliverDepth = depth;
+						state = null;
+						expires = null;
+						sig.setLength(0);
+					}
+					if (sliver == null)
+						continue;
+					boolean sliverInfo = SLIVER_INFO.equals(name);
+					sig.append('<').append(name);
+					for (int i = 0; i < r.getAttributeCount(); i++) {
+						String an = r.getAttributeLocalName(i);
+						String av = r.getAttributeValue(i);
+						// tracked separately
+						if (sliverInfo && STATE.equals(an))
+							state = av;
+						else if (sliverInfo && EXPIRATION.equals(an))
+							expires = av;
+						else
+							sig.append(' ').append(an).append('=').append(av);
+					}
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					if ((sliver != null) && (depth == sliverDepth)) {
+						ret.put(sliver, new SliverEntry(state, expires, ManifestDedupCache.hash(sig)));
+						sliver = null;
+					} else if (sliver != null)
+						sig.append('>');
+					depth--;
+					break;
+				default:
+					break;
+				}
+			}
+		} finally {
+			r.close();
+		}
+		return ret;
+	}
+
+	private static boolean equal(String a, String b) {
+		return (a == null ? b == null : a.equals(b));
+	}
+}
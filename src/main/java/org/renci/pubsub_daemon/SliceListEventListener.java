@@ -1,6 +1,5 @@
 package org.renci.pubsub_daemon;
 
-import java.io.StringReader;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -8,14 +7,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathFactory;
-
 import org.jivesoftware.smackx.pubsub.Item;
 import org.jivesoftware.smackx.pubsub.ItemPublishEvent;
 import org.jivesoftware.smackx.pubsub.Subscription;
 import org.jivesoftware.smackx.pubsub.listener.ItemEventListener;
-import org.xml.sax.InputSource;
+import org.renci.pubsub_daemon.util.ItemPayloadExtractor;
 
 /**
  * Deal with changes of manifest lists
@@ -94,18 +90,17 @@ public class SliceListEventListener implements ItemEventListener<Item> {
 			Iterator<Item> it = items.iterator();
 
 			while(it.hasNext()) {
-				String itemXml = null;
-				try{
-					itemXml = (String) it.next().toXML();
+				CharSequence itemXml = null;
+				try {
+					itemXml = it.next().toXML();
 				}
 				catch (Exception e){
 					Globals.error("Exception for toXML: " + e);
 				}
 
 				Globals.info("Received publish event on " + item.getNodeId());
-				InputSource is = new InputSource(new StringReader(itemXml));
-				XPath xp = XPathFactory.newInstance().newXPath();
-				String listOfManifests = xp.evaluate("/item", is);
+				// text of the item without re-parsing it into a DOM (per-thread, reused)
+				String listOfManifests = ItemPayloadExtractor.getInstance().extract(itemXml);
 				
 				if (listOfManifests == null) {
 					Globals.warn("Null list of slices received, continuing");
@@ -1,27 +1,86 @@
 package org.renci.pubsub_daemon;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.Reader;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
+/**
+ * Runs external commands. The stdout and stderr of all commands are drained by a
+ * small fixed set of pump threads, each polling the commands assigned to it and
+ * reading whatever is available without blocking (backing off while nothing
+ * arrives), so a command filling either pipe never stalls and the number of threads
+ * doesn't grow with the number of commands. Up to a bounded number of bytes of each
+ * is kept. A command is done once it has exited and what it wrote has been read;
+ * anything it left running with the pipes open can't hold up the result. Input that
+ * fits in an empty pipe is written as the command starts, larger input by a bounded
+ * pool of writer threads. A timer kills the command and the descendants it can find
+ * if it runs past its timeout. submit() returns a Future; execute() waits for it.
+ *
+ */
 public class SystemExecutor {
+	private static final String EXEC_TIMEOUT_PROPERTY = "pubsub.exec.timeout";
+	private static final String EXEC_MAX_OUTPUT_PROPERTY = "pubsub.exec.max.output";
+	private static final String EXEC_IO_THREADS_PROPERTY = "pubsub.exec.io.threads";
+	private static final long DEFAULT_TIMEOUT = 300;
+	private static final int DEFAULT_MAX_OUTPUT = 1024*1024;
+	private static final int DEFAULT_IO_THREADS = 2;
+	private static final int READ_CHUNK = 8192;
+	// most read from one output in one round, so a chatty command can't starve the others
+	private static final int MAX_READ_PER_ROUND = 64*1024;
+	// input this small goes into the empty pipe without blocking (pipes hold 16KB on macOS, 64KB on Linux)
+	private static final int INLINE_INPUT_BYTES = 16*1024;
+	private static final long MIN_POLL_MS = 1;
+	private static final long MAX_POLL_MS = 50;
+	// idle writer threads exit after this long
+	private static final long WRITER_KEEPALIVE = 60;
+
 	Logger l = null;
 
+	// drain command output, and write large inputs; created on first use
+	private static Pump[] pumps = null;
+	private static ThreadPoolExecutor writers = null;
+	private static final AtomicInteger nextPump = new AtomicInteger(0);
+	// fires timeouts and kills
+	private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ManifestExecutor.NamedThreadFactory("SystemExecutor-timer"));
+	static {
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	private static final AtomicLong spawned = new AtomicLong(0);
+	private static final AtomicLong spawnFailures = new AtomicLong(0);
+	private static final AtomicLong spawnNs = new AtomicLong(0);
+	private static final AtomicLong maxSpawnNs = new AtomicLong(0);
+	private static final AtomicInteger running = new AtomicInteger(0);
+	private static final AtomicLong exitedOk = new AtomicLong(0);
+	private static final AtomicLong exitedError = new AtomicLong(0);
+	private static final AtomicLong timedOut = new AtomicLong(0);
+	private static final AtomicLong truncated = new AtomicLong(0);
+
 	public SystemExecutor(Logger l) {
 		this.l = l;
 	}
@@ -30,92 +89,129 @@ public class SystemExecutor {
 		this.l = Logger.getLogger(this.getClass());
 	}
 
-	public String execute(List<String> cmd, Properties newEnv, String wd, Reader sendToProcess) {
-		ProcessBuilder pb = new ProcessBuilder(cmd);
-		Map<String, String> pEnv = pb.environment();
-
-		// add or substitute properties to environment variables
-		if (newEnv != null) {
-			for (Enumeration<?> propKeys = newEnv.propertyNames(); propKeys.hasMoreElements();) {
-				String prop = (String)propKeys.nextElement();
-				String oldVal = pEnv.get(prop);
-				if (null != oldVal) {
-					pEnv.put(prop, newEnv.getProperty(prop) + ":" + oldVal);
-				}
-				else {
-					pEnv.put(prop, newEnv.getProperty(prop));
-				}
-				if (l != null) 
-					l.debug(prop + " has been set to " + pEnv.get(prop));
-				else
-					System.out.println(prop + " has been set to " + pEnv.get(prop));
-			}
+	/**
+	 * Outcome of a command
+	 */
+	public static class Result {
+		public final List<String> cmd;
+		public final int exitValue;
+		public final byte[] stdout;
+		public final byte[] stderr;
+		// output beyond the capture limit was discarded
+		public final boolean truncated;
+		// killed because it ran past its timeout or was cancelled
+		public final boolean killed;
+
+		Result(List<String> cmd, int exitValue, byte[] stdout, byte[] stderr, boolean truncated, boolean killed) {
+			this.cmd = cmd;
+			this.exitValue = exitValue;
+			this.stdout = stdout;
+			this.stderr = stderr;
+			this.truncated = truncated;
+			this.killed = killed;
 		}
-		if (wd != null)
-			pb.directory(new File(wd));
-		
-		Process p;
-		int exitValue = 0;
-		StringBuilder accumulator = new StringBuilder(); 
 
-		try {
-
-			p = pb.start();
+		public boolean succeeded() {
+			return (exitValue == 0) && !killed;
+		}
 
-			OutputStream processInput = p.getOutputStream();
-			BufferedWriter bufProcessInputWriter = new BufferedWriter(new OutputStreamWriter(processInput));
+		/**
+		 * Describe the failure
+		 * @return
+		 */
+		String errorMessage() {
+			return "Command " + cmd.toString() + (killed ? " was killed" : " returned exit code " + exitValue) +
+					" and error message: \n" + new String(stderr).trim();
+		}
+	}
 
-			InputStream processOutput = p.getInputStream();
-			BufferedReader bufProcessOutputReader = new BufferedReader(new InputStreamReader(processOutput));
+	/**
+	 * Default timeout in ms, 0 means none
+	 * @return
+	 */
+	public static long getDefaultTimeout() {
+		return Math.max(Globals.getInstance().getConfigPropertyLong(EXEC_TIMEOUT_PROPERTY, DEFAULT_TIMEOUT), 0)*1000;
+	}
 
-			InputStream processError = p.getErrorStream();	
-			BufferedReader bufProcessErrorReader = new BufferedReader(new InputStreamReader(processError));
+	/**
+	 * Start the command. Returns once the command has started; input that doesn't
+	 * fit in the pipe is written by a writer thread (and the command has to take it
+	 * before its timeout).
+	 * @param cmd
+	 * @param newEnv - added to or prepended to the environment
+	 * @param wd - working directory, may be null
+	 * @param sendToProcess - stdin, may be null
+	 * @param timeoutMs - kill the command after this long, 0 means never
+	 * @return future completing when the command exits or is killed
+	 * @throws IOException if the command can't be started
+	 */
+	public Future<Result> submit(List<String> cmd, Properties newEnv, String wd, byte[] sendToProcess, long timeoutMs) throws IOException {
+		ProcessBuilder pb = processBuilder(cmd, newEnv, wd);
+
+		long start = System.nanoTime();
+		Process p;
+		try {
+			p = pb.start();
+		} catch (IOException e) {
+			spawnFailures.incrementAndGet();
+			throw e;
+		}
+		long ns = System.nanoTime() - start;
+		spawned.incrementAndGet();
+		spawnNs.addAndGet(ns);
+		long max;
+		while (ns > (max = maxSpawnNs.get()) && !maxSpawnNs.compareAndSet(max, ns))
+			;
+
+		Execution e = new Execution(pb.command(), p,
+				Math.max(Globals.getInstance().getConfigPropertyInt(EXEC_MAX_OUTPUT_PROPERTY, DEFAULT_MAX_OUTPUT), 0));
+		running.incrementAndGet();
+		e.start(sendToProcess, timeoutMs);
+		return e;
+	}
 
+	public String execute(List<String> cmd, Properties newEnv, String wd, Reader sendToProcess) {
+		String ret = "";
+		try {
+			byte[] input = null;
 			if (sendToProcess != null) {
-				BufferedReader bufSendToProcess = new BufferedReader(sendToProcess);
-
-				int send;
-				// send to the process stdin. could've use a thread,
-				// but not necessary here	
+				StringWriter sw = new StringWriter();
 				char [] cbuf = new char[1024];
-				while((send = bufSendToProcess.read(cbuf)) != -1) 
-					bufProcessInputWriter.write(cbuf, 0, send);
+				int send;
+				while((send = sendToProcess.read(cbuf)) != -1)
+					sw.write(cbuf, 0, send);
+				input = sw.toString().getBytes();
 			}
 
-			bufProcessInputWriter.close();
-
-			// receive result from process stdout
-			String ret;
+			Result r = waitFor(submit(cmd, newEnv, wd, input, getDefaultTimeout()));
+			if (!r.succeeded())
+				throw new RuntimeException(r.errorMessage());
 
-			try {
-				while((ret = bufProcessOutputReader.readLine()) != null) {
-					accumulator.append(ret);
-				}
-			} catch (IOException e) {
-				if (l != null)
-					l.error(e);
-				else
-					System.err.println(e);
+			// lines of stdout without line terminators
+			Scanner s = new Scanner(new String(r.stdout));
+			StringBuilder accumulator = new StringBuilder();
+			while (s.hasNextLine())
+				accumulator.append(s.nextLine());
+			ret = accumulator.toString();
+		} catch (Exception e) {
+			if (l != null) {
+				l.error(e);
+				throw new RuntimeException(e);
 			}
+			else
+				System.err.println(e);
+		}
 
-			exitValue = p.waitFor();
+		return ret;
+	}
 
-			if (exitValue != 0) {
-				// read stderror
-				try {
-					accumulator = new StringBuilder(); 
-					while((ret = bufProcessErrorReader.readLine()) != null) {
-						accumulator.append(ret);
-					}
-				} catch (IOException e) {
-					if (l != null)
-						l.error(e);
-					else
-						System.err.println(e);
-				}
-				throw new RuntimeException("Command " + pb.command().toString() + " returned exit code " + exitValue + " and error message: \n" + 
-						accumulator.toString());
-			}
+	public byte[] execute(List<String> cmd, Properties newEnv, String wd, byte[] sendToProcess) {
+		byte[] ret = new byte[0];
+		try {
+			Result r = waitFor(submit(cmd, newEnv, wd, sendToProcess, getDefaultTimeout()));
+			if (!r.succeeded())
+				throw new RuntimeException(r.errorMessage());
+			ret = r.stdout;
 		} catch (Exception e) {
 			if (l != null) {
 				l.error(e);
@@ -125,13 +221,19 @@ public class SystemExecutor {
 				System.err.println(e);
 		}
 
-		return accumulator.toString();
+		return ret;
 	}
 
-	public byte[] execute(List<String> cmd, Properties newEnv, String wd, byte[] sendToProcess) {
+	public static String getStats() {
+		long n = spawned.get();
+		return "exec: " + n + " spawned (avg " + (n > 0 ? spawnNs.get() / n / 1000 : 0) + "us, max " + maxSpawnNs.get() / 1000000 + "ms), " +
+				running.get() + " running, " + exitedOk.get() + " succeeded, " + exitedError.get() + " failed, " + timedOut.get() +
+				" killed, " + spawnFailures.get() + " not started, " + truncated.get() + " output truncated";
+	}
+
+	private ProcessBuilder processBuilder(List<String> cmd, Properties newEnv, String wd) {
 		ProcessBuilder pb = new ProcessBuilder(cmd);
 		Map<String, String> pEnv = pb.environment();
-		ByteArrayOutputStream ret = new ByteArrayOutputStream();
 
 		// add or substitute properties to environment variables
 		if (newEnv != null) {
@@ -144,99 +246,371 @@ public class SystemExecutor {
 				else {
 					pEnv.put(prop, newEnv.getProperty(prop));
 				}
-				if (l != null) 
-					l.debug(prop + " has been set to " + pEnv.get(prop));
-				else
-					System.out.println(prop + " has been set to " + pEnv.get(prop));
+				debug(prop + " has been set to " + pEnv.get(prop));
 			}
 		}
-		Process p;
-		int exitValue = 0;
-
 		if (wd != null)
 			pb.directory(new File(wd));
-		
-		try {
-
-			p = pb.start();
+		return pb;
+	}
 
-			OutputStream processInput = p.getOutputStream();
-			BufferedOutputStream bufferedProcessInput = new BufferedOutputStream(processInput);
+	private void debug(String s) {
+		if (l != null)
+			l.debug(s);
+		else
+			System.out.println(s);
+	}
 
-			InputStream processOutput = p.getInputStream();
-			BufferedInputStream bufferedProcessOutput = new BufferedInputStream(processOutput);
+	private static Result waitFor(Future<Result> f) throws InterruptedException {
+		try {
+			return f.get();
+		} catch (ExecutionException ee) {
+			throw new RuntimeException(ee.getCause());
+		} catch (InterruptedException ie) {
+			// nobody will look at the result
+			f.cancel(true);
+			Thread.currentThread().interrupt();
+			throw ie;
+		}
+	}
 
-			InputStream processError = p.getErrorStream();	
-			BufferedInputStream bufferedProcessErrorOutput = new BufferedInputStream(processError);
-			
-			if (sendToProcess != null) {
-				bufferedProcessInput.write(sendToProcess);
-				bufferedProcessInput.close();
+	/**
+	 * Pumps and writers, started on first use
+	 */
+	private static synchronized Pump nextPump() {
+		if (pumps == null) {
+			int n = Math.max(Globals.getInstance().getConfigPropertyInt(EXEC_IO_THREADS_PROPERTY, DEFAULT_IO_THREADS), 1);
+			ManifestExecutor.NamedThreadFactory tf = new ManifestExecutor.NamedThreadFactory("SystemExecutor-pump");
+			pumps = new Pump[n];
+			for (int i = 0; i < n; i++) {
+				pumps[i] = new Pump();
+				tf.newThread(pumps[i]).start();
 			}
+			writers = new ThreadPoolExecutor(n, n, WRITER_KEEPALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ManifestExecutor.NamedThreadFactory("SystemExecutor-input"));
+			writers.allowCoreThreadTimeOut(true);
+		}
+		return pumps[(nextPump.getAndIncrement() & Integer.MAX_VALUE) % pumps.length];
+	}
+
+	private static synchronized ThreadPoolExecutor writers() {
+		return writers;
+	}
 
-			// receive result from process stdout
-			int readBytes=0;
-			byte[] tmp = new byte[1024];
+	/**
+	 * Drains the output of the commands assigned to it until they finish
+	 */
+	private static class Pump implements Runnable {
+		private final byte[] buf = new byte[READ_CHUNK];
+		// guarded by this
+		private final List<Execution> executions = new ArrayList<Execution>();
+		private boolean added = false;
+
+		synchronized void add(Execution e) {
+			executions.add(e);
+			// look at it now rather than after the current back-off
+			added = true;
+			notifyAll();
+		}
 
+		public void run() {
+			List<Execution> current = new ArrayList<Execution>();
+			List<Execution> done = new ArrayList<Execution>();
+			long idleMs = MIN_POLL_MS;
 			try {
-				while ((readBytes=bufferedProcessOutput.read(tmp)) != -1) {
-					ret.write(tmp, 0, readBytes);
+				while (true) {
+					synchronized(this) {
+						executions.removeAll(done);
+						while (executions.isEmpty())
+							wait();
+						current.clear();
+						current.addAll(executions);
+						added = false;
+					}
+					done.clear();
+					boolean progress = false;
+					for (Execution e: current) {
+						try {
+							if (e.pump(buf))
+								progress = true;
+						} catch (RuntimeException re) {
+							Globals.error("Unable to read output of " + e.cmd + ": " + re);
+							e.finish(-1);
+						}
+						if (e.finished)
+							done.add(e);
+					}
+					idleMs = (progress ? MIN_POLL_MS : Math.min(idleMs * 2, MAX_POLL_MS));
+					if (!progress) {
+						synchronized(this) {
+							if (!added)
+								wait(idleMs);
+						}
+					}
 				}
-			} catch (IOException e) {
-				if (l != null)
-					l.error(e);
-				else
-					System.err.println(e);
+			} catch (InterruptedException ie) {
+				Globals.error("SystemExecutor output pump interrupted, commands assigned to it will not complete");
 			}
+		}
+	}
 
-			// get exit value 
-			exitValue = p.waitFor();
+	/**
+	 * A running command; completed by its pump once it has exited
+	 */
+	private static class Execution extends FutureTask<Result> {
+		private static final Callable<Result> NOT_RUN = new Callable<Result>() {
+			public Result call() {
+				throw new IllegalStateException("Completed by the pump");
+			}
+		};
+
+		final List<String> cmd;
+		final Process p;
+		final int maxOutput;
+		final InputStream stdout, stderr;
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final ByteArrayOutputStream err = new ByteArrayOutputStream();
+		volatile boolean isTruncated = false;
+		volatile boolean killed = false;
+		volatile ScheduledFuture<?> timeout = null;
+		// pump is done with it
+		boolean finished = false;
+
+		Execution(List<String> cmd, Process p, int maxOutput) {
+			super(NOT_RUN);
+			this.cmd = cmd;
+			this.p = p;
+			this.maxOutput = maxOutput;
+			stdout = p.getInputStream();
+			stderr = p.getErrorStream();
+		}
 
-			if (exitValue != 0) {
-				// read stderror
-				try {
-					ret = new ByteArrayOutputStream();
-					while ((readBytes=bufferedProcessErrorOutput.read(tmp)) != -1) {
-						ret.write(tmp, 0, readBytes);
+		/**
+		 * Write the input, start the timeout and hand the outputs to a pump
+		 * @param input - may be null
+		 * @param timeoutMs - 0 means never
+		 */
+		void start(final byte[] input, long timeoutMs) {
+			Pump pump = nextPump();
+			if ((input == null) || (input.length <= INLINE_INPUT_BYTES))
+				writeInput(input);
+			else
+				writers().execute(new Runnable() {
+					public void run() {
+						writeInput(input);
+					}
+				});
+			if (timeoutMs > 0) {
+				timeout = timer.schedule(new Runnable() {
+					public void run() {
+						Globals.warn("Command " + cmd + " did not finish in time, killing it");
+						killed = true;
+						kill();
 					}
-				} catch (IOException e) {
-					if (l != null)
-						l.error(e);
-					else
-						System.err.println(e);
+				}, timeoutMs, TimeUnit.MILLISECONDS);
+				// it may have finished while the timeout was being set
+				if (isDone())
+					timeout.cancel(false);
+			}
+			pump.add(this);
+		}
+
+		private void writeInput(byte[] input) {
+			OutputStream processInput = p.getOutputStream();
+			try {
+				if (input != null)
+					processInput.write(input);
+			} catch (IOException ie) {
+				// exited or was killed without reading all of it, the result says why
+				Globals.debug("Unable to send input to " + cmd + ": " + ie);
+			} finally {
+				try {
+					processInput.close();
+				} catch (IOException ie) {
+					;
 				}
-				throw new RuntimeException("Command " + pb.command().toString() + " returned exit code " + exitValue + " and error message: \n" +
-						ret.toByteArray());
 			}
-		} catch (Exception e) {
-			if (l != null) {
-				l.error(e);
-				throw new RuntimeException(e);
+		}
+
+		/**
+		 * Read what the command has written so far and, once it has exited, the rest
+		 * @param buf
+		 * @return whether anything was read or the command finished
+		 */
+		boolean pump(byte[] buf) {
+			if (drain(stdout, buf) | drain(stderr, buf))
+				return true;
+			Integer exitValue = exitValue(p);
+			if (exitValue == null)
+				return false;
+			// all it wrote is in the pipes; whatever it left running may keep them open and go on writing
+			for (int i = 0; (i < 4) && (drain(stdout, buf) | drain(stderr, buf)); i++)
+				;
+			closeQuietly(stdout);
+			closeQuietly(stderr);
+			if (timeout != null)
+				timeout.cancel(false);
+			finish(exitValue);
+			return true;
+		}
+
+		/**
+		 * Read what can be read from the output without blocking
+		 * @param is
+		 * @param buf
+		 * @return whether anything was read
+		 */
+		private boolean drain(InputStream is, byte[] buf) {
+			ByteArrayOutputStream capture = (is == stdout ? out : err);
+			int total = 0;
+			try {
+				int n;
+				while ((total < MAX_READ_PER_ROUND) && ((n = is.available()) > 0)) {
+					n = is.read(buf, 0, Math.min(n, buf.length));
+					if (n <= 0)
+						break;
+					total += n;
+					// keep reading past the limit so the command doesn't block on a full pipe
+					int keep = Math.min(n, maxOutput - capture.size());
+					if (keep > 0)
+						capture.write(buf, 0, keep);
+					if (keep < n)
+						isTruncated = true;
+				}
+			} catch (IOException ie) {
+				;
 			}
+			return total > 0;
+		}
+
+		void finish(int exitValue) {
+			finished = true;
+			running.decrementAndGet();
+			if (killed)
+				timedOut.incrementAndGet();
+			else if (exitValue == 0)
+				exitedOk.incrementAndGet();
 			else
-				System.err.println(e);
+				exitedError.incrementAndGet();
+			if (isTruncated)
+				truncated.incrementAndGet();
+			set(new Result(cmd, exitValue, out.toByteArray(), err.toByteArray(), isTruncated, killed));
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean ret = super.cancel(mayInterruptIfRunning);
+			if (ret) {
+				killed = true;
+				timer.execute(new Runnable() {
+					public void run() {
+						kill();
+					}
+				});
+			}
+			return ret;
+		}
+
+		/**
+		 * Kill the command and the descendants still attached to it; its pump sees
+		 * it exit and finishes it
+		 */
+		private void kill() {
+			Long pid = pid(p);
+			if (pid != null) {
+				List<String> killCmd = new ArrayList<String>();
+				killCmd.add("kill");
+				killCmd.add("-KILL");
+				killCmd.add(pid.toString());
+				// find descendants before the command dies and they are reparented
+				descendants(pid.toString(), killCmd);
+				runQuietly(killCmd);
+			}
+			p.destroy();
+		}
+
+		private static void closeQuietly(InputStream is) {
+			try {
+				is.close();
+			} catch (IOException ie) {
+				;
+			}
+		}
+	}
+
+	/**
+	 * Exit value of the process
+	 * @param p
+	 * @return exit value or null if it is still running
+	 */
+	private static Integer exitValue(Process p) {
+		try {
+			return p.exitValue();
+		} catch (IllegalThreadStateException itse) {
+			return null;
 		}
+	}
 
-		return ret.toByteArray();
-	}
-
-	//	public static void main(String argv[]) {
-	//		SystemExecutor s = new SystemExecutor();
-	//		
-	//		String toSend = "Sending this string\n to the process\n to see what happens";
-	//		StringReader sr = new StringReader(toSend);
-	//		
-	//		List<String> myCommand = new ArrayList<String>();
-	//		myCommand.add("ls");
-	//		myCommand.add("-l");
-	//		 
-	//		Properties newEnv = new Properties();
-	//		newEnv.setProperty("PATH", "/Users/ibaldin/workspace/orca.build-all/ndl-conversion/scripts/ns2ir");
-	//		
-	//		byte[] ret = s.execute(myCommand, newEnv, toSend.getBytes());
-	//		
-	//		String retString = new String(ret);
-	//		System.out.println("Return code is " + retString);
-	//	}
-
-}
\ No newline at end of file
+	/**
+	 * Process id: Process.pid() on Java 9 and later, the pid field of UNIXProcess before
+	 * @param p
+	 * @return pid or null if not available
+	 */
+	private static Long pid(Process p) {
+		try {
+			return (Long)Process.class.getMethod("pid").invoke(p);
+		} catch (Exception e) {
+			;
+		}
+		try {
+			Field f = p.getClass().getDeclaredField("pid");
+			f.setAccessible(true);
+			return (long)f.getInt(p);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Collect descendants of a process
+	 * @param pid
+	 * @param ret
+	 */
+	private static void descendants(String pid, List<String> ret) {
+		String children = runQuietly(Arrays.asList("pgrep", "-P", pid));
+		if (children == null)
+			return;
+		for (String child: children.trim().split("\\s+")) {
+			if (child.length() == 0)
+				continue;
+			ret.add(child);
+			descendants(child, ret);
+		}
+	}
+
+	/**
+	 * Run a short helper command directly (not through the readers)
+	 * @param cmd
+	 * @return stdout or null if it could not be run
+	 */
+	private static String runQuietly(List<String> cmd) {
+		try {
+			Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+			p.getOutputStream().close();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			InputStream is = p.getInputStream();
+			byte[] buf = new byte[1024];
+			int n;
+			while ((n = is.read(buf)) != -1)
+				out.write(buf, 0, n);
+			is.close();
+			p.waitFor();
+			return out.toString();
+		} catch (IOException ie) {
+			return null;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+}
@@ -3,6 +3,10 @@ package org.renci.pubsub_daemon.util;
 import java.beans.PropertyVetoException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.renci.pubsub_daemon.Globals;
 
@@ -11,32 +15,105 @@ import com.mchange.v2.c3p0.DataSources;
 
 /**
  * Create and maintain a pool of connections to the database
- * with specific parameters
+ * with specific parameters. Pools are shared by everyone using the
+ * same URL, user and password (see getPool()); size, statement cache and checkout
+ * timeout come from the configuration.
  * @author ibaldin
  *
  */
 public class DbPool {
+	private static final String MIN_SIZE_PROPERTY = "pubsub.db.pool.min";
+	private static final String MAX_SIZE_PROPERTY = "pubsub.db.pool.max";
+	private static final String MAX_STATEMENTS_PROPERTY = "pubsub.db.pool.statements";
+	private static final String CHECKOUT_TIMEOUT_PROPERTY = "pubsub.db.pool.checkout.timeout";
+	private static final int DEFAULT_MIN_SIZE = 3;
+	private static final int DEFAULT_MAX_SIZE = 15;
+	private static final int DEFAULT_MAX_STATEMENTS = 200;
+	private static final long DEFAULT_CHECKOUT_TIMEOUT = 30000;
+
+	// shared pools by URL, user and password
+	private static final ConcurrentMap<String, DbPool> pools = new ConcurrentHashMap<String, DbPool>();
+
 	protected ComboPooledDataSource cpds = null;
 	protected String url;
-	
+
+	private final AtomicInteger waiting = new AtomicInteger(0);
+	private final AtomicLong checkouts = new AtomicLong(0);
+	private final AtomicLong checkoutFailures = new AtomicLong(0);
+	private final AtomicLong waitNs = new AtomicLong(0);
+	private final AtomicLong maxWaitNs = new AtomicLong(0);
+
+	/**
+	 * Pool for the URL, user and password, created and warmed up on first use.
+	 * Warm-up happens outside the registry lock, so other pools can be created
+	 * meanwhile and callers getting this one before it is warm open connections on demand.
+	 * @param url
+	 * @param user
+	 * @param pass
+	 * @return
+	 */
+	public static DbPool getPool(String url, String user, String pass) {
+		String key = url + "\n" + user + "\n" + pass;
+		DbPool pool = pools.get(key);
+		if (pool != null)
+			return pool;
+		boolean created = false;
+		synchronized(pools) {
+			pool = pools.get(key);
+			if (pool == null) {
+				pool = new DbPool(url, user, pass);
+				pools.put(key, pool);
+				created = true;
+			}
+		}
+		if (created)
+			pool.warmUp();
+		return pool;
+	}
+
+	/**
+	 * Statistics of all shared pools (null if there are none)
+	 * @return
+	 */
+	public static String getPoolStats() {
+		StringBuilder sb = new StringBuilder();
+		for (DbPool p: pools.values()) {
+			if (!p.poolValid())
+				continue;
+			if (sb.length() > 0)
+				sb.append("; ");
+			sb.append(p.getStats());
+		}
+		return (sb.length() > 0 ? sb.toString() : null);
+	}
+
 	public DbPool(String url, String user, String pass) {
 		this.url = url;
-		
+
 		Globals.info("Initializing connection pool for " + url);
-		
+
 		// if all non-null, create a pooled connection source to the db
 		if ((url == null) || (user == null) || (pass == null)) {
 			Globals.error("Insufficient database parameters, not creating a connection pool");
 			cpds = null;
 			return;
 		}
-		
+
+		Globals g = Globals.getInstance();
+		int minSize = Math.max(g.getConfigPropertyInt(MIN_SIZE_PROPERTY, DEFAULT_MIN_SIZE), 0);
+		int maxSize = Math.max(g.getConfigPropertyInt(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE), Math.max(minSize, 1));
+
 		cpds = new ComboPooledDataSource();
 		try {
 			cpds.setDriverClass("com.mysql.jdbc.Driver");
 			cpds.setJdbcUrl(url);
 			cpds.setUser(user);
 			cpds.setPassword(pass);
+			cpds.setMinPoolSize(minSize);
+			cpds.setInitialPoolSize(minSize);
+			cpds.setMaxPoolSize(maxSize);
+			cpds.setMaxStatements(Math.max(g.getConfigPropertyInt(MAX_STATEMENTS_PROPERTY, DEFAULT_MAX_STATEMENTS), 0));
+			cpds.setCheckoutTimeout(Math.max(g.getConfigPropertyInt(CHECKOUT_TIMEOUT_PROPERTY, (int)DEFAULT_CHECKOUT_TIMEOUT), 0));
 		} catch (PropertyVetoException e) {
 			Globals.error("Unable to create JDBC MySQL connection pool (non-fatal): " + e);
 			try {
@@ -46,7 +123,28 @@ public class DbPool {
 			cpds = null;
 		}
 	}
-	
+
+	/**
+	 * Pool without a data source, for subclasses that hand out connections some other way
+	 * @param url - for logging
+	 */
+	protected DbPool(String url) {
+		this.url = url;
+	}
+
+	/**
+	 * Open the initial connections now rather than on the first manifest
+	 */
+	public void warmUp() {
+		if (cpds == null)
+			return;
+		try {
+			getDbConnection().close();
+		} catch (SQLException e) {
+			Globals.warn("Unable to warm up connection pool for " + url + ", will retry on first use: " + e);
+		}
+	}
+
 	/**
 	 * Is this pool valid
 	 * @return
@@ -54,20 +152,49 @@ public class DbPool {
 	public boolean poolValid() {
 		return (cpds != null);
 	}
-	
+
 	public String getUrl() {
 		return new String(url);
 	}
-	
+
 	/**
 	 * Get a new connection from the pool
 	 * @return
 	 * @throws SQLException
 	 */
-	public synchronized Connection getDbConnection() throws SQLException {
-		if (cpds != null) {
-			return cpds.getConnection();
+	public Connection getDbConnection() throws SQLException {
+		if (cpds == null)
+			throw new SQLException("Invalid database parameters");
+		long start = System.nanoTime();
+		waiting.incrementAndGet();
+		try {
+			Connection c = cpds.getConnection();
+			checkouts.incrementAndGet();
+			return c;
+		} catch (SQLException e) {
+			checkoutFailures.incrementAndGet();
+			throw e;
+		} finally {
+			waiting.decrementAndGet();
+			long ns = System.nanoTime() - start;
+			waitNs.addAndGet(ns);
+			long max;
+			while (ns > (max = maxWaitNs.get()) && !maxWaitNs.compareAndSet(max, ns))
+				;
+		}
+	}
+
+	public String getStats() {
+		if (cpds == null)
+			return "db pool " + url + ": invalid";
+		String counts;
+		try {
+			counts = cpds.getNumBusyConnectionsDefaultUser() + " busy, " + cpds.getNumIdleConnectionsDefaultUser() + " idle, ";
+		} catch (SQLException e) {
+			counts = "";
 		}
-		throw new SQLException("Invalid database parameters");
+		long n = checkouts.get() + checkoutFailures.get();
+		return "db pool " + url + ": " + counts + waiting.get() + " waiting, " + checkouts.get() + " checkouts (avg wait " +
+				(n > 0 ? waitNs.get() / n / 1000 : 0) + "us, max " + maxWaitNs.get() / 1000000 + "ms), " + checkoutFailures.get() + " failed";
 	}
 }
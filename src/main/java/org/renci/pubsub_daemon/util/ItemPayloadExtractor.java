@@ -0,0 +1,206 @@
+package org.renci.pubsub_daemon.util;
+
+import java.io.StringReader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Extracts the text content of a pubsub item (same result as evaluating
+ * XPath '/item' on the item XML). Plain items (no entities, CDATA, comments
+ * or processing instructions) are handled by a single scan of the string,
+ * everything else by one StAX pass. Instances are not thread-safe, use
+ * getInstance() to get the one belonging to the current thread.
+ *
+ */
+public class ItemPayloadExtractor {
+	private static final String ITEM_ELEMENT = "item";
+	// don't hang on to buffers larger than this between calls
+	private static final int MAX_RETAINED_BUFFER = 1024*1024;
+
+	private static final ThreadLocal<ItemPayloadExtractor> perThread = new ThreadLocal<ItemPayloadExtractor>() {
+		@Override
+		protected ItemPayloadExtractor initialValue() {
+			return new ItemPayloadExtractor();
+		}
+	};
+
+	private XMLInputFactory xif = null;
+	private StringBuilder sb = new StringBuilder();
+
+	private ItemPayloadExtractor() {
+	}
+
+	public static ItemPayloadExtractor getInstance() {
+		return perThread.get();
+	}
+
+	/**
+	 * Return text content of the item or empty string if the document element is not an item
+	 * @param itemXml
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	public String extract(CharSequence itemXml) throws XMLStreamException {
+		if (itemXml == null)
+			return null;
+		try {
+			String ret = extractDirect(itemXml);
+			if (ret != null)
+				return ret;
+			return extractStax(itemXml);
+		} finally {
+			if (sb.capacity() > MAX_RETAINED_BUFFER)
+				sb = new StringBuilder();
+		}
+	}
+
+	/**
+	 * Scan the string once collecting text between tags. Returns null if the
+	 * item has anything that needs a real parser, or is cut off or unbalanced
+	 * (so the parser reports the error). Mismatched tag names are not noticed.
+	 * @param xml
+	 * @return
+	 */
+	String extractDirect(CharSequence xml) {
+		int len = xml.length();
+		int i = 0;
+		// skip leading whitespace
+		while ((i < len) && Character.isWhitespace(xml.charAt(i)))
+			i++;
+		if (!startsWithTag(xml, i, ITEM_ELEMENT))
+			return null;
+
+		// text segments; most items have exactly one (the payload)
+		int firstStart = -1, firstEnd = -1;
+		sb.setLength(0);
+		boolean multiple = false;
+		// open elements; the document element is closed when it gets back to 0
+		int depth = 0;
+		boolean rootClosed = false;
+
+		while (i < len) {
+			char c = xml.charAt(i);
+			if (c == '<') {
+				if ((i + 1 < len) && ((xml.charAt(i + 1) == '!') || (xml.charAt(i + 1) == '?')))
+					return null;
+				// a second document element
+				if (rootClosed)
+					return null;
+				boolean closing = (i + 1 < len) && (xml.charAt(i + 1) == '/');
+				// skip the tag, minding quoted attribute values which may contain '>'
+				char quote = 0;
+				i++;
+				while (i < len) {
+					c = xml.charAt(i);
+					if (quote != 0) {
+						if (c == quote)
+							quote = 0;
+					} else if ((c == '"') || (c == '\''))
+						quote = c;
+					else if (c == '>')
+						break;
+					i++;
+				}
+				if (i == len)
+					return null;
+				if (closing)
+					depth--;
+				else if (xml.charAt(i - 1) != '/')
+					depth++;
+				if (depth < 0)
+					return null;
+				rootClosed = (depth == 0);
+				i++;
+			} else {
+				int start = i;
+				while ((i < len) && ((c = xml.charAt(i)) != '<')) {
+					if (c == '&')
+						return null;
+					i++;
+				}
+				if (depth == 0) {
+					// only whitespace may follow the document element
+					for (int j = start; j < i; j++)
+						if (!Character.isWhitespace(xml.charAt(j)))
+							return null;
+					continue;
+				}
+				if (firstStart < 0) {
+					firstStart = start;
+					firstEnd = i;
+				} else {
+					if (!multiple) {
+						sb.append(xml, firstStart, firstEnd);
+						multiple = true;
+					}
+					sb.append(xml, start, i);
+				}
+			}
+		}
+		// unclosed elements
+		if (depth != 0)
+			return null;
+
+		if (multiple)
+			return sb.toString();
+		if (firstStart < 0)
+			return "";
+		return xml.subSequence(firstStart, firstEnd).toString();
+	}
+
+	private static boolean startsWithTag(CharSequence xml, int pos, String name) {
+		int end = pos + 1 + name.length();
+		if ((end >= xml.length()) || (xml.charAt(pos) != '<'))
+			return false;
+		for (int i = 0; i < name.length(); i++) {
+			if (xml.charAt(pos + 1 + i) != name.charAt(i))
+				return false;
+		}
+		char c = xml.charAt(end);
+		return (c == '>') || (c == '/') || Character.isWhitespace(c);
+	}
+
+	/**
+	 * Single StAX pass collecting all character data
+	 * @param xml
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	private String extractStax(CharSequence xml) throws XMLStreamException {
+		if (xif == null) {
+			xif = XMLInputFactory.newInstance();
+			xif.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+			xif.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		}
+		XMLStreamReader xsr = xif.createXMLStreamReader(new StringReader(xml.toString()));
+		try {
+			sb.setLength(0);
+			boolean rootSeen = false;
+			while (xsr.hasNext()) {
+				switch (xsr.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					if (!rootSeen) {
+						if (!ITEM_ELEMENT.equals(xsr.getLocalName()))
+							return "";
+						rootSeen = true;
+					}
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					if (rootSeen)
+						sb.append(xsr.getTextCharacters(), xsr.getTextStart(), xsr.getTextLength());
+					break;
+				default:
+					break;
+				}
+			}
+			return sb.toString();
+		} finally {
+			xsr.close();
+		}
+	}
+}
@@ -0,0 +1,486 @@
+package org.renci.pubsub_daemon.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.renci.pubsub_daemon.Globals;
+
+/**
+ * Durable FIFO of database units of work that could not be written, e.g. because
+ * the database is down. Units are appended to memory-mapped segment files in a
+ * per-queue directory and replayed in order by a drainer thread, which backs off
+ * while the database keeps failing. Units of a slice that has units queued must be
+ * queued as well (see hasPending()) so slices are written in order.
+ * 
+ * A unit that keeps failing while the database is reachable (data too long,
+ * constraint or schema errors) would hold up every slice behind it, so after
+ * maxAttempts such failures it is appended to the dead-letter file in the queue
+ * directory, in the segment record format, and logged. Failures with the database
+ * unreachable or transient errors don't count.
+ * 
+ * The read position is forced to disk after each replayed unit, before its slice
+ * stops counting as pending. A crash between a unit's commit and that force replays
+ * the unit once more on restart, but always before anything newer of the slice is
+ * written, so units must be safe to repeat on their own (INSERT IGNORE, upserts that
+ * set whole values like XODB's) though not against newer writes.
+ *
+ * Segment layout: magic, offset of the first unreplayed record, then records of
+ * length followed by payload (slice key and serialized unit). A zero length ends
+ * the written part of a segment.
+ *
+ */
+public class SpillQueue {
+	private static final String SPILL_DIR_PROPERTY = "pubsub.spill.dir";
+	private static final String SEGMENT_BYTES_PROPERTY = "pubsub.spill.segment.bytes";
+	private static final String MAX_BACKOFF_PROPERTY = "pubsub.spill.max.backoff";
+	private static final String MAX_ATTEMPTS_PROPERTY = "pubsub.spill.max.attempts";
+	private static final int DEFAULT_SEGMENT_BYTES = 16*1024*1024;
+	private static final long DEFAULT_MAX_BACKOFF = 60;
+	private static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+	private static final int MAGIC = 0x42485351;
+	private static final int HEADER_BYTES = 8;
+	private static final int READ_POS_OFFSET = 4;
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String DEAD_LETTER_FILE = "dead-letter";
+	// seconds to wait for the database to confirm a connection works
+	private static final int VALID_TIMEOUT = 5;
+	private static final long MIN_BACKOFF_MS = 500;
+	private static final long RATE_WINDOW_MS = 10000;
+
+	/**
+	 * One segment file
+	 */
+	private static class Segment {
+		final long seq;
+		final File file;
+		final MappedByteBuffer buf;
+		int readPos = HEADER_BYTES;
+		int writePos = HEADER_BYTES;
+
+		Segment(long seq, File file, MappedByteBuffer buf) {
+			this.seq = seq;
+			this.file = file;
+			this.buf = buf;
+		}
+
+		boolean fits(int len) {
+			// leave room for the zero length that ends the segment
+			return writePos + 4 + len + 4 <= buf.capacity();
+		}
+	}
+
+	/**
+	 * A unit taken from the head of the queue
+	 */
+	private static class Record {
+		final Segment segment;
+		final int length;
+		final String sliceKey;
+		final byte[] unit;
+
+		Record(Segment segment, int length, String sliceKey, byte[] unit) {
+			this.segment = segment;
+			this.length = length;
+			this.sliceKey = sliceKey;
+			this.unit = unit;
+		}
+	}
+
+	private final String name;
+	private final File dir;
+	private final DbPool pool;
+	private final int segmentBytes;
+	private final long maxBackoffMs;
+	private final int maxAttempts;
+
+	// guarded by this
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private final Map<String, Integer> pendingBySlice = new HashMap<String, Integer>();
+	private int pending = 0;
+	private long bytes = 0;
+	private long spilled = 0, drained = 0, drainFailures = 0, corrupt = 0, deadLettered = 0;
+	private long rateWindowStart = System.currentTimeMillis(), rateWindowDrained = 0;
+	private double drainRate = 0;
+
+	/**
+	 * Queue for a worker if a spill directory is configured
+	 * @param name - worker name, used for the subdirectory, thread name and logging
+	 * @param pool
+	 * @return queue or null if spilling is not configured or the queue can't be opened
+	 */
+	public static SpillQueue create(String name, DbPool pool) {
+		Globals g = Globals.getInstance();
+		String dir = g.getConfigProperty(SPILL_DIR_PROPERTY);
+		if ((dir == null) || (dir.trim().length() == 0) || !pool.poolValid())
+			return null;
+		try {
+			return new SpillQueue(name, new File(dir.trim(), name), pool,
+					g.getConfigPropertyInt(SEGMENT_BYTES_PROPERTY, DEFAULT_SEGMENT_BYTES),
+					g.getConfigPropertyLong(MAX_BACKOFF_PROPERTY, DEFAULT_MAX_BACKOFF) * 1000L,
+					g.getConfigPropertyInt(MAX_ATTEMPTS_PROPERTY, DEFAULT_MAX_ATTEMPTS));
+		} catch (IOException ie) {
+			Globals.error("Unable to open spill queue for " + name + " in " + dir + ", failed writes will not be saved: " + ie);
+			return null;
+		}
+	}
+
+	/**
+	 * Open the queue, picking up units left over from a previous run, and start draining it
+	 * @param name
+	 * @param dir
+	 * @param pool
+	 * @param segmentBytes - size of segment files
+	 * @param maxBackoffMs - longest wait between replays while the database is failing
+	 * @param maxAttempts - failures with the database reachable after which a unit is set aside
+	 * @throws IOException
+	 */
+	public SpillQueue(String name, File dir, DbPool pool, int segmentBytes, long maxBackoffMs, int maxAttempts) throws IOException {
+		this.name = name;
+		this.dir = dir;
+		this.pool = pool;
+		this.segmentBytes = Math.max(segmentBytes, 4096);
+		this.maxBackoffMs = Math.max(maxBackoffMs, MIN_BACKOFF_MS);
+		this.maxAttempts = Math.max(maxAttempts, 1);
+
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Unable to create directory " + dir);
+		recover();
+		if (pending > 0)
+			Globals.info("Found " + pending + " " + name + " database units from a previous run in " + dir);
+
+		Thread drainer = new Thread(new Runnable() {
+			public void run() {
+				drainLoop();
+			}
+		}, name + "-spill-drainer");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/**
+	 * Does the slice have units waiting? If so new units of the slice must be queued behind them.
+	 * @param sliceKey
+	 * @return
+	 */
+	public synchronized boolean hasPending(String sliceKey) {
+		return pendingBySlice.containsKey(sliceKey);
+	}
+
+	/**
+	 * Save the unit to be written later
+	 * @param sliceKey
+	 * @param unit
+	 * @throws IOException
+	 */
+	public void enqueue(String sliceKey, SqlUnitOfWork unit) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeUTF(sliceKey);
+		unit.writeTo(out);
+		out.flush();
+		byte[] payload = bos.toByteArray();
+
+		synchronized(this) {
+			Segment s = (segments.isEmpty() ? null : segments.getLast());
+			if ((s == null) || !s.fits(payload.length))
+				s = newSegment(payload.length);
+			// payload first, length last so a partly written record is never read
+			s.buf.position(s.writePos + 4);
+			s.buf.put(payload);
+			s.buf.putInt(s.writePos, payload.length);
+			s.buf.force();
+			s.writePos += 4 + payload.length;
+
+			Integer n = pendingBySlice.get(sliceKey);
+			pendingBySlice.put(sliceKey, (n == null ? 1 : n + 1));
+			pending++;
+			bytes += payload.length;
+			spilled++;
+			notifyAll();
+		}
+		Globals.warn("Saved " + unit.size() + " rows of " + sliceKey + " to the " + name + " spill queue, " + pending() + " units waiting");
+	}
+
+	private synchronized int pending() {
+		return pending;
+	}
+
+	private void drainLoop() {
+		long backoff = MIN_BACKOFF_MS;
+		// failures of the head unit that were its own fault
+		int attempts = 0;
+		while (true) {
+			Record r;
+			try {
+				synchronized(this) {
+					while ((r = head()) == null)
+						wait();
+				}
+			} catch (InterruptedException ie) {
+				return;
+			}
+
+			SqlUnitOfWork unit;
+			try {
+				unit = SqlUnitOfWork.readFrom(new DataInputStream(new ByteArrayInputStream(r.unit)));
+			} catch (IOException ie) {
+				Globals.error("Dropping unreadable unit of " + r.sliceKey + " from the " + name + " spill queue: " + ie);
+				synchronized(this) {
+					corrupt++;
+					remove(r);
+				}
+				attempts = 0;
+				continue;
+			}
+
+			try {
+				unit.execute(pool, 0);
+				synchronized(this) {
+					drained++;
+					remove(r);
+				}
+				backoff = MIN_BACKOFF_MS;
+				attempts = 0;
+			} catch (SQLException se) {
+				synchronized(this) {
+					drainFailures++;
+				}
+				if (unitsFault(se) && (++attempts >= maxAttempts)) {
+					Globals.error("Giving up on " + name + " unit of " + r.sliceKey + " after " + attempts + " attempts, saving it to " + 
+							new File(dir, DEAD_LETTER_FILE) + ": " + se);
+					try {
+						deadLetter(r);
+					} catch (IOException ie) {
+						Globals.error("Unable to save " + name + " unit of " + r.sliceKey + " to the dead-letter file, dropping it: " + ie);
+					}
+					synchronized(this) {
+						deadLettered++;
+						remove(r);
+					}
+					attempts = 0;
+					backoff = MIN_BACKOFF_MS;
+					continue;
+				}
+				Globals.warn("Unable to replay " + name + " unit of " + r.sliceKey + ", retrying in " + backoff + "ms: " + se);
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ie) {
+					return;
+				}
+				backoff = Math.min(backoff * 2, maxBackoffMs);
+			}
+		}
+	}
+
+	/**
+	 * Did the unit fail on its own account, as opposed to the database being
+	 * unreachable or a transient error (deadlock, timeout) that may go away?
+	 * @param se
+	 * @return
+	 */
+	private boolean unitsFault(SQLException se) {
+		if ((se instanceof SQLTransientException) || (se instanceof SQLRecoverableException))
+			return false;
+		try {
+			Connection c = pool.getDbConnection();
+			try {
+				return c.isValid(VALID_TIMEOUT);
+			} finally {
+				c.close();
+			}
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Append the record to the dead-letter file and make it durable
+	 * @param r
+	 * @throws IOException
+	 */
+	private void deadLetter(Record r) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeInt(r.length);
+		out.writeUTF(r.sliceKey);
+		out.write(r.unit);
+		out.flush();
+		FileOutputStream fos = new FileOutputStream(new File(dir, DEAD_LETTER_FILE), true);
+		try {
+			fos.write(bos.toByteArray());
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * First unreplayed record, dropping segments that have been fully replayed
+	 * @return record or null if the queue is empty
+	 */
+	private Record head() {
+		while (!segments.isEmpty()) {
+			Segment s = segments.getFirst();
+			int len = (s.readPos + 4 <= s.buf.capacity() ? s.buf.getInt(s.readPos) : 0);
+			if (len > 0) {
+				byte[] payload = new byte[len];
+				s.buf.position(s.readPos + 4);
+				s.buf.get(payload);
+				try {
+					DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+					String sliceKey = in.readUTF();
+					return new Record(s, len, sliceKey, Arrays.copyOfRange(payload, payload.length - in.available(), payload.length));
+				} catch (IOException ie) {
+					Globals.error("Skipping unreadable record in " + s.file + ": " + ie);
+					// not counted as pending by recover()
+					advance(s, len);
+					continue;
+				}
+			}
+			// nothing more will be written to this one
+			if (segments.size() == 1)
+				return null;
+			segments.removeFirst();
+			if (!s.file.delete())
+				Globals.warn("Unable to delete replayed spill segment " + s.file);
+		}
+		return null;
+	}
+
+	/**
+	 * Replayed record is done with. Called holding the lock, so hasPending() can't
+	 * report the slice clear before the read position is on disk.
+	 * @param r
+	 */
+	private void remove(Record r) {
+		advance(r.segment, r.length);
+		Integer n = pendingBySlice.get(r.sliceKey);
+		if ((n == null) || (n <= 1))
+			pendingBySlice.remove(r.sliceKey);
+		else
+			pendingBySlice.put(r.sliceKey, n - 1);
+		pending--;
+		bytes -= r.length;
+
+		long now = System.currentTimeMillis();
+		rateWindowDrained++;
+		if (now - rateWindowStart >= RATE_WINDOW_MS) {
+			drainRate = rateWindowDrained * 1000.0 / (now - rateWindowStart);
+			rateWindowStart = now;
+			rateWindowDrained = 0;
+		}
+	}
+
+	/**
+	 * Move the read position past a record and make it durable. Only the header
+	 * page is dirty at this point, records are forced when written.
+	 * @param s
+	 * @param len
+	 */
+	private static void advance(Segment s, int len) {
+		s.readPos += 4 + len;
+		s.buf.putInt(READ_POS_OFFSET, s.readPos);
+		s.buf.force();
+	}
+
+	private Segment newSegment(int payloadLength) throws IOException {
+		long seq = (segments.isEmpty() ? 0 : segments.getLast().seq + 1);
+		int size = Math.max(segmentBytes, HEADER_BYTES + 4 + payloadLength + 4);
+		File f = new File(dir, String.format("%016d", seq) + SEGMENT_SUFFIX);
+		Segment s = new Segment(seq, f, map(f, size));
+		s.buf.putInt(0, MAGIC);
+		s.buf.putInt(READ_POS_OFFSET, HEADER_BYTES);
+		segments.add(s);
+		return s;
+	}
+
+	private static MappedByteBuffer map(File f, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			if (size > 0)
+				raf.setLength(size);
+			FileChannel ch = raf.getChannel();
+			return ch.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		} finally {
+			// the mapping stays valid
+			raf.close();
+		}
+	}
+
+	/**
+	 * Load segments left by a previous run
+	 * @throws IOException
+	 */
+	private synchronized void recover() throws IOException {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File d, String n) {
+				return n.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (files == null)
+			return;
+		Arrays.sort(files);
+		for (File f: files) {
+			long seq;
+			try {
+				seq = Long.parseLong(f.getName().substring(0, f.getName().length() - SEGMENT_SUFFIX.length()));
+			} catch (NumberFormatException nfe) {
+				continue;
+			}
+			MappedByteBuffer buf = map(f, 0);
+			if ((buf.capacity() < HEADER_BYTES) || (buf.getInt(0) != MAGIC)) {
+				Globals.warn("Ignoring " + f + ", it is not a spill segment");
+				continue;
+			}
+			Segment s = new Segment(seq, f, buf);
+			s.readPos = buf.getInt(READ_POS_OFFSET);
+			if ((s.readPos < HEADER_BYTES) || (s.readPos > buf.capacity()))
+				s.readPos = HEADER_BYTES;
+			s.writePos = s.readPos;
+			while (s.writePos + 4 <= buf.capacity()) {
+				int len = buf.getInt(s.writePos);
+				if ((len <= 0) || (s.writePos + 4 + len > buf.capacity()))
+					break;
+				byte[] payload = new byte[len];
+				buf.position(s.writePos + 4);
+				buf.get(payload);
+				try {
+					String sliceKey = new DataInputStream(new ByteArrayInputStream(payload)).readUTF();
+					Integer n = pendingBySlice.get(sliceKey);
+					pendingBySlice.put(sliceKey, (n == null ? 1 : n + 1));
+					pending++;
+					bytes += len;
+				} catch (IOException ie) {
+					// skipped when replayed
+					corrupt++;
+				}
+				s.writePos += 4 + len;
+			}
+			segments.add(s);
+		}
+	}
+
+	public synchronized String getStats() {
+		return name + " spill queue: " + pending + " units (" + bytes + " bytes) in " + segments.size() + " segments, " +
+				spilled + " spilled, " + drained + " replayed (" + String.format("%.1f", drainRate) + "/s), " +
+				drainFailures + " replay failures, " + deadLettered + " set aside, " + corrupt + " unreadable";
+	}
+}
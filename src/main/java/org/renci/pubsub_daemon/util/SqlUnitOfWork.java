@@ -0,0 +1,361 @@
+package org.renci.pubsub_daemon.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.renci.pubsub_daemon.Globals;
+
+/**
+ * Collects the statements needed to save one manifest and executes them on one
+ * connection in one transaction. Rows for the same SQL are sent as a single JDBC
+ * batch through one prepared statement; statements run in the order their SQL was
+ * first added. A barrier statement (e.g. SET foreign_key_checks) runs on its own
+ * at the point it was added, and statements added after it are grouped separately
+ * from those added before. If anything fails the transaction is rolled back and the
+ * whole unit is retried. Rows added with a table and key are skipped if the
+ * optional WrittenKeys filter knows them to be in the database already, and are
+ * remembered by it once the transaction commits.
+ *
+ */
+public class SqlUnitOfWork {
+	private static final long RETRY_BACKOFF_MS = 100;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * One SQL statement and the parameter rows to execute it with
+	 */
+	private static class Group {
+		final String sql;
+		final List<Object[]> rows = new ArrayList<Object[]>();
+		final boolean barrier;
+
+		Group(String sql, boolean barrier) {
+			this.sql = sql;
+			this.barrier = barrier;
+		}
+	}
+
+	private final WrittenKeys written;
+	private final List<Group> groups = new ArrayList<Group>();
+	// table and key of rows added through addOnce, in pairs
+	private final List<String> keys = new ArrayList<String>();
+	private final List<String> onRollback = new ArrayList<String>();
+	// groups since the last barrier by SQL
+	private final Map<String, Group> current = new HashMap<String, Group>();
+	private int rowCount = 0;
+	private int attempts = 0;
+	private int skipped = 0;
+
+	public SqlUnitOfWork() {
+		this(null);
+	}
+
+	/**
+	 * @param written - filter for rows already in the database, may be null
+	 */
+	public SqlUnitOfWork(WrittenKeys written) {
+		this.written = written;
+	}
+
+	/**
+	 * Add a row for the statement
+	 * @param sql
+	 * @param params
+	 */
+	public void add(String sql, Object... params) {
+		Group g = current.get(sql);
+		if (g == null) {
+			g = new Group(sql, false);
+			groups.add(g);
+			current.put(sql, g);
+		}
+		g.rows.add(params);
+		rowCount++;
+	}
+
+	/**
+	 * Add a row for an INSERT IGNORE-like statement unless the row is known to be written
+	 * @param table
+	 * @param key - primary key of the row in the table
+	 * @param sql
+	 * @param params
+	 */
+	public void addOnce(String table, String key, String sql, Object... params) {
+		if ((written != null) && written.contains(table, key)) {
+			skipped++;
+			return;
+		}
+		add(sql, params);
+		keys.add(table);
+		keys.add(key);
+	}
+
+	/**
+	 * Add a parameterless statement that must run exactly at this point
+	 * @param sql
+	 */
+	public void barrier(String sql) {
+		groups.add(new Group(sql, true));
+		current.clear();
+	}
+
+	/**
+	 * Statement to run after a failed transaction is rolled back, e.g. to restore
+	 * session settings changed by a barrier before the connection goes back to the pool
+	 * @param sql
+	 */
+	public void onRollback(String sql) {
+		onRollback.add(sql);
+	}
+
+	public boolean isEmpty() {
+		return rowCount == 0;
+	}
+
+	/**
+	 * Number of rows added
+	 * @return
+	 */
+	public int size() {
+		return rowCount;
+	}
+
+	/**
+	 * Number of rows not added because they were already written
+	 * @return
+	 */
+	public int skipped() {
+		return skipped;
+	}
+
+	/**
+	 * Number of statement executions (batches count once) the unit takes
+	 * @return
+	 */
+	public int roundTrips() {
+		return groups.size();
+	}
+
+	/**
+	 * Number of times the unit was executed, including retries
+	 * @return
+	 */
+	public int attempts() {
+		return attempts;
+	}
+
+	/**
+	 * Execute the unit in one transaction, retrying the whole unit on failure
+	 * @param pool
+	 * @param retries
+	 * @throws SQLException if the last attempt failed
+	 */
+	public void execute(DbPool pool, int retries) throws SQLException {
+		for (int tryIndex = 0; ; tryIndex++) {
+			try {
+				attempts++;
+				executeOnce(pool);
+				if (written != null)
+					for (int i = 0; i < keys.size(); i += 2)
+						written.mark(keys.get(i), keys.get(i + 1));
+				return;
+			} catch (SQLException e) {
+				if (tryIndex >= retries) {
+					// rows we skipped may be why it failed, don't trust the filter anymore
+					if (written != null)
+						written.clear();
+					throw e;
+				}
+				Globals.warn("Retrying database transaction of " + rowCount + " rows after error: " + e);
+				try {
+					Thread.sleep(RETRY_BACKOFF_MS << tryIndex);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	private void executeOnce(DbPool pool) throws SQLException {
+		Connection dbc = pool.getDbConnection();
+		try {
+			dbc.setAutoCommit(false);
+			try {
+				for (Group g: groups) {
+					if (g.barrier) {
+						Statement st = dbc.createStatement();
+						try {
+							st.execute(g.sql);
+						} finally {
+							st.close();
+						}
+						continue;
+					}
+					PreparedStatement pst = dbc.prepareStatement(g.sql);
+					try {
+						if (g.rows.size() == 1) {
+							bind(pst, g.rows.get(0));
+							pst.execute();
+						} else {
+							for (Object[] row: g.rows) {
+								bind(pst, row);
+								pst.addBatch();
+							}
+							pst.executeBatch();
+						}
+					} finally {
+						pst.close();
+					}
+				}
+				dbc.commit();
+			} catch (SQLException e) {
+				try {
+					dbc.rollback();
+					for (String sql: onRollback) {
+						Statement st = dbc.createStatement();
+						try {
+							st.execute(sql);
+						} finally {
+							st.close();
+						}
+					}
+				} catch (SQLException re) {
+					Globals.error("Unable to roll back transaction: " + re);
+				}
+				throw e;
+			}
+		} finally {
+			try {
+				dbc.setAutoCommit(true);
+			} catch (SQLException e) {
+				;
+			}
+			dbc.close();
+		}
+	}
+
+	// parameter types in serialized units
+	private static final byte T_NULL = 0, T_STRING = 1, T_LONG = 2, T_INT = 3, T_BOOLEAN = 4, T_DOUBLE = 5;
+
+	/**
+	 * Serialize the statements of the unit, e.g. to save it for later. The written
+	 * keys filter is not part of it.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(groups.size());
+		for (Group g: groups) {
+			out.writeBoolean(g.barrier);
+			writeString(out, g.sql);
+			out.writeInt(g.rows.size());
+			for (Object[] row: g.rows) {
+				out.writeInt(row.length);
+				for (Object o: row)
+					writeParam(out, o);
+			}
+		}
+		out.writeInt(onRollback.size());
+		for (String sql: onRollback)
+			writeString(out, sql);
+	}
+
+	/**
+	 * Read a unit written by writeTo()
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static SqlUnitOfWork readFrom(DataInput in) throws IOException {
+		SqlUnitOfWork unit = new SqlUnitOfWork();
+		int groups = in.readInt();
+		for (int i = 0; i < groups; i++) {
+			boolean barrier = in.readBoolean();
+			String sql = readString(in);
+			int rows = in.readInt();
+			if (barrier) {
+				unit.barrier(sql);
+				continue;
+			}
+			for (int j = 0; j < rows; j++) {
+				Object[] row = new Object[in.readInt()];
+				for (int k = 0; k < row.length; k++)
+					row[k] = readParam(in);
+				unit.add(sql, row);
+			}
+		}
+		int rollbacks = in.readInt();
+		for (int i = 0; i < rollbacks; i++)
+			unit.onRollback(readString(in));
+		return unit;
+	}
+
+	private static void writeParam(DataOutput out, Object o) throws IOException {
+		if (o == null)
+			out.writeByte(T_NULL);
+		else if (o instanceof Long) {
+			out.writeByte(T_LONG);
+			out.writeLong((Long)o);
+		} else if (o instanceof Integer) {
+			out.writeByte(T_INT);
+			out.writeInt((Integer)o);
+		} else if (o instanceof Boolean) {
+			out.writeByte(T_BOOLEAN);
+			out.writeBoolean((Boolean)o);
+		} else if (o instanceof Double) {
+			out.writeByte(T_DOUBLE);
+			out.writeDouble((Double)o);
+		} else {
+			out.writeByte(T_STRING);
+			writeString(out, o.toString());
+		}
+	}
+
+	private static Object readParam(DataInput in) throws IOException {
+		byte t = in.readByte();
+		switch(t) {
+		case T_NULL: return null;
+		case T_STRING: return readString(in);
+		case T_LONG: return in.readLong();
+		case T_INT: return in.readInt();
+		case T_BOOLEAN: return in.readBoolean();
+		case T_DOUBLE: return in.readDouble();
+		default:
+			throw new IOException("Unknown parameter type " + t);
+		}
+	}
+
+	// writeUTF is limited to 64K, manifests are not
+	private static void writeString(DataOutput out, String s) throws IOException {
+		byte[] b = s.getBytes(UTF8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return new String(b, UTF8);
+	}
+
+	private static void bind(PreparedStatement pst, Object[] params) throws SQLException {
+		for (int i = 0; i < params.length; i++) {
+			if (params[i] == null)
+				pst.setNull(i + 1, Types.VARCHAR);
+			else
+				pst.setObject(i + 1, params[i]);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package org.renci.pubsub_daemon.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.renci.pubsub_daemon.Globals;
+
+/**
+ * Keeps the latest timestamp of a row in memory and writes it at a fixed interval,
+ * so the row is updated at most once per interval no matter how many threads touch
+ * it. The statement takes the timestamp and the row id as parameters, in that order.
+ * Pending timestamps are written on shutdown.
+ *
+ */
+public class TimestampHeartbeat {
+	private final String name;
+	private final DbPool pool;
+	private final String sql;
+	private final String id;
+	private final ScheduledExecutorService flusher;
+
+	// latest timestamp and the last one written; 0 means none
+	private final AtomicLong latest = new AtomicLong(0);
+	private long written = 0;
+
+	private final AtomicLong touches = new AtomicLong(0);
+	private final AtomicLong updates = new AtomicLong(0);
+	private final AtomicLong failures = new AtomicLong(0);
+
+	/**
+	 * @param name - used for thread name and logging
+	 * @param pool
+	 * @param sql - UPDATE statement with timestamp and row id parameters
+	 * @param id - row id
+	 * @param intervalMs - write at most this often
+	 */
+	public TimestampHeartbeat(final String name, DbPool pool, String sql, String id, long intervalMs) {
+		this.name = name;
+		this.pool = pool;
+		this.sql = sql;
+		this.id = id;
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-heartbeat");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		intervalMs = Math.max(intervalMs, 1);
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				flusher.shutdown();
+				try {
+					flusher.awaitTermination(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					;
+				}
+				flush();
+			}
+		});
+	}
+
+	/**
+	 * Record a newer timestamp for the row
+	 * @param ts
+	 */
+	public void touch(long ts) {
+		touches.incrementAndGet();
+		long cur;
+		do {
+			cur = latest.get();
+			if (cur >= ts)
+				return;
+		} while (!latest.compareAndSet(cur, ts));
+	}
+
+	/**
+	 * Write the latest timestamp if it hasn't been written yet
+	 */
+	public synchronized void flush() {
+		long ts = latest.get();
+		if ((ts == 0) || (ts == written) || !pool.poolValid())
+			return;
+		try {
+			Connection dbc = pool.getDbConnection();
+			try {
+				PreparedStatement pst = dbc.prepareStatement(sql);
+				try {
+					pst.setLong(1, ts);
+					pst.setString(2, id);
+					pst.execute();
+				} finally {
+					pst.close();
+				}
+			} finally {
+				dbc.close();
+			}
+			written = ts;
+			updates.incrementAndGet();
+		} catch (SQLException e) {
+			// the next flush tries again
+			failures.incrementAndGet();
+			Globals.warn("Unable to update " + name + " timestamp: " + e);
+		}
+	}
+
+	public String getStats() {
+		return name + " heartbeat: " + touches.get() + " touches written in " + updates.get() + " updates, " + failures.get() + " failed";
+	}
+}
@@ -0,0 +1,98 @@
+package org.renci.pubsub_daemon.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pattern like NdlToRSpecHelper.SLIVER_URN_PATTERN ("...:@+^+%") split once
+ * into literal text and slots, so filling it is a few StringBuilder appends
+ * instead of a regex compile and scan per slot. Values are inserted literally
+ * (unlike String.replaceAll, '$' and '\' in them have no special meaning, and
+ * slot characters in a value are not substituted again).
+ *
+ */
+public class UrnTemplate {
+	// literals.length == slots.length + 1; literal i comes before slot i
+	private final String[] literals;
+	private final int[] slots;
+	private final int literalLength;
+	private final int lastSlot;
+
+	/**
+	 * @param pattern
+	 * @param slotChars - characters that mark slots in the pattern, in the order fill() takes their values
+	 */
+	public UrnTemplate(String pattern, char... slotChars) {
+		List<String> lits = new ArrayList<String>();
+		StringBuilder sl = new StringBuilder();
+		StringBuilder cur = new StringBuilder();
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (indexOf(slotChars, c) >= 0) {
+				lits.add(cur.toString());
+				cur.setLength(0);
+				sl.append(c);
+			} else
+				cur.append(c);
+		}
+		lits.add(cur.toString());
+		literals = lits.toArray(new String[lits.size()]);
+		slots = new int[sl.length()];
+		int len = 0;
+		// each slot holds the index of its value
+		for (int i = 0; i < slots.length; i++)
+			slots[i] = indexOf(slotChars, sl.charAt(i));
+		lastSlot = slotChars.length - 1;
+		for (String l: literals)
+			len += l.length();
+		literalLength = len;
+	}
+
+	/**
+	 * Fill the slots
+	 * @param values - one per slot character, in the order given to the constructor
+	 * @return
+	 */
+	public String fill(String... values) {
+		int len = literalLength;
+		for (int i = 0; i < slots.length; i++)
+			len += String.valueOf(values[slots[i]]).length();
+		return appendTo(new StringBuilder(len), values).toString();
+	}
+
+	/**
+	 * Append the filled pattern
+	 * @param sb
+	 * @param values - one per slot character, in the order given to the constructor
+	 * @return sb
+	 */
+	public StringBuilder appendTo(StringBuilder sb, String... values) {
+		for (int i = 0; i < slots.length; i++)
+			sb.append(literals[i]).append(values[slots[i]]);
+		return sb.append(literals[slots.length]);
+	}
+
+	/**
+	 * Fill all slots but the last slot character, which must end the pattern, e.g. to
+	 * compute once the part of a URN shared by everything on a node. The full URN is
+	 * the prefix followed by the value of the last slot.
+	 * @param values - for all slot characters but the last one
+	 * @return
+	 * @throws IllegalStateException if the pattern doesn't end with the last slot character
+	 */
+	public String prefix(String... values) {
+		if ((slots.length == 0) || (slots[slots.length - 1] != lastSlot) || (literals[slots.length].length() > 0))
+			throw new IllegalStateException("Pattern doesn't end with the last slot");
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < slots.length - 1; i++)
+			sb.append(literals[i]).append(values[slots[i]]);
+		return sb.append(literals[slots.length - 1]).toString();
+	}
+
+	private static int indexOf(char[] a, char c) {
+		for (int i = 0; i < a.length; i++)
+			if (a[i] == c)
+				return i;
+		return -1;
+	}
+}
@@ -0,0 +1,247 @@
+package org.renci.pubsub_daemon.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.renci.pubsub_daemon.Globals;
+
+/**
+ * Queues rows to be written with a single statement and writes them in JDBC batches,
+ * one transaction per batch. A row replaces any queued row with the same key (latest
+ * wins). The queue is flushed when it reaches the batch size or when the interval
+ * expires, whichever comes first, and on shutdown. Failed batches are retried with
+ * backoff; rows that still fail after several flushes are dropped.
+ *
+ * @param <V> row type
+ */
+public abstract class WriteBehindQueue<V> {
+	private static final int SQL_RETRIES = 3;
+	private static final long RETRY_BACKOFF_MS = 100;
+	// flushes a row may fail before it is dropped
+	private static final int MAX_ROW_ATTEMPTS = 5;
+
+	private final DbPool pool;
+	private final String sql;
+	private final String name;
+	private final int batchSize;
+	private final ScheduledExecutorService flusher;
+
+	// guarded by this
+	private LinkedHashMap<String, Pending<V>> pending = new LinkedHashMap<String, Pending<V>>();
+	private boolean flushScheduled = false;
+
+	private final AtomicLong queued = new AtomicLong(0);
+	private final AtomicLong superseded = new AtomicLong(0);
+	private final AtomicLong written = new AtomicLong(0);
+	private final AtomicLong batches = new AtomicLong(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+
+	private static class Pending<V> {
+		final V row;
+		int attempts = 0;
+
+		Pending(V row) {
+			this.row = row;
+		}
+	}
+
+	/**
+	 * @param name - used for thread name and logging
+	 * @param pool
+	 * @param sql - statement executed for every row
+	 * @param batchSize - flush as soon as this many rows are queued
+	 * @param intervalMs - flush queued rows at least this often
+	 */
+	public WriteBehindQueue(final String name, DbPool pool, String sql, int batchSize, long intervalMs) {
+		this.name = name;
+		this.pool = pool;
+		this.sql = sql;
+		this.batchSize = Math.max(batchSize, 1);
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-flusher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}, intervalMs, Math.max(intervalMs, 1), TimeUnit.MILLISECONDS);
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				Globals.info("Flushing queued " + WriteBehindQueue.this.name + " rows on shutdown");
+				flusher.shutdown();
+				try {
+					flusher.awaitTermination(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					;
+				}
+				flush();
+			}
+		});
+	}
+
+	/**
+	 * Set the statement parameters for one row
+	 * @param pst
+	 * @param row
+	 * @throws SQLException
+	 */
+	protected abstract void bind(PreparedStatement pst, V row) throws SQLException;
+
+	/**
+	 * Called when a row is given up on
+	 * @param key
+	 * @param row
+	 */
+	protected void dropped(String key, V row) {
+	}
+
+	/**
+	 * Queue a row, replacing a queued row with the same key
+	 * @param key
+	 * @param row
+	 */
+	public void enqueue(String key, V row) {
+		queued.incrementAndGet();
+		synchronized(this) {
+			// re-insert so the row takes its place at the end of the queue
+			if (pending.remove(key) != null)
+				superseded.incrementAndGet();
+			pending.put(key, new Pending<V>(row));
+			if ((pending.size() < batchSize) || flushScheduled)
+				return;
+			flushScheduled = true;
+		}
+		flusher.execute(new Runnable() {
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	/**
+	 * Write everything queued so far
+	 */
+	public void flush() {
+		while (true) {
+			LinkedHashMap<String, Pending<V>> batch;
+			synchronized(this) {
+				flushScheduled = false;
+				if (pending.isEmpty())
+					return;
+				batch = pending;
+				pending = new LinkedHashMap<String, Pending<V>>();
+			}
+
+			// write in chunks of batchSize
+			List<Map.Entry<String, Pending<V>>> rows = new ArrayList<Map.Entry<String, Pending<V>>>(batch.entrySet());
+			for (int i = 0; i < rows.size(); i += batchSize) {
+				List<Map.Entry<String, Pending<V>>> chunk = rows.subList(i, Math.min(i + batchSize, rows.size()));
+				try {
+					writeWithRetries(chunk);
+					written.addAndGet(chunk.size());
+					batches.incrementAndGet();
+				} catch (SQLException e) {
+					Globals.error("Unable to write " + chunk.size() + " " + name + " rows: " + e);
+					requeue(chunk);
+				}
+			}
+
+			synchronized(this) {
+				if (pending.size() < batchSize)
+					return;
+			}
+		}
+	}
+
+	private void writeWithRetries(List<Map.Entry<String, Pending<V>>> chunk) throws SQLException {
+		for (int tryIndex = 0; ; tryIndex++) {
+			try {
+				write(chunk);
+				return;
+			} catch (SQLException e) {
+				if (tryIndex >= SQL_RETRIES)
+					throw e;
+				Globals.warn("Retrying " + name + " batch after error: " + e);
+				try {
+					Thread.sleep(RETRY_BACKOFF_MS << tryIndex);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	private void write(List<Map.Entry<String, Pending<V>>> chunk) throws SQLException {
+		Connection dbc = pool.getDbConnection();
+		try {
+			dbc.setAutoCommit(false);
+			PreparedStatement pst = dbc.prepareStatement(sql);
+			try {
+				for (Map.Entry<String, Pending<V>> e: chunk) {
+					bind(pst, e.getValue().row);
+					pst.addBatch();
+				}
+				pst.executeBatch();
+				dbc.commit();
+			} catch (SQLException e) {
+				dbc.rollback();
+				throw e;
+			} finally {
+				pst.close();
+			}
+		} finally {
+			try {
+				dbc.setAutoCommit(true);
+			} finally {
+				dbc.close();
+			}
+		}
+	}
+
+	/**
+	 * Put failed rows back unless newer ones have been queued meanwhile
+	 * @param chunk
+	 */
+	private void requeue(List<Map.Entry<String, Pending<V>>> chunk) {
+		synchronized(this) {
+			LinkedHashMap<String, Pending<V>> merged = new LinkedHashMap<String, Pending<V>>();
+			for (Map.Entry<String, Pending<V>> e: chunk) {
+				Pending<V> p = e.getValue();
+				if (pending.containsKey(e.getKey()))
+					continue;
+				if (++p.attempts >= MAX_ROW_ATTEMPTS) {
+					dropped.incrementAndGet();
+					Globals.error("Giving up on " + name + " row " + e.getKey());
+					dropped(e.getKey(), p.row);
+					continue;
+				}
+				merged.put(e.getKey(), p);
+			}
+			// failed rows go ahead of ones queued since
+			merged.putAll(pending);
+			pending = merged;
+		}
+	}
+
+	public synchronized String getStats() {
+		return name + " write-behind: " + pending.size() + " queued, " + queued.get() + " received, " + superseded.get() + " superseded, " +
+				written.get() + " written in " + batches.get() + " batches, " + dropped.get() + " dropped";
+	}
+}
@@ -0,0 +1,173 @@
+package org.renci.pubsub_daemon.util;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.renci.pubsub_daemon.Globals;
+
+/**
+ * Primary keys of rows known to be in the database, one set per table. Used to
+ * skip INSERT IGNORE statements for rows that are already there, which is what
+ * most republished manifests consist of. Each set holds at most maxEntries keys
+ * (least recently used are dropped) and a key is forgotten after ttlMs so rows
+ * removed behind our back eventually get written again.
+ *
+ */
+public class WrittenKeys {
+	// separates parts of a composite key
+	private static final char KEY_SEPARATOR = '\n';
+
+	private final int maxEntries;
+	private final long ttlMs;
+	// guarded by this
+	private final Map<String, LinkedHashMap<String, Long>> tables = new HashMap<String, LinkedHashMap<String, Long>>();
+	private long hits = 0, misses = 0, expired = 0, evictions = 0, clears = 0;
+
+	/**
+	 * @param maxEntries - keys remembered per table
+	 * @param ttlMs - how long a key is remembered; 0 or less disables the filter
+	 */
+	public WrittenKeys(int maxEntries, long ttlMs) {
+		this.maxEntries = maxEntries;
+		this.ttlMs = ttlMs;
+	}
+
+	public boolean enabled() {
+		return (maxEntries > 0) && (ttlMs > 0);
+	}
+
+	/**
+	 * Key made of several columns
+	 * @param parts
+	 * @return
+	 */
+	public static String key(String... parts) {
+		if (parts.length == 1)
+			return parts[0];
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < parts.length; i++) {
+			if (i > 0)
+				sb.append(KEY_SEPARATOR);
+			sb.append(parts[i]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Is the row known to be written
+	 * @param table
+	 * @param key
+	 * @return
+	 */
+	public synchronized boolean contains(String table, String key) {
+		if (!enabled())
+			return false;
+		LinkedHashMap<String, Long> keys = tables.get(table);
+		Long until = (keys != null ? keys.get(key) : null);
+		if (until == null) {
+			misses++;
+			return false;
+		}
+		if (until < System.currentTimeMillis()) {
+			keys.remove(key);
+			expired++;
+			misses++;
+			return false;
+		}
+		hits++;
+		return true;
+	}
+
+	/**
+	 * Remember that the row is in the database
+	 * @param table
+	 * @param key
+	 */
+	public synchronized void mark(String table, String key) {
+		if (!enabled())
+			return;
+		LinkedHashMap<String, Long> keys = tables.get(table);
+		if (keys == null) {
+			keys = new LinkedHashMap<String, Long>(16, 0.75f, true);
+			tables.put(table, keys);
+		}
+		keys.put(key, System.currentTimeMillis() + ttlMs);
+		Iterator<Long> it = keys.values().iterator();
+		while ((keys.size() > maxEntries) && it.hasNext()) {
+			it.next();
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Forget everything, e.g. after a write failed
+	 */
+	public synchronized void clear() {
+		if (tables.isEmpty())
+			return;
+		Globals.info("Clearing written key filter");
+		tables.clear();
+		clears++;
+	}
+
+	/**
+	 * Load keys of rows already in a table
+	 * @param pool
+	 * @param table
+	 * @param columns - key columns
+	 * @return number of keys loaded
+	 * @throws SQLException
+	 */
+	public int load(DbPool pool, String table, String... columns) throws SQLException {
+		if (!enabled())
+			return 0;
+		StringBuilder query = new StringBuilder("SELECT ");
+		for (int i = 0; i < columns.length; i++) {
+			if (i > 0)
+				query.append(", ");
+			query.append('`').append(columns[i]).append('`');
+		}
+		query.append(" FROM `").append(table).append("` LIMIT ").append(maxEntries);
+
+		int count = 0;
+		Connection dbc = pool.getDbConnection();
+		try {
+			Statement st = dbc.createStatement();
+			try {
+				ResultSet rs = st.executeQuery(query.toString());
+				String[] parts = new String[columns.length];
+				while (rs.next()) {
+					for (int i = 0; i < columns.length; i++)
+						parts[i] = rs.getString(i + 1);
+					mark(table, key(parts));
+					count++;
+				}
+				rs.close();
+			} finally {
+				st.close();
+			}
+		} finally {
+			dbc.close();
+		}
+		return count;
+	}
+
+	public synchronized String getStats() {
+		if (!enabled())
+			return "written key filter: disabled";
+		int size = 0;
+		for (LinkedHashMap<String, Long> keys: tables.values())
+			size += keys.size();
+		long lookups = hits + misses;
+		return "written key filter: " + size + " keys in " + tables.size() + " tables, " + hits + "/" + lookups + " rows skipped (" +
+				(lookups > 0 ? (100 * hits / lookups) : 0) + "%), " + expired + " expired, " + evictions + " evicted, " +
+				clears + " times cleared";
+	}
+}
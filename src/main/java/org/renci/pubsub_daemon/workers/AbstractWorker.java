@@ -8,13 +8,16 @@ import org.renci.pubsub_daemon.Globals;
 /**
  * Worker interface for manifest processors. Multiple workers can be invoked on 
  * the same manifest. Workers must be registered with ManifestWorkerThread
+ * 
+ * There is one instance of each worker and it is invoked from several threads at
+ * once, so per-manifest state belongs in the ManifestContext or in local variables,
+ * never in fields.
  * @author ibaldin
  *
  */
 public abstract class AbstractWorker {
 	
 	public enum DocType { NDL_MANIFEST, COMPRESSED_NDL_MANIFEST, RSPEC_MANIFEST };
-	protected Map<DocType, String> manifests;
 	
 	/**
 	 * Provide the name/description of this worker plugin
@@ -34,15 +37,41 @@ public abstract class AbstractWorker {
 	public abstract void runAtStartup();
 	
 	/**
-	 * Process manifests of different types (as indicated by listManifestTypes())
+	 * Workers that parse the NDL manifest can return a fresh listener here. The manifest
+	 * is then parsed once for all workers and the populated listener is handed
+	 * back in processManifest(). Return null if not needed (default).
+	 * @param sliceUrn
+	 * @return
+	 */
+	public INdlParseListener getNdlParseListener(String sliceUrn) {
+		return null;
+	}
+	
+	/**
+	 * Process one manifest (of the types listed by listDocTypes()); this is what
+	 * ManifestWorkerThread calls. The context has the listener from getNdlParseListener()
+	 * populated by a shared parse and, for workers that list RSPEC_MANIFEST, what changed
+	 * since the last manifest of the slice; either may be null, in which case the worker
+	 * parses the manifest itself and processes it in full.
+	 * @param ctx
+	 * @throws RuntimeException
+	 */
+	public abstract void processManifest(ManifestContext ctx) throws RuntimeException;
+	
+	/**
+	 * Process manifests without a shared parse or delta
 	 * @param manifests
 	 * @param sliceUrn
 	 * @param sliceUuid
 	 * @param sliceSmName
 	 * @param sliceSmGuid
 	 * @throws RuntimeException
+	 * @deprecated use processManifest(ManifestContext)
 	 */
-	public abstract void processManifest(Map<DocType, String> manifests, String sliceUrn, String sliceUuid, String sliceSmName, String sliceSmGuid) throws RuntimeException;
+	@Deprecated
+	public void processManifest(Map<DocType, String> manifests, String sliceUrn, String sliceUuid, String sliceSmName, String sliceSmGuid) throws RuntimeException {
+		processManifest(new ManifestContext(manifests, null, null, sliceUrn, sliceUuid, sliceSmName, sliceSmGuid));
+	}
 	
 	/**
 	 * Check that the supplied manifests are of the right types
@@ -55,6 +84,14 @@ public abstract class AbstractWorker {
 		}
 	}
 
+	/**
+	 * Runtime statistics for the status line (null if the worker has none)
+	 * @return
+	 */
+	public String getStats() {
+		return null;
+	}
+
 	/**
 	 * Get a configuration property from properties file (null if not set)
 	 * @param name
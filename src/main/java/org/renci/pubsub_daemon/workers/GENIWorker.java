@@ -1,14 +1,11 @@
 package org.renci.pubsub_daemon.workers;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.charset.Charset;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -17,32 +14,32 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.naming.InvalidNameException;
 import javax.naming.ldap.LdapName;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
+import javax.xml.stream.XMLStreamException;
 
 import orca.ndl.NdlToRSpecHelper;
 
 import org.renci.pubsub_daemon.Globals;
 import org.renci.pubsub_daemon.ManifestSubscriber;
 import org.renci.pubsub_daemon.util.DbPool;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
-import org.xml.sax.SAXParseException;
+import org.renci.pubsub_daemon.util.SpillQueue;
+import org.renci.pubsub_daemon.util.SqlUnitOfWork;
+import org.renci.pubsub_daemon.util.TimestampHeartbeat;
+import org.renci.pubsub_daemon.util.UrnTemplate;
+import org.renci.pubsub_daemon.util.WrittenKeys;
+import org.renci.pubsub_daemon.workers.RSpecManifestReader.Sliver;
+import org.renci.pubsub_daemon.workers.RSpecManifestReader.SliverInfo;
 
 public class GENIWorker extends AbstractWorker {
 	private static final String VTYPE_KVM = "kvm";
@@ -59,10 +56,6 @@ public class GENIWorker extends AbstractWorker {
 	//String selfRefPrefix = "http://rci-hn.exogeni.net/info/";
 	private static final String selfRefPrefix = getConfigProperty(GENI_SELFREF_PREFIX_PROPERTY);
 
-	protected static final String COMMON_PATH = "/rspec/*/";
-	protected static final String SLIVER_INFO_PATH = "geni_sliver_info";
-	protected static final String COMPONENT_MANAGER = "component_manager";
-	protected static final String SLIVER_TYPE = "sliver_type/@name";
 
 	private static final String GENIDS_URL = "GENIDS.url";
 	private static final String GENIDS_USER = "GENIDS.user";
@@ -71,16 +64,58 @@ public class GENIWorker extends AbstractWorker {
 	private static final String GENI_LINK_CALLBACK = "GENI.callback.link";
 	private static final String GENI_NODE_CALLBACK = "GENI.callback.node";
 	private static final String GENI_SITE_PREFIX = "GENI.site.prefix";
+	private static final String GENI_CALLBACK_BATCH = "GENI.callback.batch";
+	private static final String GENI_CALLBACK_DEDUP_MAX = "GENI.callback.dedup.max";
+	private static final String GENI_CALLBACK_DEDUP_TTL = "GENI.callback.dedup.ttl";
 
-	protected GENIWorkerManifestParser wmp = null;
 	protected static DbPool conPool = null;
 	protected static Boolean flag = true;
-	
-	protected Map<String, String> interfaceToNode = new HashMap<String, String>();
-	protected Map<String, String> interfaceToLink = new HashMap<String, String>();
-	protected Map<String, String> nodeToAggregate = new HashMap<String, String>();
+	// manifests that could not be written, replayed when the datastore is back (null if not configured)
+	private static SpillQueue spill = null;
+	// coalesces ops_aggregate timestamp updates
+	private static TimestampHeartbeat heartbeat = null;
+	private static final String GENI_HEARTBEAT_INTERVAL = "GENI.aggregate.heartbeat.interval";
 
-	protected String sliceUrn, sliceUuid, sliceSmName, sliceSmGuid;
+	/**
+	 * State of processing one manifest. The worker is shared by all manifest
+	 * threads, so nothing about a manifest is kept in its fields.
+	 */
+	private static class Invocation {
+		final ManifestContext ctx;
+		final GENIWorkerManifestParser wmp;
+		final String sliceUrn, sliceUuid;
+		// changes since the last manifest of the slice, null to write everything
+		final SliceDelta delta;
+
+		final Map<String, String> interfaceToNode = new HashMap<String, String>();
+		final Map<String, String> interfaceToLink = new HashMap<String, String>();
+		final Map<String, String> nodeToAggregate = new HashMap<String, String>();
+		final Map<String, NodeIds> nodeIds = new HashMap<String, NodeIds>();
+
+		// everything for this manifest is written in one transaction
+		final SqlUnitOfWork unit = new SqlUnitOfWork(writtenKeys);
+		final List<List<String>> callbacks = new ArrayList<List<String>>();
+		// slivers not changed since the last manifest, by node/link id
+		final Set<String> unchanged = new HashSet<String>();
+
+		Invocation(ManifestContext ctx, GENIWorkerManifestParser wmp) {
+			this.ctx = ctx;
+			this.wmp = wmp;
+			this.sliceUrn = ctx.getSliceUrn();
+			this.sliceUuid = ctx.getSliceUuid();
+			this.delta = ctx.getDelta();
+		}
+	}
+
+	// one callback invocation per manifest with records on stdin instead of one per sliver (read when the worker is created)
+	private final boolean batchCallbacks = Globals.getInstance().getConfigPropertyBoolean(GENI_CALLBACK_BATCH, false);
+	// callbacks already delivered, by executable and arguments (off unless a ttl is set)
+	private final WrittenKeys deliveredCallbacks = new WrittenKeys(
+			Globals.getInstance().getConfigPropertyInt(GENI_CALLBACK_DEDUP_MAX, 100000), 
+			Globals.getInstance().getConfigPropertyLong(GENI_CALLBACK_DEDUP_TTL, 0)*1000);
+	private static final AtomicLong callbackRuns = new AtomicLong(0);
+	private static final AtomicLong callbacksDelivered = new AtomicLong(0);
+	private static final AtomicLong callbacksSuppressed = new AtomicLong(0);
 
 	// create a static pool size that gets whacked on exit
 	private static ExecutorService threadPool = null;
@@ -105,104 +140,249 @@ public class GENIWorker extends AbstractWorker {
 		return GENIWorkerName;
 	}
 
-	@Override
-	public void processManifest(Map<DocType, String> manifests,
-			String sliceUrn, String sliceUuid, String sliceSmName,
-			String sliceSmGuid) throws RuntimeException {
-
+	/**
+	 * Create the datastore pool, spill queue and aggregate heartbeat on first use
+	 */
+	private static void initDatastore() {
 		synchronized(flag) {
-			if (conPool == null) 
-				conPool = new DbPool(Globals.getInstance().getConfigProperty(GENIDS_URL), 
+			if (conPool == null) {
+				conPool = DbPool.getPool(Globals.getInstance().getConfigProperty(GENIDS_URL), 
 						Globals.getInstance().getConfigProperty(GENIDS_USER), 
 						Globals.getInstance().getConfigProperty(GENIDS_PASS));
+				spill = SpillQueue.create("GENI", conPool);
+			}
+			if (heartbeat == null)
+				heartbeat = new TimestampHeartbeat("ops_aggregate", conPool, "UPDATE ops_aggregate SET ts=? WHERE id=?", 
+						getConfigProperty(GENI_SITE_PREFIX) + "vmsite", 
+						Globals.getInstance().getConfigPropertyLong(GENI_HEARTBEAT_INTERVAL, 1000));
 		}
+	}
+
+	@Override
+	public INdlParseListener getNdlParseListener(String sliceUrn) {
+		return new GENIWorkerManifestParser(sliceUrn);
+	}
+	
+	@Override
+	public void processManifest(ManifestContext ctx) throws RuntimeException {
+		checkManifests(ctx.getManifests());
+		
+		GENIWorkerManifestParser parser;
+		if (ctx.getParsed() instanceof GENIWorkerManifestParser) {
+			parser = (GENIWorkerManifestParser)ctx.getParsed();
+			try {
+				parser.checkParseError();
+			} catch (Exception e) {
+				throw new RuntimeException("Unable to parse NDL manifest for " + ctx.getSliceUrn() + ": " + e.getMessage());
+			}
+		} else {
+			// parse NDL manifest first
+			parser = new GENIWorkerManifestParser(ctx.getSliceUrn());
+			try {
+				parser.parse(ctx.getManifest(DocType.NDL_MANIFEST));
+			} catch (Exception e) {
+				throw new RuntimeException("Unable to parse NDL manifest for " + ctx.getSliceUrn() + ": " + e.getMessage());
+			}
+		}
+		
+		initDatastore();
+		
+		Globals.info("Processing slice " + ctx.getSliceUrn() + (ctx.getDelta() != null ? ", " + ctx.getDelta() : ""));
+		insertInDb(new Invocation(ctx, parser));
+	}
 
-		checkManifests(manifests);
+	private final static int SQL_RETRIES = 3;
 
-		this.manifests = manifests;
-		this.sliceUrn = sliceUrn;
-		this.sliceUuid = sliceUuid;
-		this.sliceSmName = sliceSmName;
-		this.sliceSmGuid = sliceSmGuid;
+	private static final String SET_FK_CHECKS_OFF = "SET foreign_key_checks=0";
+	private static final String SET_FK_CHECKS_ON = "SET foreign_key_checks=1";
+
+	// database writes, one transaction per manifest
+	private static final AtomicLong units = new AtomicLong(0);
+	private static final AtomicLong unitRows = new AtomicLong(0);
+	private static final AtomicLong unitRoundTrips = new AtomicLong(0);
+	private static final AtomicLong unitRetries = new AtomicLong(0);
+	private static final AtomicLong unitFailures = new AtomicLong(0);
+
+	// rows already in the datastore, so republished manifests don't rewrite them
+	private static final String GENI_WRITTEN_KEYS_MAX = "GENI.written.keys.max";
+	private static final String GENI_WRITTEN_KEYS_TTL = "GENI.written.keys.ttl";
+	private static final WrittenKeys writtenKeys = new WrittenKeys(
+			Globals.getInstance().getConfigPropertyInt(GENI_WRITTEN_KEYS_MAX, 100000), 
+			Globals.getInstance().getConfigPropertyLong(GENI_WRITTEN_KEYS_TTL, 3600)*1000);
+	// tables and key columns written with INSERT IGNORE
+	private static final String[][] WRITTEN_KEY_TABLES = {
+		{ "ops_node", "id" }, { "ops_link", "id" }, { "ops_sliver", "id" }, 
+		{ "ops_interfacevlan", "id" }, { "ops_interface", "id" },
+		{ "ops_aggregate_sliver", "id", "aggregate_id" }, { "ops_aggregate_resource", "id", "aggregate_id" },
+		{ "ops_link_interfacevlan", "id", "link_id" }, { "ops_node_interface", "id", "node_id" } };
 
-		// parse NDL manifest first
-		wmp = new GENIWorkerManifestParser(sliceUrn);
-		try {
-			wmp.parse(manifests.get(DocType.NDL_MANIFEST));
-		} catch (Exception e) {
-			throw new RuntimeException("Unable to parse NDL manifest for " + sliceUrn + ": " + e.getMessage());
+	/**
+	 * Write everything collected for the manifest in one transaction, then run the callbacks
+	 * @param inv
+	 */
+	private void saveAndCallback(Invocation inv) {
+		SqlUnitOfWork unit = inv.unit;
+		if (!unit.isEmpty()) {
+			if (!conPool.poolValid()) {
+				Globals.error("Datastore parameters are not valid, not saving");
+			} else if ((spill != null) && spill.hasPending(inv.ctx.getSliceKey())) {
+				// earlier manifests of the slice are still waiting, this one goes after them
+				spillUnit(inv);
+			} else {
+				Globals.debug("Saving " + unit.size() + " rows in " + unit.roundTrips() + " statements for slice " + inv.sliceUrn);
+				try {
+					unit.execute(conPool, SQL_RETRIES);
+				} catch (SQLException se) {
+					unitFailures.incrementAndGet();
+					if (spill == null)
+						throw new RuntimeException("Unable to insert into the database: " + se);
+					Globals.error("Unable to insert into the database, saving for later: " + se);
+					spillUnit(inv);
+				} finally {
+					units.incrementAndGet();
+					unitRows.addAndGet(unit.size());
+					unitRoundTrips.addAndGet((long)unit.roundTrips() * unit.attempts());
+					unitRetries.addAndGet(unit.attempts() - 1);
+				}
+			}
 		}
-		
-		Globals.info("Processing slice " + sliceUrn);
-		insertInDb();
+
+		runCallbacks(inv);
 	}
 
-	private void executeAndClose(PreparedStatement pst) {
-		executeAndClose(pst, 0);
+	/**
+	 * Run the node and link callbacks of the manifest, skipping those already delivered
+	 * with the same arguments if that is enabled. In batch mode each callback executable
+	 * runs once per manifest and gets its records on stdin, one line of tab-separated
+	 * arguments each, with backslash, tab, newline and carriage return in arguments
+	 * escaped as \\, \t, \n and \r.
+	 * @param inv
+	 */
+	private void runCallbacks(Invocation inv) {
+		// arguments by executable
+		Map<String, List<List<String>>> byExecutable = new LinkedHashMap<String, List<List<String>>>();
+		for (List<String> myCommand: inv.callbacks) {
+			String exe = myCommand.get(0);
+			List<String> args = myCommand.subList(1, myCommand.size());
+			if (deliveredCallbacks.contains(exe, callbackKey(args))) {
+				callbacksSuppressed.incrementAndGet();
+				continue;
+			}
+			List<List<String>> l = byExecutable.get(exe);
+			if (l == null) {
+				l = new ArrayList<List<String>>();
+				byExecutable.put(exe, l);
+			}
+			l.add(args);
+		}
+
+		for (Map.Entry<String, List<List<String>>> e: byExecutable.entrySet()) {
+			final String exe = e.getKey();
+			if (batchCallbacks) {
+				final List<List<String>> records = e.getValue();
+				threadPool.submit(new Runnable() {
+					@Override
+					public void run() {
+						StringBuilder sb = new StringBuilder();
+						for (List<String> args: records) {
+							for (int i = 0; i < args.size(); i++)
+								appendEscaped(sb.append(i > 0 ? "\t" : ""), String.valueOf(args.get(i)));
+							sb.append('\n');
+						}
+						callbackRuns.incrementAndGet();
+						if (Globals.executeCommand(Collections.singletonList(exe), null, sb.toString()) != null) {
+							callbacksDelivered.addAndGet(records.size());
+							for (List<String> args: records)
+								deliveredCallbacks.mark(exe, callbackKey(args));
+						}
+					}
+				});
+			} else {
+				for (final List<String> args: e.getValue()) {
+					threadPool.submit(new Runnable() {
+						@Override
+						public void run() {
+							List<String> myCommand = new ArrayList<String>(args.size() + 1);
+							myCommand.add(exe);
+							myCommand.addAll(args);
+							callbackRuns.incrementAndGet();
+							if (Globals.executeCommand(myCommand, null) != null) {
+								callbacksDelivered.incrementAndGet();
+								deliveredCallbacks.mark(exe, callbackKey(args));
+							}
+						}
+					});
+				}
+			}
+		}
 	}
 
-	private final static int SQL_RETRIES = 3;
+	/**
+	 * Append a batch record field so it can't break the record into more fields or lines
+	 * @param sb
+	 * @param s
+	 * @return sb
+	 */
+	static StringBuilder appendEscaped(StringBuilder sb, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch(c) {
+			case '\\': sb.append("\\\\"); break;
+			case '\t': sb.append("\\t"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			default: sb.append(c);
+			}
+		}
+		return sb;
+	}
 
-	private void _executeAndClose(PreparedStatement pst, int tryIndex) {
-		try {
-			pst.execute();
-		} catch (SQLException e) {
-			if (tryIndex < SQL_RETRIES)
-				_executeAndClose(pst, ++tryIndex);
-			else
-				throw new RuntimeException("Unable to insert into the database: " + e);
-		} 	
+	private static String callbackKey(List<String> args) {
+		return WrittenKeys.key(args.toArray(new String[args.size()]));
 	}
-	
+
 	/**
-	 * Guard against transient SQL errors
-	 * @param pst
-	 * @param tryIndex
+	 * Save the unit to be written when the datastore is available. Callbacks
+	 * still run right away since the rows will get there.
+	 * @param inv
 	 */
-	private void executeAndClose(PreparedStatement pst, int tryIndex) {
-		_executeAndClose(pst, tryIndex);
+	private void spillUnit(Invocation inv) {
 		try {
-			pst.close();
-		} catch (SQLException se) {
-			;
+			spill.enqueue(inv.ctx.getSliceKey(), inv.unit);
+		} catch (IOException ie) {
+			throw new RuntimeException("Unable to insert into the database or save for later: " + ie);
 		}
 	}
 
-	private void insertInDb() {
+	@Override
+	public String getStats() {
+		return "GENI datastore: " + units.get() + " transactions of " + unitRows.get() + " rows in " + unitRoundTrips.get() + 
+				" statements, " + unitRetries.get() + " retries, " + unitFailures.get() + " failed; " + writtenKeys.getStats() + 
+				(heartbeat != null ? "; " + heartbeat.getStats() : "") + (spill != null ? "; " + spill.getStats() : "") + 
+				"; callbacks: " + callbacksDelivered.get() + " delivered in " + callbackRuns.get() + " runs" + (batchCallbacks ? " (batched)" : "") + 
+				", " + callbacksSuppressed.get() + " suppressed as already delivered";
+	}
+
+	private void insertInDb(Invocation inv) {
 		try {
 			if (selfRefPrefix == null) {
 				Globals.error("selfref.prefix is not set; should be a url pointing to this datastore");
 			}
 
-			DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
-			DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
-			Document doc = docBuilder.parse(new ByteArrayInputStream(manifests.get(DocType.RSPEC_MANIFEST).getBytes(Charset.forName("UTF-8"))));
-
-			// normalize text representation
-			doc.getDocumentElement().normalize();
-
-			XPathFactory xPathfactory = XPathFactory.newInstance();
-			XPath xpath = xPathfactory.newXPath();
-			// look for nodes and links
-			XPathExpression expr = xpath.compile("/rspec/node");
-			NodeList nl = (NodeList)expr.evaluate(doc, XPathConstants.NODESET);
-			insertSliverInfo(nl, xpath, SliverType.node);
-
-			expr = xpath.compile("/rspec/link");
-			nl = (NodeList)expr.evaluate(doc, XPathConstants.NODESET);
-			insertSliverInfo(nl, xpath, SliverType.link);
+			// one pass over the manifest
+			RSpecManifestReader rspec = new RSpecManifestReader(inv.ctx.getManifest(DocType.RSPEC_MANIFEST));
+			insertSliverInfo(inv, rspec.getNodes(), SliverType.node);
+			insertSliverInfo(inv, rspec.getLinks(), SliverType.link);
 			
 			// deal with interfaces after the fact (everything has been parsed)
-			insertInterfaceInfo();
+			insertInterfaceInfo(inv);
 
-		} catch (SAXParseException err) {
-			throw new RuntimeException("Unable to parse document line " + err.getLineNumber () + ", uri " + err.getSystemId () + " " + err.getMessage ());
-		} catch (SAXException e) {
-			throw new RuntimeException("SAX exception: " + e);
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw new RuntimeException("Unable to parse the manifest: " + e);
+		} catch (XMLStreamException xe) {
+			throw new RuntimeException("Unable to parse document" + (xe.getLocation() != null ? " line " + xe.getLocation().getLineNumber() : "") + 
+					" " + xe.getMessage());
 		}
+
+		saveAndCallback(inv);
 	}
 
 	@Override
@@ -236,194 +416,153 @@ public class GENIWorker extends AbstractWorker {
 	}
 
 	// insert and run a callback
-	private void insertNode(Node nl, XPath xpath, String guid, String id, String urn, String href, Date ts, Connection dbc) {
-		try {
-			String nodeType = xpath.compile(SLIVER_TYPE).evaluate(nl);
-			Globals.info("Adding node " + urn + " of " + id + " to node table and callback");
-			
-			String nodeId = guid + ":" + id;
-			// get the interfaces
-			NodeList ifaces = (NodeList)xpath.compile("interface/@client_id").evaluate(nl, XPathConstants.NODESET);
-			for(int i = 0; i < ifaces.getLength(); i++) {
-				String ifName = ifaces.item(i).getNodeValue();
-				interfaceToNode.put(ifName, nodeId);
-			}
-			
-			// based on type, guess the memory
-			String size;
-			String nType;
-			String vType = null;
-			if ((nodeType != null) && (instanceDetails.containsKey(nodeType))) {
-				size = instanceDetails.get(nodeType)[0];
-				nType = instanceDetails.get(nodeType)[1];
-				if (NTYPE_VM.equals(nType))
-					vType = VTYPE_KVM;
-			} else {
-				Globals.warn("Unable to dermine instance size for " + nodeType + ", setting to 0");
-				size = "0";
-				nType = NTYPE_VM;
-			}
-			// insert into table
-			if (Globals.getInstance().isDebugOn()) {
-				Globals.debug("Instance size for " + nodeType + " is " + size);
-			}
+	private void insertNode(Invocation inv, Sliver sliver, String guid, String id, String urn, String href, Date ts, boolean write) {
+		String nodeType = sliver.sliverType;
+		Globals.info("Adding node " + urn + " of " + id + " to node table and callback");
+		
+		String nodeId = guid + ":" + id;
+		// get the interfaces
+		for(String ifName: sliver.interfaces) {
+			inv.interfaceToNode.put(ifName, nodeId);
+		}
+		if (!write)
+			return;
+		
+		// based on type, guess the memory
+		String size;
+		String nType;
+		String vType = null;
+		if ((nodeType != null) && (instanceDetails.containsKey(nodeType))) {
+			size = instanceDetails.get(nodeType)[0];
+			nType = instanceDetails.get(nodeType)[1];
+			if (NTYPE_VM.equals(nType))
+				vType = VTYPE_KVM;
+		} else {
+			Globals.warn("Unable to dermine instance size for " + nodeType + ", setting to 0");
+			size = "0";
+			nType = NTYPE_VM;
+		}
+		// insert into table
+		if (Globals.getInstance().isDebugOn()) {
+			Globals.debug("Instance size for " + nodeType + " is " + size);
+		}
 
-			if (!conPool.poolValid()) {
-				Globals.error("Datastore parameters are not valid, not saving");
-			} else {
-				// insert into ops_node
-				Globals.debug("Inserting into ops_node");
-				PreparedStatement pst1 = dbc.prepareStatement("INSERT IGNORE INTO `ops_node` ( `$schema` , `id` , `selfRef` , `urn` , `ts`, `properties$mem_total_kb`, " + 
-						"`node_type`, `virtualization_type` ) values (?, ?, ?, ?, ?, ?, ?, ?)");
-				pst1.setString(1, getConfigProperty(GENI_SCHEMA_PREFIX_PROPERTY) + "node#");
-				pst1.setString(2, nodeId);
-				pst1.setString(3, href);
-				pst1.setString(4, urn);
-				pst1.setLong(5, ts.getTime()*MS_TO_US);
-				pst1.setString(6, size);
-				pst1.setString(7, nType);
-				pst1.setString(8, vType);
-				executeAndClose(pst1);
-			}
-			
-			URI pUrl = null;
-			try {
-				String tmpProp = Globals.getInstance().getConfigProperty(GENI_NODE_CALLBACK);
-				if (tmpProp != null)
-					tmpProp = tmpProp.trim();
-				pUrl = new URI(tmpProp);
-			} catch (URISyntaxException e) {
-				Globals.error("Error publishing to invalid URL: " + Globals.getInstance().getConfigProperty(GENI_NODE_CALLBACK));
-				return;
-			} catch (NullPointerException ne) {
-				;
-			}
+		// insert into ops_node
+		Globals.debug("Inserting into ops_node");
+		inv.unit.addOnce("ops_node", nodeId, "INSERT IGNORE INTO `ops_node` ( `$schema` , `id` , `selfRef` , `urn` , `ts`, `properties$mem_total_kb`, " + 
+				"`node_type`, `virtualization_type` ) values (?, ?, ?, ?, ?, ?, ?, ?)", 
+				getConfigProperty(GENI_SCHEMA_PREFIX_PROPERTY) + "node#", nodeId, href, urn, ts.getTime()*MS_TO_US, size, nType, vType);
+		
+		URI pUrl = null;
+		try {
+			String tmpProp = Globals.getInstance().getConfigProperty(GENI_NODE_CALLBACK);
+			if (tmpProp != null)
+				tmpProp = tmpProp.trim();
+			pUrl = new URI(tmpProp);
+		} catch (URISyntaxException e) {
+			Globals.error("Error publishing to invalid URL: " + Globals.getInstance().getConfigProperty(GENI_NODE_CALLBACK));
+			return;
+		} catch (NullPointerException ne) {
+			;
+		}
 
-			// exec 
-			if ((pUrl != null) && ("exec".equals(pUrl.getScheme()))) {
-				// run through an executable
+		// exec 
+		if ((pUrl != null) && ("exec".equals(pUrl.getScheme()))) {
+			// run through an executable
 
-				Globals.info("Running through node callback " + pUrl.getPath());
-				final ArrayList<String> myCommand = new ArrayList<String>();
+			Globals.info("Running through node callback " + pUrl.getPath());
+			final ArrayList<String> myCommand = new ArrayList<String>();
 
-				myCommand.add(pUrl.getPath());
-				myCommand.add(sliceUuid);
-				myCommand.add(guid);
-				myCommand.add(nodeType);
-				myCommand.add(id);
-				myCommand.add(urn);
-				myCommand.add(href);
+			myCommand.add(pUrl.getPath());
+			myCommand.add(inv.sliceUuid);
+			myCommand.add(guid);
+			myCommand.add(nodeType);
+			myCommand.add(id);
+			myCommand.add(urn);
+			myCommand.add(href);
 
-				threadPool.submit(new Runnable() {
-					@Override
-					public void run() {
-						Globals.executeCommand(myCommand, null);
-					}
-				});
-			} else {
-				Globals.error("Node callback invalid or not specified: " + (pUrl != null ? pUrl.toString() : "null"));
-			}
-		} catch (XPathExpressionException xe) {
-			throw new RuntimeException("XPath exception: " + xe);
-		} catch(SQLException se) {
-			throw new RuntimeException("SQL exception: " + se);
+			// runs once the manifest is saved
+			inv.callbacks.add(myCommand);
+		} else {
+			Globals.error("Node callback invalid or not specified: " + (pUrl != null ? pUrl.toString() : "null"));
 		}
 	}
 
 	// insert and run a callback
-	private void insertLink(Node nl, XPath xpath, String guid, String id, String urn, String href, Date ts, Connection dbc) {
+	private void insertLink(Invocation inv, Sliver sliver, String guid, String id, String urn, String href, Date ts, boolean write) {
+		Globals.info("Adding link " + urn + " of vlan " + id + " to link table and callback");
+		
+		// get the interfaces
+		for(String ifName: sliver.interfaces) {
+			inv.interfaceToLink.put(ifName, guid + ":" + id);
+		}
+		if (!write)
+			return;
+		
+		// insert into ops_link
+		Globals.debug("Inserting into ops_link");
+		inv.unit.addOnce("ops_link", guid + ":" + id, INSERT_LINK, getConfigProperty(GENI_SCHEMA_PREFIX_PROPERTY) + "link#", guid + ":" + id, href, urn, ts.getTime()*MS_TO_US);
+
+		URI pUrl = null;
 		try {
-			Globals.info("Adding link " + urn + " of vlan " + id + " to link table and callback");
-			
-			// get the interfaces
-			NodeList ifaces = (NodeList)xpath.compile("interface_ref/@client_id").evaluate(nl, XPathConstants.NODESET);
-			for(int i = 0; i < ifaces.getLength(); i++) {
-				String ifName = ifaces.item(i).getNodeValue();
-				interfaceToLink.put(ifName, guid + ":" + id);
-			}
-			
-			if (!conPool.poolValid()) {
-				Globals.error("Datastore parameters are not valid, not saving to ops_link");
-			} else {
-				// insert into ops_link
-				Globals.debug("Inserting into ops_link");
-				PreparedStatement pst1 = dbc.prepareStatement("INSERT IGNORE INTO `ops_link` ( `$schema` , `id` , `selfRef` , `urn` , `ts` )" + 
-						" values (?, ?, ?, ?, ?)");
-				pst1.setString(1, getConfigProperty(GENI_SCHEMA_PREFIX_PROPERTY) + "link#");
-				pst1.setString(2, guid + ":" + id);
-				pst1.setString(3, href);
-				pst1.setString(4, urn);
-				pst1.setLong(5, ts.getTime()*MS_TO_US);
-				executeAndClose(pst1);
-			}
-			URI pUrl = null;
-			try {
-				String tmpProp = Globals.getInstance().getConfigProperty(GENI_LINK_CALLBACK);
-				if (tmpProp != null)
-					tmpProp = tmpProp.trim();
-				pUrl = new URI(tmpProp);
-			} catch (URISyntaxException e) {
-				Globals.error("Error publishing to invalid URL: " + Globals.getInstance().getConfigProperty(GENI_LINK_CALLBACK));
-				return;
-			} catch (NullPointerException ne) {
-				;
-			}
+			String tmpProp = Globals.getInstance().getConfigProperty(GENI_LINK_CALLBACK);
+			if (tmpProp != null)
+				tmpProp = tmpProp.trim();
+			pUrl = new URI(tmpProp);
+		} catch (URISyntaxException e) {
+			Globals.error("Error publishing to invalid URL: " + Globals.getInstance().getConfigProperty(GENI_LINK_CALLBACK));
+			return;
+		} catch (NullPointerException ne) {
+			;
+		}
 
-			// exec 
-			if ((pUrl != null) && ("exec".equals(pUrl.getScheme()))) {
-				// run through an executable
+		// exec 
+		if ((pUrl != null) && ("exec".equals(pUrl.getScheme()))) {
+			// run through an executable
 
-				Globals.info("Running through link callback " + pUrl.getPath());
-				final ArrayList<String> myCommand = new ArrayList<String>();
+			Globals.info("Running through link callback " + pUrl.getPath());
+			final ArrayList<String> myCommand = new ArrayList<String>();
 
-				myCommand.add(pUrl.getPath());
-				myCommand.add(sliceUuid);
-				myCommand.add(guid);
-				myCommand.add(id);
-				myCommand.add(urn);
-				myCommand.add(href);
+			myCommand.add(pUrl.getPath());
+			myCommand.add(inv.sliceUuid);
+			myCommand.add(guid);
+			myCommand.add(id);
+			myCommand.add(urn);
+			myCommand.add(href);
 
-				threadPool.submit(new Runnable() {
-					@Override
-					public void run() {
-						Globals.executeCommand(myCommand, null);
-					}
-				});
-			} else {
-				Globals.error("Link callback invalid or not specified: " + (pUrl != null ? pUrl.toString() : "null"));
-			}
-			
-		} catch(SQLException se) {
-			throw new RuntimeException("SQL exception: " + se);
-		} catch (XPathExpressionException xe) {
-			throw new RuntimeException("XPath exception: " + xe);
+			// runs once the manifest is saved
+			inv.callbacks.add(myCommand);
+		} else {
+			Globals.error("Link callback invalid or not specified: " + (pUrl != null ? pUrl.toString() : "null"));
 		}
 	}
 
 	private enum SliverType {node, link};
 
-	private void insertSliverInfo(NodeList nl, XPath xpath, SliverType t) {
+	private static final String INSERT_LINK_INTERFACEVLAN = "INSERT IGNORE INTO `ops_link_interfacevlan` ( `id` , `link_id` ) values (?, ?)";
+	private static final String INSERT_LINK = "INSERT IGNORE INTO `ops_link` ( `$schema` , `id` , `selfRef` , `urn` , `ts` ) values (?, ?, ?, ?, ?)";
+
+	private void insertSliverInfo(Invocation inv, List<Sliver> nl, SliverType t) {
 		// insert into datastore
-		Connection dbc = null;
 		try {
 			// get sliver information
-			Globals.debug("There are " + nl.getLength() + " elements of type " + t.name());
+			Globals.debug("There are " + nl.size() + " elements of type " + t.name());
 			String shortName = Globals.getInstance().getConfigProperty(GENI_SITE_PREFIX);
 			if ((shortName == null) || (shortName.length() == 0)) {
 				Globals.warn("No short site prefix GENI.site.prefix specified in the configuration, no slivers will be inserted in the database");
 				return;
 			}
-			for (int i = 0; i < nl.getLength(); i++) {
+			for (Sliver sliver: nl) {
 
-				String type = nl.item(i).getNodeName();
+				String type = sliver.elementName;
 
-				URI sliver_urn = new URI(xpath.compile("@sliver_id").evaluate(nl.item(i)));
+				URI sliver_urn = new URI(sliver.sliverId);
 
 				String sliver_id = sliver_urn.toString().replaceFirst("urn:publicid:IDN\\+", "").replaceAll("[+:]", "_");
 				String sliver_href = selfRefPrefix + "sliver/" + sliver_id;
 
 				//String sliver_uuid = sliver_urn.toString().replaceFirst("urn.+sliver\\+", "").split(":")[0];
-				String sliver_uuid = wmp.getReservationId(sliver_urn.toString());
+				String sliver_uuid = inv.wmp.getReservationId(sliver_urn.toString());
 				if (sliver_uuid == null) {
 					Globals.warn("Parser unable to find reservation id for sliver urn " + sliver_urn + ". Sliver will not be inserted in db, skipping reporting");
 					continue;
@@ -432,20 +571,17 @@ public class GENIWorker extends AbstractWorker {
 				Date ts = new Date();
 
 				// this works for nodes.
-				NodeList cmAttr = (NodeList)xpath.compile("@component_manager_id").evaluate(nl.item(i), XPathConstants.NODESET);
 				String cm = null;
 				
-				if (cmAttr.getLength() > 0) {
+				if (sliver.componentManagerId != null) {
 					// Get component manager name from the attribute
-					cm = xpath.compile("@component_manager_id").evaluate(nl.item(i));
+					cm = sliver.componentManagerId;
 					if (!cm.equalsIgnoreCase("urn:publicid:IDN+exogeni.net:" + shortName + "vmsite+authority+am")) {
 						cm = null;
 					}
 				} else {
 					// iterate over component managers and find one we're looking for (if there is one)
-					NodeList cmElem = (NodeList)xpath.compile(COMPONENT_MANAGER).evaluate(nl.item(i), XPathConstants.NODESET);
-					for (int jj = 0; jj < cmElem.getLength(); jj++) {
-						String tcm = xpath.compile("@name").evaluate(cmElem.item(jj));
+					for (String tcm: sliver.componentManagers) {
 						if (tcm.equalsIgnoreCase("urn:publicid:IDN+exogeni.net:" + shortName + "vmsite+authority+am") || 
 								tcm.equalsIgnoreCase("urn:publicid:IDN+exogeni.net:" + shortName + "Net+authority+am")) {
 							cm = tcm;
@@ -465,17 +601,18 @@ public class GENIWorker extends AbstractWorker {
 				// short aggregate id (e.g. bbnvmsite)
 				String agg_id = globalComp[Math.min(globalComp.length - 1, 1)];
 				String aggregate_href = selfRefPrefix + "aggregate/" + agg_id;
-				URI aggregate_urn = new URI(NdlToRSpecHelper.CM_URN_PATTERN.replaceAll("@", agg_id));
+				URI aggregate_urn = new URI(CM_URN.fill(agg_id));
 				
 				// find geni_sliver_info, if available
-				if (((NodeList)xpath.compile(SLIVER_INFO_PATH).evaluate(nl.item(i), XPathConstants.NODESET)).getLength() > 0) {
-					String sliverState = xpath.compile(SLIVER_INFO_PATH + "/@state").evaluate(nl.item(i));
+				SliverInfo info = sliver.sliverInfo;
+				if (info != null) {
+					String sliverState = info.state;
 					if (!"ready".equalsIgnoreCase(sliverState)) {
 						Globals.info("Sliver " + sliver_id + " is not ready, skipping for now");
 						continue;
 					}
 					
-					String creator = xpath.compile(SLIVER_INFO_PATH + "/@creator_urn").evaluate(nl.item(i));
+					String creator = info.creatorUrn;
 
 					URI creator_urn = null;
 					try {
@@ -492,26 +629,29 @@ public class GENIWorker extends AbstractWorker {
 						creator_urn = new URI(URN_UNKNOWN_USER);
 					}
 
-					String created = xpath.compile(SLIVER_INFO_PATH + "/@start_time").evaluate(nl.item(i));
+					String created = info.startTime;
 					Calendar cal = javax.xml.bind.DatatypeConverter.parseDateTime(created);
 					Date createdDate = cal.getTime();
-					String expires = xpath.compile(SLIVER_INFO_PATH + "/@expiration_time").evaluate(nl.item(i));
+					String expires = info.expirationTime;
 					cal = javax.xml.bind.DatatypeConverter.parseDateTime(expires);
 					Date expiresDate = cal.getTime();
 
-					String resource = xpath.compile(SLIVER_INFO_PATH + "/@resource_id").evaluate(nl.item(i));
+					String resource = info.resourceId;
 					if ((resource == null) || (resource.length() == 0)) {
 						Globals.info("Resource is null, skipping reporting");
 						continue;
 					}
 
+					// update timestamp in ops_aggregate (written by the heartbeat)
+					heartbeat.touch(ts.getTime()*MS_TO_US);
+
 					String full_resource_id = sliver_uuid + ":" + resource;
 					
-					String resource_urn = NdlToRSpecHelper.SLIVER_URN_PATTERN.replaceAll("@", full_agg_id).replaceAll("\\^", type).replaceAll("%", full_resource_id);
+					String resource_urn = SLIVER_URN.fill(full_agg_id, type, full_resource_id);
 					String resource_href = selfRefPrefix + "resource/" + resource;
 
 					if (Globals.getInstance().isDebugOn()) {
-						Globals.debug("Slice: " + sliceUrn + " uuid: " + sliceUuid);
+						Globals.debug("Slice: " + inv.sliceUrn + " uuid: " + inv.sliceUuid);
 						Globals.debug("Sliver: " + type + " " + sliver_id + " " + sliver_uuid + " " + sliver_href);
 						Globals.debug("URN of " + type + ": "+ sliver_urn);
 						Globals.debug("Aggregate URN: " + aggregate_urn + " id: " + agg_id + " href:" + aggregate_href);
@@ -526,119 +666,126 @@ public class GENIWorker extends AbstractWorker {
 					String nodeLink_href = selfRefPrefix + t.name() + "/" + sliver_uuid + ":" + resource;
 
 					
-					if (!conPool.poolValid()) {
-						Globals.error("Datastore parameters are not valid, not saving");
-					} else {
-						dbc = conPool.getDbConnection();
-						
-						// update timestamp in ops_aggregate
-						String upstat = "UPDATE ops_aggregate SET ts=" + ts.getTime()*MS_TO_US + " WHERE id='" + getConfigProperty(GENI_SITE_PREFIX) + "vmsite'";
-						PreparedStatement pstup = dbc.prepareStatement(upstat);
-						Globals.debug("Updating ops_aggregaate: " + upstat);
-						executeAndClose(pstup);
-						
-						String query = null;
-						switch(t) {
-						case node:
-							nodeToAggregate.put(full_resource_id, full_agg_id);
-							insertNode(nl.item(i), xpath, sliver_uuid, resource, resource_urn, nodeLink_href, ts, dbc);
-							query = "INSERT IGNORE INTO `ops_sliver` ( `$schema` , `id` , `selfRef` , `urn` , `uuid`, `ts`, `aggregate_urn`, " + 
-									"`aggregate_href` , `slice_urn` , `slice_uuid` , `creator` , `created` , `expires`, `node_id`) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-							break;
-						case link:
-							insertLink(nl.item(i), xpath, sliver_uuid, resource, resource_urn, nodeLink_href, ts, dbc);
-							query = "INSERT IGNORE INTO `ops_sliver` ( `$schema` , `id` , `selfRef` , `urn` , `uuid`, `ts`, `aggregate_urn`, " + 
-									"`aggregate_href` , `slice_urn` , `slice_uuid` , `creator` , `created` , `expires`, `link_id`) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-							break;
-						}
-						// insert into ops_sliver
-						Globals.debug("Inserting into ops_sliver for uuid " + sliver_id);
-						PreparedStatement pst1 = dbc.prepareStatement(query);
-						pst1.setString(1, getConfigProperty(GENI_SCHEMA_PREFIX_PROPERTY) + "sliver#");
-						pst1.setString(2, sliver_id);
-						pst1.setString(3, sliver_href);
-						pst1.setString(4, sliver_urn.toString());
-						pst1.setString(5, sliver_uuid);
-						pst1.setLong(6, ts.getTime()*MS_TO_US);
-						pst1.setString(7, aggregate_urn.toString());
-						pst1.setString(8, aggregate_href);
-						pst1.setString(9, sliceUrn);
-						pst1.setString(10, sliceUuid);
-						pst1.setString(11, creator_urn.toString());
-						pst1.setLong(12, createdDate.getTime()*MS_TO_US);
-						pst1.setLong(13, expiresDate.getTime()*MS_TO_US);
-						pst1.setString(14, sliver_uuid + ":" + resource);
-						executeAndClose(pst1);
-
-						// insert into ops_aggregate_sliver
-						Globals.debug("Inserting into ops_aggregate_sliver for " + sliver_id);
-						PreparedStatement pst2 = dbc.prepareStatement("INSERT IGNORE INTO `ops_aggregate_sliver` ( `id` , `aggregate_id`, `urn` , `selfRef`) values (?, ?, ?, ?)");
-						pst2.setString(1, sliver_id);
-						pst2.setString(2, agg_id);
-						pst2.setString(3, sliver_urn.toString());
-						pst2.setString(4, sliver_href);
-						executeAndClose(pst2);
-						
-						// insert into ops_aggregate_resource
-						Globals.debug("Inserting into ops_aggregate_resource for " + sliver_id);
-						PreparedStatement pst3 = dbc.prepareStatement("INSERT IGNORE INTO `ops_aggregate_resource` ( `id` , `aggregate_id` , `urn` , `selfRef`) values (?, ?, ?, ?)");
-						pst3.setString(1, sliver_uuid + ":" + resource);
-						pst3.setString(2, shortName + "vmsite");
-						pst3.setString(3, resource_urn);
-						pst3.setString(4, nodeLink_href);
-						executeAndClose(pst3);
+					// unchanged slivers are already in the datastore and had their callbacks,
+					// but their interfaces are still needed to link up changed ones
+					boolean write = (inv.delta == null) || !inv.delta.isUnchanged(sliver_urn.toString());
+					if (!write)
+						inv.unchanged.add(full_resource_id);
+
+					String query = null;
+					switch(t) {
+					case node:
+						inv.nodeToAggregate.put(full_resource_id, full_agg_id);
+						insertNode(inv, sliver, sliver_uuid, resource, resource_urn, nodeLink_href, ts, write);
+						query = "INSERT IGNORE INTO `ops_sliver` ( `$schema` , `id` , `selfRef` , `urn` , `uuid`, `ts`, `aggregate_urn`, " + 
+								"`aggregate_href` , `slice_urn` , `slice_uuid` , `creator` , `created` , `expires`, `node_id`) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+						break;
+					case link:
+						insertLink(inv, sliver, sliver_uuid, resource, resource_urn, nodeLink_href, ts, write);
+						query = "INSERT IGNORE INTO `ops_sliver` ( `$schema` , `id` , `selfRef` , `urn` , `uuid`, `ts`, `aggregate_urn`, " + 
+								"`aggregate_href` , `slice_urn` , `slice_uuid` , `creator` , `created` , `expires`, `link_id`) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+						break;
+					}
+					if (!write) {
+						Globals.debug("Sliver " + sliver_id + " is unchanged, not saving");
+						continue;
 					}
+					
+					// insert into ops_sliver
+					Globals.debug("Inserting into ops_sliver for uuid " + sliver_id);
+					inv.unit.addOnce("ops_sliver", sliver_id, query, getConfigProperty(GENI_SCHEMA_PREFIX_PROPERTY) + "sliver#", sliver_id, sliver_href, sliver_urn.toString(), 
+							sliver_uuid, ts.getTime()*MS_TO_US, aggregate_urn.toString(), aggregate_href, inv.sliceUrn, inv.sliceUuid, 
+							creator_urn.toString(), createdDate.getTime()*MS_TO_US, expiresDate.getTime()*MS_TO_US, sliver_uuid + ":" + resource);
+
+					// insert into ops_aggregate_sliver
+					Globals.debug("Inserting into ops_aggregate_sliver for " + sliver_id);
+					inv.unit.addOnce("ops_aggregate_sliver", WrittenKeys.key(sliver_id, agg_id), "INSERT IGNORE INTO `ops_aggregate_sliver` ( `id` , `aggregate_id`, `urn` , `selfRef`) values (?, ?, ?, ?)", 
+							sliver_id, agg_id, sliver_urn.toString(), sliver_href);
+
+					// insert into ops_aggregate_resource
+					Globals.debug("Inserting into ops_aggregate_resource for " + sliver_id);
+					inv.unit.addOnce("ops_aggregate_resource", WrittenKeys.key(sliver_uuid + ":" + resource, shortName + "vmsite"), 
+							"INSERT IGNORE INTO `ops_aggregate_resource` ( `id` , `aggregate_id` , `urn` , `selfRef`) values (?, ?, ?, ?)", 
+							sliver_uuid + ":" + resource, shortName + "vmsite", resource_urn, nodeLink_href);
 				} else 
-					Globals.error("Unable to find sliver_info in node " + nl.item(i));
+					Globals.error("Unable to find sliver_info in " + type + " " + sliver.sliverId);
 			}
-		} catch(SQLException se) {
-			throw new RuntimeException("Unable to insert into the database: " + se);
-		} catch(XPathExpressionException xe) {
-			throw new RuntimeException("Unable to parse XML manifest: " + xe);
 		} catch(Exception e) {
 			e.printStackTrace();
 			throw new RuntimeException("Unable to parse manifest: " + e);
-		} finally {
-			if (dbc != null)
-				try {
-					dbc.close();
-				} catch (SQLException e) {
-					throw new RuntimeException("Error closing mysql db connection: " + e);
-				}
 		}
 	}
 
 	
 	private static final String TAP = "tap";
 	private static final String LINK = "link";
-	
+	private static final String INTERFACE = "interface";
+
+	// compiled once rather than with replaceAll on every id
+	private static final UrnTemplate SLIVER_URN = new UrnTemplate(NdlToRSpecHelper.SLIVER_URN_PATTERN, '@', '^', '%');
+	private static final UrnTemplate CM_URN = new UrnTemplate(NdlToRSpecHelper.CM_URN_PATTERN, '@');
+
+	/**
+	 * Parts of the ids and URNs of everything on a node, computed once per node
+	 * per manifest instead of for each interface id
+	 */
+	private static class NodeIds {
+		// worker
+		final String stub;
+		// worker:vm-guid (worker for bare-metal)
+		final String guidStub;
+		// sliver URNs of interfaces and links up to their id
+		final String interfaceUrnPrefix;
+		final String linkUrnPrefix;
+
+		NodeIds(String nodeId, String aggregate) {
+			// nodeID is resId:worker:vm-guid or resId:worker
+			String[] nodeIdParts = nodeId.split(":");
+			stub = nodeIdParts[1];
+			guidStub = (nodeIdParts.length == 3 ? nodeIdParts[1] + ":" + nodeIdParts[2] : stub);
+			interfaceUrnPrefix = SLIVER_URN.prefix(aggregate, INTERFACE);
+			linkUrnPrefix = SLIVER_URN.prefix(aggregate, LINK);
+		}
+	}
+
+	/**
+	 * Id parts of a node, remembered for the rest of the manifest
+	 * @param inv
+	 * @param nodeId
+	 * @return
+	 */
+	private static NodeIds getNodeIds(Invocation inv, String nodeId) {
+		NodeIds n = inv.nodeIds.get(nodeId);
+		if (n == null) {
+			n = new NodeIds(nodeId, inv.nodeToAggregate.get(nodeId));
+			inv.nodeIds.put(nodeId, n);
+		}
+		return n;
+	}
+
 	// functions to generate interface/interfacevlan ids/urns/selfRefs consistently 
 	/**
 	 * This strips off the sliver UUID from the typical sliver uuid:worker:vm guid node id (or sliver uuid:worker for bare-metal)
 	 * and appends the VLAN tag
-	 * @param nodeId
+	 * @param n
 	 * @param tag
 	 * @param withGuid - use VM guid or not
 	 * @return
 	 */
-	private String getInterfaceVlanIdStub(String nodeId, String tag, boolean withGuid) {
-		String[] nodeIdParts = nodeId.split(":");
-		if ((nodeIdParts.length == 3) && withGuid) 
-			return nodeIdParts[1] + ":" + nodeIdParts[2] + ":" + tag;
-		else
-			return nodeIdParts[1] + ":" + tag;
+	private static String getInterfaceVlanIdStub(NodeIds n, String tag, boolean withGuid) {
+		return (withGuid ? n.guidStub : n.stub) + ":" + tag;
 	}
 	
 	
 	/**
 	 * 
-	 * @param nodeId
+	 * @param n
 	 * @param tag
 	 * @param withGuid
 	 * @return
 	 */
-	String getInterfaceSelfRef(String nodeId, String tag, boolean withGuid) {
-		return selfRefPrefix + "interface/" + getInterfaceVlanIdStub(nodeId, tag, withGuid);
+	static String getInterfaceSelfRef(NodeIds n, String tag, boolean withGuid) {
+		return selfRefPrefix + "interface/" + getInterfaceVlanIdStub(n, tag, withGuid);
 	}
 	
 	/*
@@ -646,32 +793,32 @@ public class GENIWorker extends AbstractWorker {
 	 */
 	/**
 	 * 
-	 * @param nodeId
+	 * @param n
 	 * @param tag
 	 * @return
 	 */
-	private String getInterfaceVlanId(String nodeId, String tag) {
-		return getInterfaceVlanIdStub(nodeId, tag, false);
+	private static String getInterfaceVlanId(NodeIds n, String tag) {
+		return getInterfaceVlanIdStub(n, tag, false);
 	}
 	
 	/**
 	 * 
-	 * @param nodeId
+	 * @param n
 	 * @param tag
 	 * @return
 	 */
-	String getInterfaceVlanUrn(String nodeId, String tag) {
-		return NdlToRSpecHelper.SLIVER_URN_PATTERN.replaceAll("@", nodeToAggregate.get(nodeId)).replaceAll("\\^", "interface").replaceAll("%", getInterfaceVlanId(nodeId, tag));
+	static String getInterfaceVlanUrn(NodeIds n, String tag) {
+		return n.interfaceUrnPrefix + getInterfaceVlanId(n, tag);
 	}
 	
 	/**
 	 * 
-	 * @param nodeId
+	 * @param n
 	 * @param tag
 	 * @return
 	 */
-	String getInterfaceVlanSelfRef(String nodeId, String tag) {
-		return selfRefPrefix + "interfacevlan/" + getInterfaceVlanId(nodeId, tag);
+	static String getInterfaceVlanSelfRef(NodeIds n, String tag) {
+		return selfRefPrefix + "interfacevlan/" + getInterfaceVlanId(n, tag);
 	}
 
 	/*
@@ -679,32 +826,32 @@ public class GENIWorker extends AbstractWorker {
 	 */
 	/**
 	 * for a tap interface
-	 * @param nodeId
+	 * @param n
 	 * @param tag
 	 * @return
 	 */
-	private String getInterfaceTapId(String nodeId, String tag) {
-		return getInterfaceVlanIdStub(nodeId, tag, true) + ":"  + TAP;
+	private static String getInterfaceTapId(NodeIds n, String tag) {
+		return getInterfaceVlanIdStub(n, tag, true) + ":"  + TAP;
 	}
 	
 	/**
 	 * 
-	 * @param nodeId
+	 * @param n
 	 * @param tag
 	 * @return
 	 */
-	private String getInterfaceTapUrn(String nodeId, String tag) {
-		return NdlToRSpecHelper.SLIVER_URN_PATTERN.replaceAll("@", nodeToAggregate.get(nodeId)).replaceAll("\\^", "interface").replaceAll("%", getInterfaceVlanIdStub(nodeId, tag, true)) + "+" + TAP;
+	private static String getInterfaceTapUrn(NodeIds n, String tag) {
+		return n.interfaceUrnPrefix + getInterfaceVlanIdStub(n, tag, true) + "+" + TAP;
 	}
 	
 	/**
 	 * 
-	 * @param nodeId
+	 * @param n
 	 * @param tag
 	 * @return
 	 */
-	private String getInterfaceTapSelfRef(String nodeId, String tag) {
-		return getInterfaceSelfRef(nodeId, tag, true) + ":" + TAP;
+	private static String getInterfaceTapSelfRef(NodeIds n, String tag) {
+		return getInterfaceSelfRef(n, tag, true) + ":" + TAP;
 	}
 	
 	/*
@@ -712,32 +859,32 @@ public class GENIWorker extends AbstractWorker {
 	 */
 	/**
 	 * 
-	 * @param nodeId
+	 * @param n
 	 * @param tag
 	 * @return
 	 */
-	private String getInterfaceVlanTapId(String nodeId, String tag) {
-		return getInterfaceTapId(nodeId, tag) + ":0"; 
+	private static String getInterfaceVlanTapId(NodeIds n, String tag) {
+		return getInterfaceTapId(n, tag) + ":0"; 
 	}
 	
 	/**
 	 * 
-	 * @param nodeId
+	 * @param n
 	 * @param tag
 	 * @return
 	 */
-	private String getInterfaceVlanTapUrn(String nodeId, String tag) {
-		return getInterfaceTapUrn(nodeId, tag) + "+0";
+	private static String getInterfaceVlanTapUrn(NodeIds n, String tag) {
+		return getInterfaceTapUrn(n, tag) + "+0";
 	}
 	
 	/**
 	 * 
-	 * @param nodeId
+	 * @param n
 	 * @param tag
 	 * @return
 	 */
-	private String getInterfaceVlanTapSelfRef(String nodeId, String tag) {
-		return getInterfaceTapSelfRef(nodeId, tag) + ":0";
+	private static String getInterfaceVlanTapSelfRef(NodeIds n, String tag) {
+		return getInterfaceTapSelfRef(n, tag) + ":0";
 	}
 	
 	/*
@@ -745,37 +892,38 @@ public class GENIWorker extends AbstractWorker {
 	 */
 	/** 
 	 * Generate fake link id
-	 * @param nodeId
+	 * @param n
 	 * @param tag
 	 * @return
 	 */
-	private String getLinkId(String nodeId, String tag) {
-		return getInterfaceVlanIdStub(nodeId, tag, true) + ":" + LINK;
+	private static String getLinkId(NodeIds n, String tag) {
+		return getInterfaceVlanIdStub(n, tag, true) + ":" + LINK;
 	}
 	
 	/**
 	 * 
-	 * @param nodeId
+	 * @param n
 	 * @param tag
 	 * @return
 	 */
-	private String getLinkUrn(String nodeId, String tag) {
-		return NdlToRSpecHelper.SLIVER_URN_PATTERN.replaceAll("@", nodeToAggregate.get(nodeId)).replaceAll("\\^", "link").replaceAll("%", getLinkId(nodeId, tag));
+	private static String getLinkUrn(NodeIds n, String tag) {
+		return n.linkUrnPrefix + getLinkId(n, tag);
 	}
 	
 	/**
 	 * 
-	 * @param nodeId
+	 * @param n
 	 * @param tag
 	 * @return
 	 */
-	private String getLinkSelfRef(String nodeId, String tag) {
-		return selfRefPrefix + "link/" + getLinkId(nodeId, tag);
+	private static String getLinkSelfRef(NodeIds n, String tag) {
+		return selfRefPrefix + "link/" + getLinkId(n, tag);
 	}
 	
 	// because of how ridiculous the measurement schema is, here we
 	// create a bunch of fake interfaces and links just to stay consistent.
-	private void insertInterfaceInfo() {
+	private void insertInterfaceInfo(Invocation inv) {
+		SqlUnitOfWork unit = inv.unit;
 //		System.out.println("interface to node map");
 //		for(Map.Entry<String, String> e: interfaceToNode.entrySet()) {
 //			System.out.println(e.getKey() + " --> " + e.getValue());
@@ -788,117 +936,82 @@ public class GENIWorker extends AbstractWorker {
 		// populate ops_link_interfacevlan table 
 		// both interface tables should have the same number of entries
 		
-		Connection dbc = null;
-		
 		try {
-			if (!conPool.poolValid()) {
-				Globals.error("Datastore parameters are not valid, not inserting interface info");
-			} else {
-				dbc = conPool.getDbConnection();
-				Globals.debug("Inserting into ops_link_interfacevlan and ops_node_interface");
-				for(Map.Entry<String, String> e: interfaceToLink.entrySet()) {
-					String nodeId = interfaceToNode.get(e.getKey());
-					String linkId = interfaceToLink.get(e.getKey());
-					if ((linkId == null) || (nodeId == null)) {
-						Globals.warn("Unable to locate interface " + e.getKey() + " info - manifest must still be incomplete, skipping");
-						continue;
-					}
-					// nodeID is resId:worker:vm-guid or resId:worker 
-					//String[] nodeIdParts = nodeId.split(":");
-					String[] linkIdParts = linkId.split(":");
-					String sTag = linkIdParts[1];
-					Long tag = Long.parseLong(sTag);
-					
-					PreparedStatement pst = dbc.prepareStatement("SET foreign_key_checks=0");
-					executeAndClose(pst);
-					
-					// put in the interfacevlan worker:tag 
-					// linking to parent interface is done in external monitoring code
-					pst = dbc.prepareStatement("INSERT IGNORE INTO `ops_interfacevlan` ( `$schema`, `id`, `selfRef`, `urn`, `ts`, `tag`) values (?, ?, ?, ?, ?, ?)");
-					pst.setString(1, getConfigProperty(GENI_SCHEMA_PREFIX_PROPERTY) + "interfacevlan#");
-					pst.setString(2, getInterfaceVlanId(nodeId, sTag));
-					pst.setString(3, getInterfaceVlanSelfRef(nodeId, sTag));
-					pst.setString(4, getInterfaceVlanUrn(nodeId, sTag));
-					Date ts = new Date();
-					pst.setLong(5, ts.getTime()*MS_TO_US);
-					pst.setLong(6, tag);
-					executeAndClose(pst);
-					
-					// put in the derived interface worker:guid:tag:tap 
-					pst = dbc.prepareStatement("INSERT IGNORE INTO `ops_interface` ( `$schema`, `id`, `selfRef`, `urn`, `ts`) values (?, ?, ?, ?, ?)");
-					pst.setString(1, getConfigProperty(GENI_SCHEMA_PREFIX_PROPERTY) + "interface#");
-					pst.setString(2, getInterfaceTapId(nodeId, sTag));
-					pst.setString(3, getInterfaceTapSelfRef(nodeId, sTag));
-					pst.setString(4, getInterfaceTapUrn(nodeId, sTag));
-					pst.setLong(5, ts.getTime()*MS_TO_US);
-					executeAndClose(pst);
-					
-					// put in the derived interfacevlan worker:guid:tag:tap:0 and associate with derived interface worker:guid:tag:tap
-					pst = dbc.prepareStatement("INSERT IGNORE INTO `ops_interfacevlan` ( `$schema`, `id`, `selfRef`, `urn`, `ts`, `tag`, `interface_urn`, `interface_href`) values (?, ?, ?, ?, ?, ?, ?, ?)");
-					pst.setString(1, getConfigProperty(GENI_SCHEMA_PREFIX_PROPERTY) + "interfacevlan#");
-					pst.setString(2, getInterfaceVlanTapId(nodeId, sTag));
-					pst.setString(3, getInterfaceVlanTapSelfRef(nodeId, sTag));
-					pst.setString(4, getInterfaceVlanTapUrn(nodeId, sTag));
-					pst.setLong(5, ts.getTime()*MS_TO_US);
-					pst.setLong(6, 0);
-					pst.setString(7, getInterfaceTapUrn(nodeId, sTag));
-					pst.setString(8, getInterfaceTapSelfRef(nodeId, sTag));
-					executeAndClose(pst);
-					
-					// put in a link between worker:guid:tag and worker:guid:tag:tap0
-					pst = dbc.prepareStatement("INSERT IGNORE INTO `ops_link` ( `$schema` , `id` , `selfRef` , `urn` , `ts` ) values (?, ?, ?, ?, ?)");
-					pst.setString(1, getConfigProperty(GENI_SCHEMA_PREFIX_PROPERTY) + "link#");
-					pst.setString(2, getLinkId(nodeId, sTag));
-					pst.setString(3, getLinkSelfRef(nodeId, sTag));
-					pst.setString(4, getLinkUrn(nodeId, sTag));
-					pst.setLong(5, ts.getTime()*MS_TO_US);
-					executeAndClose(pst);
-					
-					// associate link with interfacevlans worker:tag and worker:guid:tag:tap:0
-					pst = dbc.prepareStatement("INSERT IGNORE INTO `ops_link_interfacevlan` ( `id` , `link_id` ) values (?, ?)");
-					pst.setString(1, getInterfaceVlanTapId(nodeId, sTag));
-					pst.setString(2, getLinkId(nodeId, sTag));
-					executeAndClose(pst);
-					
-					pst = dbc.prepareStatement("INSERT IGNORE INTO `ops_link_interfacevlan` ( `id` , `link_id` ) values (?, ?)");
-					pst.setString(1, getInterfaceVlanId(nodeId, sTag));
-					pst.setString(2, getLinkId(nodeId, sTag));
-					executeAndClose(pst);
-					
-					// associate interfacevlan worker:tag and link in slice
-					pst = dbc.prepareStatement("INSERT IGNORE INTO `ops_link_interfacevlan` ( `id` , `link_id` ) values (?, ?)");
-					pst.setString(1, getInterfaceVlanId(nodeId, sTag));
-					pst.setString(2, linkId);
-					executeAndClose(pst);
-
-					// associate interface worker:guid:tag:tap with node
-					pst = dbc.prepareStatement("INSERT IGNORE INTO `ops_node_interface` (`id`, `urn`, `selfRef`, `node_id` ) values (?, ?, ?, ?)");
-					pst.setString(1, getInterfaceTapId(nodeId, sTag));
-					pst.setString(2, getInterfaceTapUrn(nodeId, sTag));
-					pst.setString(3, getInterfaceTapSelfRef(nodeId, sTag));
-					pst.setString(4,  nodeId);
-					executeAndClose(pst);
-					
-					pst = dbc.prepareStatement("SET foreign_key_checks=1");
-					executeAndClose(pst);
-
+			Globals.debug("Inserting into ops_link_interfacevlan and ops_node_interface");
+			boolean fkChecksOff = false;
+			for(Map.Entry<String, String> e: inv.interfaceToLink.entrySet()) {
+				String nodeId = inv.interfaceToNode.get(e.getKey());
+				String linkId = e.getValue();
+				if ((linkId == null) || (nodeId == null)) {
+					Globals.warn("Unable to locate interface " + e.getKey() + " info - manifest must still be incomplete, skipping");
+					continue;
+				}
+				// written when the node and link were
+				if (inv.unchanged.contains(nodeId) && inv.unchanged.contains(linkId))
+					continue;
+				// nodeID is resId:worker:vm-guid or resId:worker 
+				//String[] nodeIdParts = nodeId.split(":");
+				String[] linkIdParts = linkId.split(":");
+				String sTag = linkIdParts[1];
+				Long tag = Long.parseLong(sTag);
+				NodeIds n = getNodeIds(inv, nodeId);
+				
+				// interface tables reference each other, turn checks off once for all of them
+				if (!fkChecksOff) {
+					unit.barrier(SET_FK_CHECKS_OFF);
+					unit.onRollback(SET_FK_CHECKS_ON);
+					fkChecksOff = true;
 				}
+				
+				// put in the interfacevlan worker:tag 
+				// linking to parent interface is done in external monitoring code
+				long ts = new Date().getTime()*MS_TO_US;
+				unit.addOnce("ops_interfacevlan", getInterfaceVlanId(n, sTag), 
+						"INSERT IGNORE INTO `ops_interfacevlan` ( `$schema`, `id`, `selfRef`, `urn`, `ts`, `tag`) values (?, ?, ?, ?, ?, ?)", 
+						getConfigProperty(GENI_SCHEMA_PREFIX_PROPERTY) + "interfacevlan#", getInterfaceVlanId(n, sTag), 
+						getInterfaceVlanSelfRef(n, sTag), getInterfaceVlanUrn(n, sTag), ts, tag);
+				
+				// put in the derived interface worker:guid:tag:tap 
+				unit.addOnce("ops_interface", getInterfaceTapId(n, sTag), 
+						"INSERT IGNORE INTO `ops_interface` ( `$schema`, `id`, `selfRef`, `urn`, `ts`) values (?, ?, ?, ?, ?)", 
+						getConfigProperty(GENI_SCHEMA_PREFIX_PROPERTY) + "interface#", getInterfaceTapId(n, sTag), 
+						getInterfaceTapSelfRef(n, sTag), getInterfaceTapUrn(n, sTag), ts);
+				
+				// put in the derived interfacevlan worker:guid:tag:tap:0 and associate with derived interface worker:guid:tag:tap
+				unit.addOnce("ops_interfacevlan", getInterfaceVlanTapId(n, sTag), 
+						"INSERT IGNORE INTO `ops_interfacevlan` ( `$schema`, `id`, `selfRef`, `urn`, `ts`, `tag`, `interface_urn`, `interface_href`) values (?, ?, ?, ?, ?, ?, ?, ?)", 
+						getConfigProperty(GENI_SCHEMA_PREFIX_PROPERTY) + "interfacevlan#", getInterfaceVlanTapId(n, sTag), 
+						getInterfaceVlanTapSelfRef(n, sTag), getInterfaceVlanTapUrn(n, sTag), ts, 0L, 
+						getInterfaceTapUrn(n, sTag), getInterfaceTapSelfRef(n, sTag));
+				
+				// put in a link between worker:guid:tag and worker:guid:tag:tap0
+				unit.addOnce("ops_link", getLinkId(n, sTag), INSERT_LINK, getConfigProperty(GENI_SCHEMA_PREFIX_PROPERTY) + "link#", getLinkId(n, sTag), 
+						getLinkSelfRef(n, sTag), getLinkUrn(n, sTag), ts);
+				
+				// associate link with interfacevlans worker:tag and worker:guid:tag:tap:0
+				insertLinkInterfaceVlan(unit, getInterfaceVlanTapId(n, sTag), getLinkId(n, sTag));
+				insertLinkInterfaceVlan(unit, getInterfaceVlanId(n, sTag), getLinkId(n, sTag));
+				
+				// associate interfacevlan worker:tag and link in slice
+				insertLinkInterfaceVlan(unit, getInterfaceVlanId(n, sTag), linkId);
+
+				// associate interface worker:guid:tag:tap with node
+				unit.addOnce("ops_node_interface", WrittenKeys.key(getInterfaceTapId(n, sTag), nodeId), 
+						"INSERT IGNORE INTO `ops_node_interface` (`id`, `urn`, `selfRef`, `node_id` ) values (?, ?, ?, ?)", 
+						getInterfaceTapId(n, sTag), getInterfaceTapUrn(n, sTag), getInterfaceTapSelfRef(n, sTag), nodeId);
 			}
-		} catch(SQLException se) {
-			throw new RuntimeException("Unable to insert into the database: " + se);
+			if (fkChecksOff)
+				unit.barrier(SET_FK_CHECKS_ON);
 		} catch(Exception e) {
 			e.printStackTrace();
 			throw new RuntimeException("Unable to add interface info: " + e);
-		} finally {
-			if (dbc != null)
-				try {
-					dbc.close();
-				} catch (SQLException e) {
-					throw new RuntimeException("Error closing mysql db connection: " + e);
-				}
 		}
 	}
 	
+	private static void insertLinkInterfaceVlan(SqlUnitOfWork unit, String id, String linkId) {
+		unit.addOnce("ops_link_interfacevlan", WrittenKeys.key(id, linkId), INSERT_LINK_INTERFACEVLAN, id, linkId);
+	}
+
 	/**
 	 * Convert a DN into a URN (mostly for BEN credentials)
 	 * urn:publicid:IDN+ch.geni.net+user+ekishore
@@ -938,48 +1051,42 @@ public class GENIWorker extends AbstractWorker {
 	 * Populate ops_aggregate table
 	 */
 	public void runAtStartup() {
-		Connection dbc = null;
-		
-		synchronized(flag) {
-			if (conPool == null) 
-				conPool = new DbPool(Globals.getInstance().getConfigProperty(GENIDS_URL), 
-						Globals.getInstance().getConfigProperty(GENIDS_USER), 
-						Globals.getInstance().getConfigProperty(GENIDS_PASS));
-		}
+		initDatastore();
 		try {
-			dbc = conPool.getDbConnection();
+			SqlUnitOfWork unit = new SqlUnitOfWork();
+			unit.barrier(SET_FK_CHECKS_OFF);
+			unit.onRollback(SET_FK_CHECKS_ON);
 			
-			PreparedStatement pstc = dbc.prepareStatement("SET foreign_key_checks=0");
-			executeAndClose(pstc);
+			unit.add("DELETE FROM ops_aggregate");
 			
-			PreparedStatement pstd = dbc.prepareStatement("DELETE FROM ops_aggregate");
-			executeAndClose(pstd);
-			
-			PreparedStatement pst = dbc.prepareStatement("INSERT INTO `ops_aggregate` (`$schema`, `id`, `selfRef`, `urn`, `ts`, `measRef`, `populator_version`, `operational_status`) values (?, ?, ?, ?, ?, ?, ?, ?);");
-			pst.setString(1, getConfigProperty(GENI_SCHEMA_PREFIX_PROPERTY) + "aggregate#");
-			pst.setString(2, getConfigProperty(GENI_SITE_PREFIX) + "vmsite");
-			pst.setString(3, selfRefPrefix + "aggregate/" + getConfigProperty(GENI_SITE_PREFIX) + "vmsite");
-			pst.setString(4, "urn:publicid:IDN+exogeni.net:" + getConfigProperty(GENI_SITE_PREFIX) + "vmsite+authority+am");
 			Date ts = new Date();
-			pst.setLong(5, ts.getTime()*MS_TO_US);
-			pst.setString(6, getConfigProperty(GENI_AGGREGATE_MEAS_REF_PROPERTY));
-			pst.setString(7, ManifestSubscriber.buildVersion);
-			pst.setString(8, getConfigProperty(GENI_OPERATIONAL_STATUS_PROPERTY));
-			
-			executeAndClose(pst);
-			
-			PreparedStatement pstcc = dbc.prepareStatement("SET foreign_key_checks=1");
-			executeAndClose(pstcc);
+			unit.add("INSERT INTO `ops_aggregate` (`$schema`, `id`, `selfRef`, `urn`, `ts`, `measRef`, `populator_version`, `operational_status`) values (?, ?, ?, ?, ?, ?, ?, ?);", 
+					getConfigProperty(GENI_SCHEMA_PREFIX_PROPERTY) + "aggregate#", 
+					getConfigProperty(GENI_SITE_PREFIX) + "vmsite", 
+					selfRefPrefix + "aggregate/" + getConfigProperty(GENI_SITE_PREFIX) + "vmsite", 
+					"urn:publicid:IDN+exogeni.net:" + getConfigProperty(GENI_SITE_PREFIX) + "vmsite+authority+am", 
+					ts.getTime()*MS_TO_US, 
+					getConfigProperty(GENI_AGGREGATE_MEAS_REF_PROPERTY), 
+					ManifestSubscriber.buildVersion, 
+					getConfigProperty(GENI_OPERATIONAL_STATUS_PROPERTY));
 			
+			unit.barrier(SET_FK_CHECKS_ON);
+			unit.execute(conPool, SQL_RETRIES);
 		} catch (SQLException se) {
 			throw new RuntimeException("Unable to refresh ops_aggregate table due to: " + se);
-		} finally {
-			if (dbc != null)
+		}
+		
+		// learn which rows are already there
+		if (writtenKeys.enabled()) {
+			writtenKeys.clear();
+			for (String[] t: WRITTEN_KEY_TABLES) {
 				try {
-					dbc.close();
-				} catch (SQLException e) {
-					throw new RuntimeException("Error closing mysql db connection: " + e);
+					int n = writtenKeys.load(conPool, t[0], Arrays.copyOfRange(t, 1, t.length));
+					Globals.info("Loaded " + n + " existing keys of " + t[0]);
+				} catch (SQLException se) {
+					Globals.warn("Unable to load existing keys of " + t[0] + ", they will be learned as manifests are written: " + se);
 				}
+			}
 		}
 	}
 	
@@ -987,18 +1094,18 @@ public class GENIWorker extends AbstractWorker {
 		GENIWorker gw = new GENIWorker();
 		
 		try {
-			gw.manifests = new HashMap<DocType, String>();
+			Map<DocType, String> manifests = new HashMap<DocType, String>();
 
 			InputStream source = new FileInputStream(new File("/Users/ibaldin/Desktop/rspecman"));
 			String text = new Scanner( source ).useDelimiter("\\A").next();
-			gw.manifests.put(DocType.RSPEC_MANIFEST, text);
+			manifests.put(DocType.RSPEC_MANIFEST, text);
 			
 			source.close();
 			source = new FileInputStream(new File("/Users/ibaldin/Desktop/ndlman"));
 			text = new Scanner( source ).useDelimiter("\\A").next();
-			gw.manifests.put(DocType.NDL_MANIFEST, text);
+			manifests.put(DocType.NDL_MANIFEST, text);
 			
-			gw.processManifest(gw.manifests, "URN:slice", "slice-guid", "slice-sm", "slice-sm-guid");
+			gw.processManifest(new ManifestContext(manifests, null, null, "URN:slice", "slice-guid", "slice-sm", "slice-sm-guid"));
 		} catch(Exception e) {
 			System.err.println("Something went bad: " + e);
 			e.printStackTrace();
@@ -1,6 +1,7 @@
 package org.renci.pubsub_daemon.workers;
 
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -9,12 +10,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 
-import orca.ndl.INdlManifestModelListener;
-import orca.ndl.INdlRequestModelListener;
 import orca.ndl.NdlCommons;
-import orca.ndl.NdlException;
-import orca.ndl.NdlManifestParser;
-import orca.ndl.NdlRequestParser;
 import orca.ndl.NdlToRSpecHelper;
 import orca.ndl.NdlToRSpecHelper.UrnType;
 import orca.ndl_conversion.geni_rspec.manifest3.LinkContents;
@@ -29,7 +25,7 @@ import com.hp.hpl.jena.rdf.model.Resource;
  * @author ibaldin
  *
  */
-public class GENIWorkerManifestParser implements INdlManifestModelListener, INdlRequestModelListener {
+public class GENIWorkerManifestParser implements INdlParseListener {
 
 	// indicate whether this interface is from a member of a  node group
 	protected Map<Resource, Boolean> groupInterfaceMap;
@@ -50,6 +46,7 @@ public class GENIWorkerManifestParser implements INdlManifestModelListener, INdl
 	protected String controllerUrl = null;
 	
 	private boolean requestPhase = true;
+	private Exception parseError = null;
 	
 	private Map<String, String> urnToReservation = new HashMap<String, String>();
 	
@@ -67,37 +64,34 @@ public class GENIWorkerManifestParser implements INdlManifestModelListener, INdl
 		this.sliceUrn = sliceName;
 	}
 
+	/**
+	 * Parse on its own (normally the manifest is parsed once for all workers
+	 * by NdlParseDispatcher)
+	 * @param ndlMan
+	 * @throws Exception
+	 */
 	public void parse(String ndlMan) throws Exception {
-		
-		// first parse it as a request
-		// Warning: exceptions may be thrown here, so ignore for now
-		try {			
-			NdlRequestParser nrp = new NdlRequestParser(ndlMan, this);
-			// something wrong with request model that is part of manifest
-			// some interfaces belong only to nodes, and no connections
-			// for now do less strict checking so we can get IP info
-			// 07/2012/ib
-			nrp.doLessStrictChecking();
-			nrp.processRequest();
-			
-			nrp.freeModel();
-		} catch (NdlException e) {
-			throw new Exception(e.getMessage());
-		}
-		
-		// second parse it as manifest
-		try {
-			requestPhase = false;
-			NdlManifestParser nmp = new NdlManifestParser(ndlMan, this);
-
-			// this will call the callbacks
-			nmp.processManifest();
-		    
-			nmp.freeModel();
-			
-		} catch (NdlException e) {
-			throw new Exception(e.getMessage());
-		} 
+		NdlParseDispatcher.parse(ndlMan, Collections.<INdlParseListener>singletonList(this));
+		checkParseError();
+	}
+	
+	/**
+	 * Throw if either request or manifest pass failed
+	 * @throws Exception
+	 */
+	public void checkParseError() throws Exception {
+		if (parseError != null)
+			throw parseError;
+	}
+	
+	public void ndlManifestPhase() {
+		requestPhase = false;
+	}
+	
+	public void ndlParseError(boolean requestPhase, Exception e) {
+		// remember the first one
+		if (parseError == null)
+			parseError = new Exception(e.getMessage());
 	}
 	
 	/**
@@ -10,7 +10,6 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 import org.renci.pubsub_daemon.Globals;
 
@@ -24,11 +23,9 @@ public class GMOCWorker extends AbstractWorker {
 	}
 
 	@Override
-	public void processManifest(Map<DocType, String> manifests,
-			String sliceUrn, String sliceUuid, String sliceSmName,
-			String sliceSmGuid) throws RuntimeException {
+	public void processManifest(ManifestContext ctx) throws RuntimeException {
 		
-		checkManifests(manifests);
+		checkManifests(ctx.getManifests());
 
 		// publish
 		URI pUrl;
@@ -47,7 +44,7 @@ public class GMOCWorker extends AbstractWorker {
 				Globals.info("Running through script " + pUrl.getPath());
 				tmpF = File.createTempFile("manifest", null);
 				String tmpFName = tmpF.getCanonicalPath();
-				Globals.writeToFile(manifests.get(AbstractWorker.DocType.RSPEC_MANIFEST), tmpF);
+				Globals.writeToFile(ctx.getManifest(AbstractWorker.DocType.RSPEC_MANIFEST), tmpF);
 				ArrayList<String> myCommand = new ArrayList<String>();
 
 				myCommand.add(pUrl.getPath());
@@ -64,7 +61,7 @@ public class GMOCWorker extends AbstractWorker {
 			}
 		} else 	if ("file".equals(pUrl.getScheme())) {
 			// save to file
-			Globals.writeToFile(manifests.get(AbstractWorker.DocType.RSPEC_MANIFEST), pUrl.getPath() + "-" + sliceUrn + "---" + sliceUuid);
+			Globals.writeToFile(ctx.getManifest(AbstractWorker.DocType.RSPEC_MANIFEST), pUrl.getPath() + "-" + ctx.getSliceUrn() + "---" + ctx.getSliceUuid());
 		} else if ("http".equals(pUrl.getScheme()) || "https".equals(pUrl.getScheme())) {
 			// push
 			try {
@@ -73,7 +70,7 @@ public class GMOCWorker extends AbstractWorker {
 				httpCon.setDoOutput(true);
 				httpCon.setRequestMethod("PUT");
 				OutputStreamWriter out = new OutputStreamWriter(httpCon.getOutputStream());
-				out.write(manifests.get(AbstractWorker.DocType.RSPEC_MANIFEST));
+				out.write(ctx.getManifest(AbstractWorker.DocType.RSPEC_MANIFEST));
 				out.close();
 			} catch (IOException ioe) {
 				Globals.error("Unable to open connection to " + pUrl);
@@ -0,0 +1,25 @@
+package org.renci.pubsub_daemon.workers;
+
+import orca.ndl.INdlManifestModelListener;
+import orca.ndl.INdlRequestModelListener;
+
+/**
+ * A listener a worker can supply so that the NDL manifest is parsed once
+ * for all workers (see NdlParseDispatcher). The manifest is parsed twice, first
+ * as a request, then as a manifest; listeners are told when the second pass starts.
+ *
+ */
+public interface INdlParseListener extends INdlManifestModelListener, INdlRequestModelListener {
+
+	/**
+	 * Called after the request pass, before manifest callbacks start
+	 */
+	public void ndlManifestPhase();
+
+	/**
+	 * Called if either pass fails
+	 * @param requestPhase - true if this was the request pass
+	 * @param e
+	 */
+	public void ndlParseError(boolean requestPhase, Exception e);
+}
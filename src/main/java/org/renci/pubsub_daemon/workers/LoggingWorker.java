@@ -2,7 +2,6 @@ package org.renci.pubsub_daemon.workers;
 
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 import org.renci.pubsub_daemon.Globals;
 
@@ -25,10 +24,9 @@ public class LoggingWorker extends AbstractWorker {
 	}
 
 	@Override
-	public void processManifest(Map<DocType, String> manifests,
-			String sliceUrn, String sliceUuid, String sliceSmName,
-			String sliceSmGuid) throws RuntimeException {
-		Globals.info("Logging slice " + sliceUrn + " with uuid " + sliceUuid + " from " + sliceSmName + " with SM UUID " + sliceSmGuid);
+	public void processManifest(ManifestContext ctx) throws RuntimeException {
+		Globals.info("Logging slice " + ctx.getSliceUrn() + " with uuid " + ctx.getSliceUuid() + " from " + ctx.getSliceSmName() + 
+				" with SM UUID " + ctx.getSliceSmGuid());
 	}
 
 }
@@ -0,0 +1,82 @@
+package org.renci.pubsub_daemon.workers;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.renci.pubsub_daemon.workers.AbstractWorker.DocType;
+
+/**
+ * Everything a worker gets about one manifest. Immutable, so the same worker
+ * instance can process manifests of different slices concurrently as long
+ * as it keeps per-manifest state here or in local variables.
+ *
+ */
+public final class ManifestContext {
+	private final Map<DocType, String> manifests;
+	private final INdlParseListener parsed;
+	private final SliceDelta delta;
+	private final String sliceUrn, sliceUuid, sliceSmName, sliceSmGuid;
+
+	/**
+	 * @param manifests - copied
+	 * @param parsed - listener from getNdlParseListener() populated by a shared parse, may be null
+	 * @param delta - changes since the last manifest of the slice, may be null
+	 * @param sliceUrn
+	 * @param sliceUuid
+	 * @param sliceSmName
+	 * @param sliceSmGuid
+	 */
+	public ManifestContext(Map<DocType, String> manifests, INdlParseListener parsed, SliceDelta delta,
+			String sliceUrn, String sliceUuid, String sliceSmName, String sliceSmGuid) {
+		Map<DocType, String> m = new EnumMap<DocType, String>(DocType.class);
+		m.putAll(manifests);
+		this.manifests = Collections.unmodifiableMap(m);
+		this.parsed = parsed;
+		this.delta = delta;
+		this.sliceUrn = sliceUrn;
+		this.sliceUuid = sliceUuid;
+		this.sliceSmName = sliceSmName;
+		this.sliceSmGuid = sliceSmGuid;
+	}
+
+	public Map<DocType, String> getManifests() {
+		return manifests;
+	}
+
+	public String getManifest(DocType t) {
+		return manifests.get(t);
+	}
+
+	public INdlParseListener getParsed() {
+		return parsed;
+	}
+
+	public SliceDelta getDelta() {
+		return delta;
+	}
+
+	public String getSliceUrn() {
+		return sliceUrn;
+	}
+
+	public String getSliceUuid() {
+		return sliceUuid;
+	}
+
+	public String getSliceSmName() {
+		return sliceSmName;
+	}
+
+	public String getSliceSmGuid() {
+		return sliceSmGuid;
+	}
+
+	/**
+	 * Identifies the slice across SMs
+	 * @return
+	 */
+	public String getSliceKey() {
+		return sliceSmName + "/" + sliceUuid;
+	}
+}
@@ -1,6 +1,7 @@
 package org.renci.pubsub_daemon.workers;
 
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
@@ -9,12 +10,9 @@ import java.util.regex.Pattern;
 
 import org.renci.pubsub_daemon.Globals;
 
-import orca.ndl.INdlManifestModelListener;
-import orca.ndl.INdlRequestModelListener;
 import orca.ndl.NdlCommons;
 import orca.ndl.NdlException;
 import orca.ndl.NdlManifestParser;
-import orca.ndl.NdlRequestParser;
 
 import com.hp.hpl.jena.ontology.OntModel;
 import com.hp.hpl.jena.rdf.model.Literal;
@@ -25,7 +23,7 @@ import com.hp.hpl.jena.rdf.model.Resource;
  * @author ibaldin
  *
  */
-public class NDLManifestParser implements INdlManifestModelListener, INdlRequestModelListener {
+public class NDLManifestParser implements INdlParseListener {
 
     private static final String UNKNOWN_SLICE = "urn:publicid:IDN+exogeni.net+slice+unknown";
     private static final String UNKNOWN_USER = "urn:publicid:IDN+exogeni.net+user+unknown";
@@ -53,6 +51,14 @@ public class NDLManifestParser implements INdlManifestModelListener, INdlRequest
 		this.sliceUrn = sliceUrn;
 		this.ndlMan = ndlMan;
 	}
+	
+	/**
+	 * For use as a listener with NdlParseDispatcher
+	 * @param sliceUrn
+	 */
+	public NDLManifestParser(String sliceUrn) {
+		this(sliceUrn, null);
+	}
 
 	/**
 	 * Parse both request and manifest
@@ -60,25 +66,19 @@ public class NDLManifestParser implements INdlManifestModelListener, INdlRequest
 	 * @throws Exception
 	 */
 	public void parseAll() throws Exception {
-		
-		// first parse it as a request
-		// Warning: exceptions may be thrown here, so ignore for now
-		try {			
-			NdlRequestParser nrp = new NdlRequestParser(ndlMan, this);
-			// something wrong with request model that is part of manifest
-			// some interfaces belong only to nodes, and no connections
-			// for now do less strict checking so we can get IP info
-			// 07/2012/ib
-			nrp.doLessStrictChecking();
-			nrp.processRequest();
-			
-			nrp.freeModel();
-		} catch (NdlException e) {
+		NdlParseDispatcher.parse(ndlMan, Collections.<INdlParseListener>singletonList(this));
+	}
+	
+	public void ndlManifestPhase() {
+		requestPhase = false;
+	}
+	
+	public void ndlParseError(boolean requestPhase, Exception e) {
+		// FIXME:
+		if (requestPhase)
 			Globals.error("Exception encountered while parsing request part of manifest: " + e);
-			// FIXME:
-		}
-		
-		parseNoRequest();
+		else
+			Globals.error("Exception encountered while parsing manifest: " + e);
 	}
 	
 	/**
@@ -0,0 +1,324 @@
+package org.renci.pubsub_daemon.workers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import orca.ndl.INdlManifestModelListener;
+import orca.ndl.INdlRequestModelListener;
+import orca.ndl.NdlException;
+import orca.ndl.NdlManifestParser;
+import orca.ndl.NdlRequestParser;
+
+import org.renci.pubsub_daemon.Globals;
+
+import com.hp.hpl.jena.ontology.OntModel;
+import com.hp.hpl.jena.rdf.model.Literal;
+import com.hp.hpl.jena.rdf.model.Resource;
+
+/**
+ * Parses an NDL manifest once for all workers and fans the callbacks out to
+ * their listeners, instead of every worker building its own models.
+ * 
+ * That still takes two passes, one as a request and one as a manifest, as each
+ * worker did before. NdlRequestParser and NdlManifestParser only take the NDL as a
+ * string, each loads it into a model of its own, and neither can be handed the
+ * other's. The request pass also runs with less strict checking, which the manifest
+ * pass doesn't have. The request model is freed before the manifest model is
+ * built, so only one is held at a time.
+ * 
+ * A listener that throws from a callback is told through ndlParseError() and
+ * gets no further callbacks; the others carry on. A pass that fails, with
+ * NdlException or anything unchecked from the parser, is reported to all
+ * remaining listeners.
+ *
+ */
+public class NdlParseDispatcher implements INdlManifestModelListener, INdlRequestModelListener {
+	// listeners that haven't failed yet
+	private final List<INdlParseListener> listeners;
+	private boolean requestPhase = true;
+
+	private NdlParseDispatcher(Collection<INdlParseListener> l) {
+		listeners = new ArrayList<INdlParseListener>(l);
+	}
+
+	/**
+	 * Parse the manifest calling all listeners. Errors are reported to the listeners,
+	 * nothing is thrown.
+	 * @param ndlMan
+	 * @param listeners
+	 */
+	public static void parse(String ndlMan, Collection<INdlParseListener> listeners) {
+		if ((listeners == null) || listeners.isEmpty())
+			return;
+
+		NdlParseDispatcher d = new NdlParseDispatcher(listeners);
+
+		// first parse it as a request
+		NdlRequestParser nrp = null;
+		try {
+			nrp = new NdlRequestParser(ndlMan, d);
+			// something wrong with request model that is part of manifest
+			// some interfaces belong only to nodes, and no connections
+			// for now do less strict checking so we can get IP info
+			// 07/2012/ib
+			nrp.doLessStrictChecking();
+			nrp.processRequest();
+		} catch (NdlException e) {
+			d.passFailed(e);
+		} catch (RuntimeException e) {
+			d.passFailed(e);
+		} finally {
+			if (nrp != null)
+				nrp.freeModel();
+		}
+
+		d.requestPhase = false;
+		for (Iterator<INdlParseListener> it = d.listeners.iterator(); it.hasNext(); ) {
+			INdlParseListener li = it.next();
+			try {
+				li.ndlManifestPhase();
+			} catch (RuntimeException e) {
+				d.listenerFailed(it, li, e);
+			}
+		}
+
+		// second parse it as manifest
+		NdlManifestParser nmp = null;
+		try {
+			nmp = new NdlManifestParser(ndlMan, d);
+			// this will call the callbacks
+			nmp.processManifest();
+		} catch (NdlException e) {
+			d.passFailed(e);
+		} catch (RuntimeException e) {
+			d.passFailed(e);
+		} finally {
+			if (nmp != null)
+				nmp.freeModel();
+		}
+	}
+
+	/**
+	 * Report a failed pass to all remaining listeners
+	 * @param e
+	 */
+	private void passFailed(Exception e) {
+		if (!(e instanceof NdlException))
+			Globals.error("Unexpected error parsing " + (requestPhase ? "request" : "manifest") + " part of NDL manifest: " + e);
+		for (INdlParseListener li: listeners)
+			report(li, e);
+	}
+
+	/**
+	 * Drop a listener that threw from a callback and report the error to it
+	 * @param it - iterator positioned on the listener
+	 * @param li
+	 * @param e
+	 */
+	private void listenerFailed(Iterator<INdlParseListener> it, INdlParseListener li, RuntimeException e) {
+		it.remove();
+		Globals.error("NDL parse listener " + li.getClass().getSimpleName() + " failed, no further callbacks to it: " + e);
+		report(li, e);
+	}
+
+	private void report(INdlParseListener li, Exception e) {
+		try {
+			li.ndlParseError(requestPhase, e);
+		} catch (RuntimeException re) {
+			Globals.error("NDL parse listener " + li.getClass().getSimpleName() + " failed handling parse error: " + re);
+		}
+	}
+
+	/*
+	 * Fan-out of callbacks
+	 */
+
+	public void ndlInterface(Resource l, OntModel om, Resource conn,
+			Resource node, String ip, String mask) {
+		for (Iterator<INdlParseListener> it = listeners.iterator(); it.hasNext(); ) {
+			INdlParseListener li = it.next();
+			try {
+				li.ndlInterface(l, om, conn, node, ip, mask);
+			} catch (RuntimeException re) {
+				listenerFailed(it, li, re);
+			}
+		}
+	}
+
+	public void ndlCrossConnect(Resource c, OntModel m, long bw, String label,
+			List<Resource> interfaces, Resource parent) {
+		for (Iterator<INdlParseListener> it = listeners.iterator(); it.hasNext(); ) {
+			INdlParseListener li = it.next();
+			try {
+				li.ndlCrossConnect(c, m, bw, label, interfaces, parent);
+			} catch (RuntimeException re) {
+				listenerFailed(it, li, re);
+			}
+		}
+	}
+
+	public void ndlLinkConnection(Resource c, OntModel m,
+			List<Resource> interfaces, Resource parent) {
+		for (Iterator<INdlParseListener> it = listeners.iterator(); it.hasNext(); ) {
+			INdlParseListener li = it.next();
+			try {
+				li.ndlLinkConnection(c, m, interfaces, parent);
+			} catch (RuntimeException re) {
+				listenerFailed(it, li, re);
+			}
+		}
+	}
+
+	public void ndlManifest(Resource i, OntModel m) {
+		for (Iterator<INdlParseListener> it = listeners.iterator(); it.hasNext(); ) {
+			INdlParseListener li = it.next();
+			try {
+				li.ndlManifest(i, m);
+			} catch (RuntimeException re) {
+				listenerFailed(it, li, re);
+			}
+		}
+	}
+
+	public void ndlNetworkConnection(Resource l, OntModel om, long bandwidth,
+			long latency, List<Resource> interfaces) {
+		for (Iterator<INdlParseListener> it = listeners.iterator(); it.hasNext(); ) {
+			INdlParseListener li = it.next();
+			try {
+				li.ndlNetworkConnection(l, om, bandwidth, latency, interfaces);
+			} catch (RuntimeException re) {
+				listenerFailed(it, li, re);
+			}
+		}
+	}
+
+	public void ndlNode(Resource ce, OntModel om, Resource ceClass,
+			List<Resource> interfaces) {
+		for (Iterator<INdlParseListener> it = listeners.iterator(); it.hasNext(); ) {
+			INdlParseListener li = it.next();
+			try {
+				li.ndlNode(ce, om, ceClass, interfaces);
+			} catch (RuntimeException re) {
+				listenerFailed(it, li, re);
+			}
+		}
+	}
+
+	public void ndlNetworkConnectionPath(Resource c, OntModel m,
+			List<List<Resource>> path, List<Resource> roots) {
+		for (Iterator<INdlParseListener> it = listeners.iterator(); it.hasNext(); ) {
+			INdlParseListener li = it.next();
+			try {
+				li.ndlNetworkConnectionPath(c, m, path, roots);
+			} catch (RuntimeException re) {
+				listenerFailed(it, li, re);
+			}
+		}
+	}
+
+	public void ndlParseComplete() {
+		for (Iterator<INdlParseListener> it = listeners.iterator(); it.hasNext(); ) {
+			INdlParseListener li = it.next();
+			try {
+				li.ndlParseComplete();
+			} catch (RuntimeException re) {
+				listenerFailed(it, li, re);
+			}
+		}
+	}
+
+	public void ndlBroadcastConnection(Resource bl, OntModel om,
+			long bandwidth, List<Resource> interfaces) {
+		for (Iterator<INdlParseListener> it = listeners.iterator(); it.hasNext(); ) {
+			INdlParseListener li = it.next();
+			try {
+				li.ndlBroadcastConnection(bl, om, bandwidth, interfaces);
+			} catch (RuntimeException re) {
+				listenerFailed(it, li, re);
+			}
+		}
+	}
+
+	public void ndlNodeDependencies(Resource ni, OntModel m,
+			Set<Resource> dependencies) {
+		for (Iterator<INdlParseListener> it = listeners.iterator(); it.hasNext(); ) {
+			INdlParseListener li = it.next();
+			try {
+				li.ndlNodeDependencies(ni, m, dependencies);
+			} catch (RuntimeException re) {
+				listenerFailed(it, li, re);
+			}
+		}
+	}
+
+	public void ndlReservation(Resource i, OntModel m) {
+		for (Iterator<INdlParseListener> it = listeners.iterator(); it.hasNext(); ) {
+			INdlParseListener li = it.next();
+			try {
+				li.ndlReservation(i, m);
+			} catch (RuntimeException re) {
+				listenerFailed(it, li, re);
+			}
+		}
+	}
+
+	public void ndlReservationEnd(Literal e, OntModel m, Date end) {
+		for (Iterator<INdlParseListener> it = listeners.iterator(); it.hasNext(); ) {
+			INdlParseListener li = it.next();
+			try {
+				li.ndlReservationEnd(e, m, end);
+			} catch (RuntimeException re) {
+				listenerFailed(it, li, re);
+			}
+		}
+	}
+
+	public void ndlReservationResources(List<Resource> r, OntModel m) {
+		for (Iterator<INdlParseListener> it = listeners.iterator(); it.hasNext(); ) {
+			INdlParseListener li = it.next();
+			try {
+				li.ndlReservationResources(r, m);
+			} catch (RuntimeException re) {
+				listenerFailed(it, li, re);
+			}
+		}
+	}
+
+	public void ndlReservationStart(Literal s, OntModel m, Date start) {
+		for (Iterator<INdlParseListener> it = listeners.iterator(); it.hasNext(); ) {
+			INdlParseListener li = it.next();
+			try {
+				li.ndlReservationStart(s, m, start);
+			} catch (RuntimeException re) {
+				listenerFailed(it, li, re);
+			}
+		}
+	}
+
+	public void ndlReservationTermDuration(Resource d, OntModel m, int years,
+			int months, int days, int hours, int minutes, int seconds) {
+		for (Iterator<INdlParseListener> it = listeners.iterator(); it.hasNext(); ) {
+			INdlParseListener li = it.next();
+			try {
+				li.ndlReservationTermDuration(d, m, years, months, days, hours, minutes, seconds);
+			} catch (RuntimeException re) {
+				listenerFailed(it, li, re);
+			}
+		}
+	}
+
+	public void ndlSlice(Resource sl, OntModel m) {
+		for (Iterator<INdlParseListener> it = listeners.iterator(); it.hasNext(); ) {
+			INdlParseListener li = it.next();
+			try {
+				li.ndlSlice(sl, m);
+			} catch (RuntimeException re) {
+				listenerFailed(it, li, re);
+			}
+		}
+	}
+}
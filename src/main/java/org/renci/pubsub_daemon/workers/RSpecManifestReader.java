@@ -0,0 +1,170 @@
+package org.renci.pubsub_daemon.workers;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads what GENIWorker needs from an RSpec manifest in a single StAX pass:
+ * the top-level nodes and links, their component managers, interfaces and
+ * geni_sliver_info. Elements are matched by local name regardless of namespace,
+ * same as the XPath expressions this replaces did on a non-namespace-aware DOM.
+ * Missing attributes read as empty strings, also as XPath did, except
+ * component_manager_id which is null when absent.
+ *
+ */
+public class RSpecManifestReader {
+	private static final String RSPEC = "rspec";
+	private static final String NODE = "node";
+	private static final String LINK = "link";
+	private static final String INTERFACE = "interface";
+	private static final String INTERFACE_REF = "interface_ref";
+	private static final String COMPONENT_MANAGER = "component_manager";
+	private static final String SLIVER_TYPE = "sliver_type";
+	private static final String SLIVER_INFO = "geni_sliver_info";
+
+	private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+	static {
+		// manifests don't need DTDs or external entities
+		xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	/**
+	 * geni_sliver_info of a node or link
+	 */
+	public static class SliverInfo {
+		public final String state;
+		public final String creatorUrn;
+		public final String startTime;
+		public final String expirationTime;
+		public final String resourceId;
+
+		SliverInfo(XMLStreamReader r) {
+			state = attr(r, "state");
+			creatorUrn = attr(r, "creator_urn");
+			startTime = attr(r, "start_time");
+			expirationTime = attr(r, "expiration_time");
+			resourceId = attr(r, "resource_id");
+		}
+	}
+
+	/**
+	 * Top-level node or link of the manifest
+	 */
+	public static class Sliver {
+		public final String elementName;
+		public final String sliverId;
+		// null if the attribute is absent
+		public final String componentManagerId;
+		// names of component_manager children (links)
+		public final List<String> componentManagers = new ArrayList<String>();
+		// sliver_type name (nodes)
+		public String sliverType = "";
+		// client ids of interface (nodes) or interface_ref (links) children
+		public final List<String> interfaces = new ArrayList<String>();
+		// null if there is no geni_sliver_info
+		public SliverInfo sliverInfo = null;
+
+		Sliver(XMLStreamReader r) {
+			elementName = r.getLocalName();
+			sliverId = attr(r, "sliver_id");
+			componentManagerId = r.getAttributeValue(null, "component_manager_id");
+		}
+	}
+
+	private final List<Sliver> nodes = new ArrayList<Sliver>();
+	private final List<Sliver> links = new ArrayList<Sliver>();
+
+	/**
+	 * Read the manifest
+	 * @param rspecMan
+	 * @throws XMLStreamException
+	 */
+	public RSpecManifestReader(String rspecMan) throws XMLStreamException {
+		XMLStreamReader r;
+		synchronized(xmlInputFactory) {
+			r = xmlInputFactory.createXMLStreamReader(new StringReader(rspecMan));
+		}
+		try {
+			int depth = 0;
+			boolean inRSpec = false;
+			// node or link being read
+			Sliver sliver = null;
+			boolean sawSliverType = false;
+			while (r.hasNext()) {
+				switch (r.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					depth++;
+					String name = r.getLocalName();
+					if (depth == 1) {
+						inRSpec = RSPEC.equals(name);
+					} else if ((depth == 2) && inRSpec) {
+						if (NODE.equals(name)) {
+							sliver = new Sliver(r);
+							nodes.add(sliver);
+						} else if (LINK.equals(name)) {
+							sliver = new Sliver(r);
+							links.add(sliver);
+						}
+						sawSliverType = false;
+					} else if ((depth == 3) && (sliver != null)) {
+						// only direct children of the node or link matter
+						if (SLIVER_INFO.equals(name)) {
+							if (sliver.sliverInfo == null)
+								sliver.sliverInfo = new SliverInfo(r);
+						} else if (COMPONENT_MANAGER.equals(name)) {
+							sliver.componentManagers.add(attr(r, "name"));
+						} else if (SLIVER_TYPE.equals(name)) {
+							if (!sawSliverType)
+								sliver.sliverType = attr(r, "name");
+							sawSliverType = true;
+						} else if ((NODE.equals(sliver.elementName) && INTERFACE.equals(name)) ||
+								(LINK.equals(sliver.elementName) && INTERFACE_REF.equals(name))) {
+							String clientId = r.getAttributeValue(null, "client_id");
+							if (clientId != null)
+								sliver.interfaces.add(clientId);
+						}
+					}
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					if (depth == 2)
+						sliver = null;
+					depth--;
+					break;
+				default:
+					break;
+				}
+			}
+		} finally {
+			r.close();
+		}
+	}
+
+	/**
+	 * Nodes in document order
+	 * @return
+	 */
+	public List<Sliver> getNodes() {
+		return Collections.unmodifiableList(nodes);
+	}
+
+	/**
+	 * Links in document order
+	 * @return
+	 */
+	public List<Sliver> getLinks() {
+		return Collections.unmodifiableList(links);
+	}
+
+	private static String attr(XMLStreamReader r, String name) {
+		String v = r.getAttributeValue(null, name);
+		return (v != null ? v : "");
+	}
+}
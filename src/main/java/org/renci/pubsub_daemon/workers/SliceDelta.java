@@ -0,0 +1,108 @@
+package org.renci.pubsub_daemon.workers;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Differences between the slivers of the current and the previously processed
+ * manifest of a slice. Slivers are identified by their sliver URN. When there is
+ * no previous manifest the delta is initial and every sliver counts as added.
+ *
+ */
+public class SliceDelta {
+	private final boolean initial;
+	private final Set<String> added = new HashSet<String>();
+	private final Set<String> removed = new HashSet<String>();
+	private final Set<String> changed = new HashSet<String>();
+	private final Set<String> stateChanged = new HashSet<String>();
+	private final Set<String> expiryChanged = new HashSet<String>();
+	private int unchanged = 0;
+
+	public SliceDelta(boolean initial) {
+		this.initial = initial;
+	}
+
+	public void addAdded(String sliverUrn) {
+		added.add(sliverUrn);
+	}
+
+	public void addRemoved(String sliverUrn) {
+		removed.add(sliverUrn);
+	}
+
+	/**
+	 * Record a sliver present in both manifests
+	 * @param sliverUrn
+	 * @param stateChange - geni_sliver_info state differs
+	 * @param expiryChange - expiration time differs
+	 * @param otherChange - anything else about the sliver differs
+	 */
+	public void addExisting(String sliverUrn, boolean stateChange, boolean expiryChange, boolean otherChange) {
+		if (stateChange)
+			stateChanged.add(sliverUrn);
+		if (expiryChange)
+			expiryChanged.add(sliverUrn);
+		if (stateChange || expiryChange || otherChange)
+			changed.add(sliverUrn);
+		else
+			unchanged++;
+	}
+
+	/**
+	 * No previous manifest of the slice was known
+	 * @return
+	 */
+	public boolean isInitial() {
+		return initial;
+	}
+
+	/**
+	 * Sliver is in both manifests and nothing about it changed
+	 * @param sliverUrn
+	 * @return
+	 */
+	public boolean isUnchanged(String sliverUrn) {
+		return !initial && !added.contains(sliverUrn) && !changed.contains(sliverUrn);
+	}
+
+	public boolean isEmpty() {
+		return !initial && added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+	}
+
+	public Set<String> getAdded() {
+		return Collections.unmodifiableSet(added);
+	}
+
+	public Set<String> getRemoved() {
+		return Collections.unmodifiableSet(removed);
+	}
+
+	/**
+	 * Slivers in both manifests that changed in any way
+	 * @return
+	 */
+	public Set<String> getChanged() {
+		return Collections.unmodifiableSet(changed);
+	}
+
+	public Set<String> getStateChanged() {
+		return Collections.unmodifiableSet(stateChanged);
+	}
+
+	public Set<String> getExpiryChanged() {
+		return Collections.unmodifiableSet(expiryChanged);
+	}
+
+	public int getUnchangedCount() {
+		return unchanged;
+	}
+
+	@Override
+	public String toString() {
+		if (initial)
+			return "initial, " + added.size() + " slivers";
+		return added.size() + " added, " + removed.size() + " removed, " + changed.size() + " changed (" +
+				stateChanged.size() + " state, " + expiryChanged.size() + " expiry), " + unchanged + " unchanged";
+	}
+}
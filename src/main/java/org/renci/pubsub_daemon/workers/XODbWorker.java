@@ -1,15 +1,16 @@
 package org.renci.pubsub_daemon.workers;
 
-import java.sql.Connection;
+import java.io.IOException;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 import org.renci.pubsub_daemon.Globals;
 import org.renci.pubsub_daemon.util.DbPool;
+import org.renci.pubsub_daemon.util.SpillQueue;
+import org.renci.pubsub_daemon.util.SqlUnitOfWork;
+import org.renci.pubsub_daemon.util.WriteBehindQueue;
 
 public class XODbWorker extends AbstractWorker {
 	private static final String XODbWorkerName = "XODbWorker, puts manifests into the xo database";
@@ -18,9 +19,42 @@ public class XODbWorker extends AbstractWorker {
 	private static final String DB_USER = "XODB.user";
 	private static final String DB_PASS = "XODB.password";
 
+	private static final String BATCH_SIZE = "XODB.batch.size";
+	private static final String BATCH_INTERVAL = "XODB.batch.interval";
+	private static final int DEFAULT_BATCH_SIZE = 50;
+	private static final long DEFAULT_BATCH_INTERVAL = 1000;
+
+	private static final String UPSERT_SQL = "INSERT INTO `xoslices` ( `slice_name` , `slice_guid` , `slice_owner`, `slice_manifest`, " + 
+			"`slice_manifest_type`, `slice_sm`) values (?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE slice_manifest=VALUES(slice_manifest)";
+
 	protected static DbPool conPool = null;
+	protected static WriteBehindQueue<SliceRow> writeQueue = null;
+	// rows that could not be written, replayed when the database is back (null if not configured)
+	protected static SpillQueue spill = null;
 	protected static Boolean flag = true;
 
+	/**
+	 * One xoslices row waiting to be written
+	 */
+	protected static class SliceRow {
+		final String name, guid, owner, manifest, sm, dedupKey;
+
+		SliceRow(String name, String guid, String owner, String manifest, String sm, String dedupKey) {
+			this.name = name;
+			this.guid = guid;
+			this.owner = owner;
+			this.manifest = manifest;
+			this.sm = sm;
+			this.dedupKey = dedupKey;
+		}
+
+		SqlUnitOfWork toUnit() {
+			SqlUnitOfWork unit = new SqlUnitOfWork();
+			unit.add(UPSERT_SQL, name, guid, owner, manifest, ManifestTypes.GZIPPED_ENCODED_NDL.name, sm);
+			return unit;
+		}
+	}
+
 
 	public static enum ManifestTypes {
 		GZIPPED_ENCODED_NDL("NDL GZipped/Base-64 encoded"),
@@ -35,95 +69,102 @@ public class XODbWorker extends AbstractWorker {
 			return name;
 		}
 	}
-	protected String sliceUrn, sliceUuid, sliceSmName, sliceSmGuid;
 
 	@Override
-	public void processManifest(Map<DocType, String> manifests,
-			String sliceUrn, String sliceUuid, String sliceSmName,
-			String sliceSmGuid) throws RuntimeException {
-
+	public INdlParseListener getNdlParseListener(String sliceUrn) {
+		return new NDLManifestParser(sliceUrn);
+	}
+	
+	/**
+	 * Create the connection pool, write-behind queue and spill queue on first use
+	 */
+	private static void initDatastore() {
 		synchronized(flag) {
-			if (conPool == null)
-				conPool = new DbPool(Globals.getInstance().getConfigProperty(DB_URL), 
+			if (conPool == null) {
+				conPool = DbPool.getPool(Globals.getInstance().getConfigProperty(DB_URL), 
 						Globals.getInstance().getConfigProperty(DB_USER), 
 						Globals.getInstance().getConfigProperty(DB_PASS));
+				if (conPool.poolValid()) {
+					spill = SpillQueue.create("XODB", conPool);
+					writeQueue = new WriteBehindQueue<SliceRow>("XODB", conPool, UPSERT_SQL, 
+							Globals.getInstance().getConfigPropertyInt(BATCH_SIZE, DEFAULT_BATCH_SIZE), 
+							Globals.getInstance().getConfigPropertyLong(BATCH_INTERVAL, DEFAULT_BATCH_INTERVAL)) {
+						@Override
+						protected void bind(PreparedStatement pst, SliceRow row) throws SQLException {
+							pst.setString(1, row.name);
+							pst.setString(2, row.guid);
+							pst.setString(3, row.owner);
+							pst.setString(4, row.manifest);
+							pst.setString(5, ManifestTypes.GZIPPED_ENCODED_NDL.name);
+							pst.setString(6, row.sm);
+						}
+
+						@Override
+						protected void dropped(String key, SliceRow row) {
+							if (spill != null) {
+								try {
+									spill.enqueue(key, row.toUnit());
+									return;
+								} catch (IOException ie) {
+									Globals.error("Unable to save slice row " + key + " for later: " + ie);
+								}
+							}
+							// make sure the manifest is written when it is republished
+							Globals.getInstance().getDedupCache().invalidate(row.dedupKey);
+						}
+					};
+				}
+			}
 		}
+	}
+
+	@Override
+	public void processManifest(ManifestContext ctx) throws RuntimeException {
 
-		checkManifests(manifests);
+		initDatastore();
 
-		this.manifests = manifests;
-		this.sliceUrn = sliceUrn;
-		this.sliceUuid = sliceUuid;
-		this.sliceSmName = sliceSmName;
-		this.sliceSmGuid = sliceSmGuid;
+		checkManifests(ctx.getManifests());
 
-		insertInDb();
+		insertInDb(ctx, ctx.getParsed() instanceof NDLManifestParser ? (NDLManifestParser)ctx.getParsed() : null);
 	}
 
-	private void updateRow(NDLManifestParser parser, Connection dbc) throws SQLException {
-		// update the row
-		Globals.debug("Updating row for slice " + parser.getSliceUrn() + " / " + parser.getSliceUuid());
-		PreparedStatement pst1 = dbc.prepareStatement("UPDATE `xoslices` SET slice_manifest=? WHERE slice_guid=? AND slice_sm=?");
-		pst1.setString(1, manifests.get(DocType.COMPRESSED_NDL_MANIFEST));
-		pst1.setString(2, parser.getSliceUuid());
-		pst1.setString(3, sliceSmName);
-		executeAndClose(pst1);
-	}
-	
-	private void insertRow(NDLManifestParser parser, Connection dbc) throws SQLException {
-		// insert new row
-		Globals.debug("Inserting new row for slice " + parser.getSliceUrn() + " / " + parser.getSliceUuid());
-		PreparedStatement pst1 = dbc.prepareStatement("INSERT into `xoslices` ( `slice_name` , `slice_guid` , `slice_owner`, `slice_manifest`, " + 
-				"`slice_manifest_type`, `slice_sm`) values (?, ?, ?, ?, ?, ?)");
-		pst1.setString(1, parser.getSliceUrn());
-		pst1.setString(2, parser.getSliceUuid());
-		pst1.setString(3, parser.getCreatorUrn());
-		pst1.setString(4, manifests.get(DocType.COMPRESSED_NDL_MANIFEST));
-		pst1.setString(5, ManifestTypes.GZIPPED_ENCODED_NDL.name);
-		pst1.setString(6, sliceSmName);
-		executeAndClose(pst1);
-	}
-	
 	/**
-	 * Insert the compressed version of the manifest into db. Do minimal parsing of the manifest.
+	 * Queue the compressed version of the manifest for the database. Do minimal parsing of the manifest
+	 * (unless it has already been parsed). Rows are upserted in batches by the write-behind queue;
+	 * a newer manifest of the same slice replaces one still waiting to be written.
 	 */
-	private void insertInDb() throws RuntimeException {
-		Connection dbc = null;
+	private void insertInDb(ManifestContext ctx, NDLManifestParser parser) throws RuntimeException {
+		String sliceUrn = ctx.getSliceUrn();
+		if (writeQueue == null) {
+			Globals.error("Unable to save slice " + sliceUrn + " to the database due to insufficient/invalid db parameters");
+			return;
+		}
 		try {
-			if (conPool.poolValid()) {
-				Globals.info("Saving slice " + sliceUrn + " to the database " + conPool.getUrl());
-				// parse the manifest
-				NDLManifestParser parser = new NDLManifestParser(sliceUrn, manifests.get(DocType.NDL_MANIFEST));
+			Globals.info("Saving slice " + sliceUrn + " to the database " + conPool.getUrl());
+			// parse the manifest
+			if (parser == null) {
+				parser = new NDLManifestParser(sliceUrn, ctx.getManifest(DocType.NDL_MANIFEST));
 				parser.parseAll();
-
-				Globals.debug("Slice meta information: " + parser.getCreatorUrn() + " " + parser.getSliceUuid() + " " + parser.getSliceUrn() + " " + parser.getSliceState());
-				// insert into db or update db
-				dbc = conPool.getDbConnection();
-				PreparedStatement pst = dbc.prepareStatement("SELECT slice_guid FROM `xoslices` WHERE slice_guid=? AND slice_sm=?");
-				pst.setString(1, parser.getSliceUuid());
-				pst.setString(2, sliceSmName);
-				ResultSet rs = pst.executeQuery();
-				if (rs.next()) {
-					updateRow(parser, dbc);
-				} else {
-					insertRow(parser, dbc);
-				}
-				rs.close();
-				pst.close();
-			} else {
-				Globals.error("Unable to save slice " + sliceUrn + " to the database due to insufficient/invalid db parameters");
 			}
-		} catch (SQLException e) {
-			throw new RuntimeException("Unable to insert into the database: " + e);
 		} catch (Exception e) {
 			throw new RuntimeException("Unable to parse the manifest: " + e);
-		} finally {
-			if (dbc != null)
+		}
+
+		Globals.debug("Slice meta information: " + parser.getCreatorUrn() + " " + parser.getSliceUuid() + " " + parser.getSliceUrn() + " " + parser.getSliceState());
+		String key = parser.getSliceUuid() + "/" + ctx.getSliceSmName();
+		SliceRow row = new SliceRow(parser.getSliceUrn(), parser.getSliceUuid(), parser.getCreatorUrn(), 
+				ctx.getManifest(DocType.COMPRESSED_NDL_MANIFEST), ctx.getSliceSmName(), ctx.getSliceKey());
+		// rows are spilled while holding the queue lock, so this can't slip in ahead of one
+		synchronized(writeQueue) {
+			if ((spill != null) && spill.hasPending(key)) {
+				// older rows of the slice are waiting to be replayed, this one must follow them
 				try {
-					dbc.close();
-				} catch (SQLException e) {
-					throw new RuntimeException("Error closing connection: " + e);
+					spill.enqueue(key, row.toUnit());
+				} catch (IOException ie) {
+					throw new RuntimeException("Unable to save slice " + sliceUrn + " for later: " + ie);
 				}
+			} else
+				writeQueue.enqueue(key, row);
 		}
 	}
 
@@ -137,30 +178,15 @@ public class XODbWorker extends AbstractWorker {
 		return Arrays.asList(AbstractWorker.DocType.COMPRESSED_NDL_MANIFEST, AbstractWorker.DocType.NDL_MANIFEST);
 	}
 	
-	private void executeAndClose(PreparedStatement pst) {
-		executeAndClose(pst, 0);
-	}
-	
-	private final static int SQL_RETRIES = 3;
-	
-	/**
-	 * Guard against transient SQL errors
-	 * @param pst
-	 * @param tryIndex
-	 */
-	private void executeAndClose(PreparedStatement pst, int tryIndex) {
-		try {
-			pst.execute();
-			pst.close();
-		} catch (SQLException e) {
-			if (tryIndex < SQL_RETRIES)
-				executeAndClose(pst, ++tryIndex);
-			else
-				throw new RuntimeException("Unable to insert into the database: " + e);
-		}
+	@Override
+	public String getStats() {
+		if (writeQueue == null)
+			return null;
+		return writeQueue.getStats() + (spill != null ? "; " + spill.getStats() : "");
 	}
 	
 	public void runAtStartup() {
-		
+		// connect now rather than on the first manifest
+		initDatastore();
 	}
 }
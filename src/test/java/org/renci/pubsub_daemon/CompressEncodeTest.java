@@ -0,0 +1,129 @@
+package org.renci.pubsub_daemon;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.ZipException;
+
+import org.junit.Test;
+
+/**
+ * Round trips through CompressEncode, including the decompressed size limit
+ * enforced by its inflating stream
+ *
+ */
+public class CompressEncodeTest {
+	private static final int MAX_SIZE = 100000;
+
+	/**
+	 * Text of the given length in UTF-8 bytes, compressible but not trivially so
+	 */
+	private static String text(int len) {
+		Random r = new Random(len);
+		StringBuilder sb = new StringBuilder(len);
+		for (int i = 0; i < len; i++)
+			sb.append((char)('a' + r.nextInt(8)));
+		return sb.toString();
+	}
+
+	@Test
+	public void roundTrip() throws Exception {
+		String s = "<rdf:RDF>é中</rdf:RDF>" + text(20000);
+		assertEquals(s, CompressEncode.decodeDecompress(CompressEncode.compressEncode(s)));
+		assertEquals(s, CompressEncode.decompress(new ByteArrayInputStream(CompressEncode.compress(s)), 0));
+		assertEquals("", CompressEncode.decodeDecompress(CompressEncode.compressEncode("")));
+	}
+
+	@Test
+	public void atMaxSize() throws Exception {
+		String s = text(MAX_SIZE);
+		assertEquals(s, CompressEncode.decodeDecompress(CompressEncode.compressEncode(s), MAX_SIZE));
+		assertEquals(s, CompressEncode.decompress(new ByteArrayInputStream(CompressEncode.compress(s)), MAX_SIZE));
+	}
+
+	@Test
+	public void justOverMaxSize() throws Exception {
+		String s = text(MAX_SIZE + 1);
+		try {
+			CompressEncode.decodeDecompress(CompressEncode.compressEncode(s), MAX_SIZE);
+			fail("inflated past the limit");
+		} catch (DataFormatException dfe) {
+			// expected
+		}
+		try {
+			CompressEncode.decompress(new ByteArrayInputStream(CompressEncode.compress(s)), MAX_SIZE);
+			fail("inflated past the limit");
+		} catch (DataFormatException dfe) {
+			// expected
+		}
+		// the pooled inflater was handed back and still works
+		assertEquals(s, CompressEncode.decodeDecompress(CompressEncode.compressEncode(s), MAX_SIZE + 1));
+	}
+
+	@Test
+	public void singleByteReadsAtMaxSize() throws Exception {
+		String s = text(MAX_SIZE);
+		byte[] expected = s.getBytes(CompressEncode.UTF8);
+		byte[] read = new byte[MAX_SIZE];
+		InputStream is = CompressEncode.decodeStream(CompressEncode.compressEncode(s), MAX_SIZE);
+		try {
+			for (int i = 0; i < MAX_SIZE; i++)
+				read[i] = (byte)is.read();
+			assertEquals(-1, is.read());
+		} finally {
+			is.close();
+		}
+		assertArrayEquals(expected, read);
+	}
+
+	@Test
+	public void singleByteReadsJustOverMaxSize() throws Exception {
+		String s = text(MAX_SIZE + 1);
+		InputStream is = CompressEncode.decodeStream(CompressEncode.compressEncode(s), MAX_SIZE);
+		try {
+			for (int i = 0; i < MAX_SIZE; i++)
+				is.read();
+			is.read();
+			fail("read past the limit");
+		} catch (ZipException ze) {
+			// expected
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void nestedStreams() throws Exception {
+		// a second stream while the first is open gets its own inflater
+		String a = text(5000), b = text(7000);
+		InputStream outer = CompressEncode.decodeStream(CompressEncode.compressEncode(a), MAX_SIZE);
+		try {
+			assertEquals(b, CompressEncode.decodeDecompress(CompressEncode.compressEncode(b), MAX_SIZE));
+			assertEquals(a, new String(readAll(outer), CompressEncode.UTF8));
+		} finally {
+			outer.close();
+		}
+	}
+
+	@Test(expected = DataFormatException.class)
+	public void truncated() throws Exception {
+		String enc = CompressEncode.compressEncode(text(5000));
+		CompressEncode.decodeDecompress(enc.substring(0, enc.length() / 2), MAX_SIZE);
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int count;
+		while ((count = is.read(buf)) >= 0)
+			bos.write(buf, 0, count);
+		return bos.toByteArray();
+	}
+}
@@ -0,0 +1,341 @@
+package org.renci.pubsub_daemon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Hedging and batching in ConverterPool against local stub XML-RPC converters
+ * whose response delays the test controls
+ *
+ */
+public class ConverterPoolTest {
+	private static final int WARMUP_CALLS = 20;
+	private static final Pattern HEDGE_WINS = Pattern.compile("hedge won (\\d+)");
+	private static final String MULTICALL = "system.multicall";
+	// the stub answers a call with this parameter with a fault
+	private static final String FAULT = "fault";
+
+	/**
+	 * Answers each call with its name and the call's parameter after the configured
+	 * delays, and system.multicall with a result or fault per call
+	 */
+	private static class StubConverter implements HttpHandler {
+		final String name;
+		final HttpServer server;
+		// per request, and per call in the request
+		final AtomicLong delayMs = new AtomicLong(0);
+		final AtomicLong callMs = new AtomicLong(0);
+		final AtomicInteger requests = new AtomicInteger(0);
+		// calls in each multicall received
+		final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+		StubConverter(String name) throws IOException {
+			this(name, Executors.newCachedThreadPool());
+		}
+
+		StubConverter(String name, ExecutorService requestThreads) throws IOException {
+			this.name = name;
+			server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+			server.createContext("/", this);
+			server.setExecutor(requestThreads);
+			server.start();
+		}
+
+		String url() {
+			return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+		}
+
+		public void handle(HttpExchange ex) throws IOException {
+			requests.incrementAndGet();
+			String response;
+			try {
+				Element call = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(ex.getRequestBody()).getDocumentElement();
+				String method = text(call, "methodName");
+				Element value = first(first(first(call, "params"), "param"), "value");
+				if (MULTICALL.equals(method)) {
+					// each entry is {methodName, params}; answer with [result] or a fault struct
+					StringBuilder sb = new StringBuilder();
+					int n = 0;
+					for (Element c: children(first(first(value, "array"), "data"), "value")) {
+						String param = null;
+						for (Element m: children(first(c, "struct"), "member"))
+							if ("params".equals(text(m, "name")))
+								param = text(first(first(first(first(m, "value"), "array"), "data"), "value"), "string");
+						sb.append(FAULT.equals(param) ? fault("no conversion for " + param) : 
+							"<value><array><data>" + string(answer(param)) + "</data></array></value>");
+						n++;
+					}
+					batchSizes.add(n);
+					pause(delayMs.get() + n * callMs.get());
+					response = "<params><param><value><array><data>" + sb + "</data></array></value></param></params>";
+				} else {
+					String param = text(value, "string");
+					pause(delayMs.get() + callMs.get());
+					response = "<params><param>" + string(answer(param)) + "</param></params>";
+				}
+			} catch (InterruptedException ie) {
+				return;
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+			byte[] resp = ("<?xml version=\"1.0\"?><methodResponse>" + response + "</methodResponse>").getBytes("UTF-8");
+			ex.getResponseHeaders().set("Content-Type", "text/xml");
+			ex.sendResponseHeaders(200, resp.length);
+			OutputStream os = ex.getResponseBody();
+			os.write(resp);
+			os.close();
+		}
+
+		String answer(String param) {
+			return name + ":" + param;
+		}
+
+		private static void pause(long ms) throws InterruptedException {
+			if (ms > 0)
+				Thread.sleep(ms);
+		}
+
+		private static String string(String s) {
+			return "<value><string>" + s + "</string></value>";
+		}
+
+		private static String fault(String s) {
+			return "<value><struct><member><name>faultCode</name><value><int>1</int></value></member>" + 
+					"<member><name>faultString</name>" + string(s) + "</member></struct></value>";
+		}
+
+		private static List<Element> children(Element e, String tag) {
+			List<Element> ret = new ArrayList<Element>();
+			for (Node n = e.getFirstChild(); n != null; n = n.getNextSibling())
+				if ((n instanceof Element) && tag.equals(((Element)n).getTagName()))
+					ret.add((Element)n);
+			return ret;
+		}
+
+		private static Element first(Element e, String tag) {
+			return children(e, tag).get(0);
+		}
+
+		private static String text(Element e, String tag) {
+			return first(e, tag).getTextContent();
+		}
+
+		void stop() {
+			server.stop(0);
+		}
+	}
+
+	private StubConverter a, b;
+
+	@Before
+	public void setUp() throws IOException {
+		a = new StubConverter("A");
+		b = new StubConverter("B");
+	}
+
+	@After
+	public void tearDown() {
+		a.stop();
+		b.stop();
+		Globals.getInstance().setConfigProperties(null);
+	}
+
+	private ConverterPool pool(int hedgeThreads) throws Exception {
+		Properties p = new Properties();
+		p.setProperty("pubsub.ndl.converter.hedge", "true");
+		p.setProperty("pubsub.ndl.converter.hedge.threads", String.valueOf(hedgeThreads));
+		p.setProperty("pubsub.ndl.converter.reply.timeout", "10");
+		Globals.getInstance().setConfigProperties(p);
+		// the first call to each stub pays for class loading and connecting; keep that out of the samples
+		for (StubConverter s: new StubConverter[] { a, b })
+			new ConverterPool(s.url()).execute("ndlConverter.convert", new Object[]{ "x" });
+		ConverterPool cp = new ConverterPool(a.url() + "," + b.url());
+
+		for (int i = 0; i < WARMUP_CALLS; i++)
+			cp.execute("ndlConverter.convert", new Object[]{ "x" });
+		assertTrue("hedge delay not established", cp.hedgeDelay() > 0);
+		return cp;
+	}
+
+	private static ConverterPool batchingPool(StubConverter s, int batchSize, long batchWaitMs) throws Exception {
+		Properties p = new Properties();
+		p.setProperty("pubsub.ndl.converter.batch.size", String.valueOf(batchSize));
+		p.setProperty("pubsub.ndl.converter.batch.wait.ms", String.valueOf(batchWaitMs));
+		p.setProperty("pubsub.ndl.converter.reply.timeout", "10");
+		Globals.getInstance().setConfigProperties(p);
+		return new ConverterPool(s.url());
+	}
+
+	/**
+	 * Make one call per parameter, all at once, each from its own thread
+	 * @param cp
+	 * @param params
+	 * @return results in parameter order
+	 */
+	private static Object[] callAtOnce(final ConverterPool cp, List<String> params) throws InterruptedException {
+		final Object[] ret = new Object[params.size()];
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < params.size(); i++) {
+			final int n = i;
+			final String param = params.get(i);
+			Thread t = new Thread() {
+				public void run() {
+					ret[n] = cp.execute("ndlConverter.convert", new Object[]{ param });
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t: threads)
+			t.join();
+		return ret;
+	}
+
+	private static long hedgeWins(ConverterPool cp) {
+		Matcher m = HEDGE_WINS.matcher(cp.getStats());
+		assertTrue(cp.getStats(), m.find());
+		return Long.parseLong(m.group(1));
+	}
+
+	@Test
+	public void hedgeAnswersWhenPreferredIsSlow() throws Exception {
+		// B is slower during warm-up, so A ends up preferred
+		b.delayMs.set(100);
+		ConverterPool cp = pool(4);
+		assertEquals(cp.getStats(), a.url(), cp.candidates().get(0).url);
+
+		// now only A is slow; B answers the hedge
+		a.delayMs.set(3000);
+		long wins = hedgeWins(cp);
+		long start = System.currentTimeMillis();
+		Object ret = cp.execute("ndlConverter.convert", new Object[]{ "x" });
+		long elapsed = System.currentTimeMillis() - start;
+		assertEquals(b.answer("x"), ret);
+		assertTrue("hedged call took " + elapsed + "ms", elapsed < 1500);
+		assertEquals(cp.getStats(), wins + 1, hedgeWins(cp));
+	}
+
+	@Test
+	public void saturatedPoolCallsWithoutHedging() throws Exception {
+		ConverterPool cp = pool(2);
+		a.delayMs.set(1000);
+		b.delayMs.set(1000);
+
+		// this call takes both pool threads, the primary and its hedge
+		final ConverterPool fcp = cp;
+		final AtomicReference<Object> first = new AtomicReference<Object>();
+		Thread t = new Thread() {
+			public void run() {
+				first.set(fcp.execute("ndlConverter.convert", new Object[]{ "x" }));
+			}
+		};
+		t.start();
+		Thread.sleep(300);
+
+		Object ret = cp.execute("ndlConverter.convert", new Object[]{ "x" });
+		t.join();
+		assertTrue(ret != null);
+		assertTrue(first.get() != null);
+		assertTrue(cp.getStats(), cp.getStats().contains("skipped 1 with pool busy"));
+	}
+
+	@Test
+	public void batchHandsEachCallerItsResult() throws Exception {
+		// waits far longer than the test, so only a full batch is sent
+		ConverterPool cp = batchingPool(a, 4, 10000);
+		long start = System.currentTimeMillis();
+		Object[] ret = callAtOnce(cp, Arrays.asList("p0", FAULT, "p2", "p3"));
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertEquals(a.answer("p0"), ret[0]);
+		// a fault completes that call with null and leaves the others alone
+		assertNull(ret[1]);
+		assertEquals(a.answer("p2"), ret[2]);
+		assertEquals(a.answer("p3"), ret[3]);
+		assertEquals(Arrays.asList(4), a.batchSizes);
+		assertEquals(1, a.requests.get());
+		assertTrue("full batch waited " + elapsed + "ms", elapsed < 5000);
+	}
+
+	@Test
+	public void partialBatchIsSentAfterWait() throws Exception {
+		ConverterPool cp = batchingPool(a, 10, 300);
+		long start = System.currentTimeMillis();
+		Object[] ret = callAtOnce(cp, Arrays.asList("p0", "p1", "p2"));
+		long elapsed = System.currentTimeMillis() - start;
+
+		for (int i = 0; i < ret.length; i++)
+			assertEquals(a.answer("p" + i), ret[i]);
+		assertEquals(Arrays.asList(3), a.batchSizes);
+		assertTrue("partial batch sent after " + elapsed + "ms", elapsed >= 250);
+	}
+
+	@Test
+	public void singleCallIsMadeDirectly() throws Exception {
+		ConverterPool cp = batchingPool(a, 4, 50);
+		assertEquals(a.answer("p0"), cp.execute("ndlConverter.convert", new Object[]{ "p0" }));
+		assertTrue(a.batchSizes.isEmpty());
+		assertEquals(1, a.requests.get());
+	}
+
+	@Test
+	public void batchingThroughput() throws Exception {
+		// a converter that handles one request at a time and pays more per request than per call
+		StubConverter c = new StubConverter("C", Executors.newSingleThreadExecutor());
+		c.delayMs.set(20);
+		c.callMs.set(2);
+		try {
+			List<String> params = new ArrayList<String>();
+			for (int i = 0; i < 32; i++)
+				params.add("p" + i);
+
+			long start = System.currentTimeMillis();
+			callAtOnce(batchingPool(c, 0, 0), params);
+			long direct = System.currentTimeMillis() - start;
+			int directRequests = c.requests.getAndSet(0);
+
+			start = System.currentTimeMillis();
+			Object[] ret = callAtOnce(batchingPool(c, 8, 20), params);
+			long batched = System.currentTimeMillis() - start;
+
+			for (int i = 0; i < ret.length; i++)
+				assertEquals(c.answer(params.get(i)), ret[i]);
+			Globals.info(params.size() + " calls: " + direct + "ms in " + directRequests + " requests, " + batched + 
+					"ms in " + c.requests.get() + " requests batched " + c.batchSizes);
+			assertEquals(params.size(), directRequests);
+			assertTrue(c.requests.get() < directRequests);
+			assertTrue("batched " + batched + "ms, direct " + direct + "ms", batched < direct);
+		} finally {
+			c.stop();
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package org.renci.pubsub_daemon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Many threads converting the same manifest through a pool of internal
+ * converters all get the same RSpec a single converter produces
+ *
+ */
+public class InternalConverterPoolTest {
+	private static final String MANIFEST = "scripts/manifests/test1.rdf";
+	private static final String SLICE = "urn:publicid:IDN+exogeni.net+slice+test1";
+	private static final int INSTANCES = 4;
+	private static final int THREADS = 16;
+	private static final int CONVERSIONS_PER_THREAD = 10;
+
+	@After
+	public void tearDown() {
+		Globals.getInstance().setConfigProperties(null);
+	}
+
+	@Test
+	public void concurrentConversionsMatch() throws Exception {
+		Properties p = new Properties();
+		p.setProperty("pubsub.internal.converter.instances", String.valueOf(INSTANCES));
+		// also checks all instances agree on the warm-up conversion
+		p.setProperty("pubsub.internal.converter.warmup", MANIFEST);
+		Globals.getInstance().setConfigProperties(p);
+
+		final String ndl = Globals.readFileToString(MANIFEST);
+		final InternalConverterPool pool = new InternalConverterPool(Logger.getLogger(getClass()));
+		final String expected = rspec(pool.manifestToRSpec3(ndl, SLICE));
+		assertNotNull(expected);
+		assertFalse(expected.isEmpty());
+
+		ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+			for (int t = 0; t < THREADS; t++) {
+				results.add(threads.submit(new Callable<List<String>>() {
+					public List<String> call() throws Exception {
+						List<String> ret = new ArrayList<String>();
+						for (int i = 0; i < CONVERSIONS_PER_THREAD; i++)
+							ret.add(rspec(pool.manifestToRSpec3(ndl, SLICE)));
+						return ret;
+					}
+				}));
+			}
+			for (Future<List<String>> f: results) {
+				for (String rspec: f.get())
+					assertEquals(expected, rspec);
+			}
+		} finally {
+			threads.shutdownNow();
+		}
+	}
+
+	private static String rspec(Map<String, Object> res) {
+		assertNotNull(res);
+		assertFalse("conversion failed: " + res.get("msg"), Boolean.TRUE.equals(res.get("err")));
+		return (String)res.get("ret");
+	}
+}
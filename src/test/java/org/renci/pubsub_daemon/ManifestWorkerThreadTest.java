@@ -0,0 +1,83 @@
+package org.renci.pubsub_daemon;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.renci.pubsub_daemon.workers.AbstractWorker;
+import org.renci.pubsub_daemon.workers.ManifestContext;
+
+/**
+ * A worker that times out and ignores being cancelled, as one blocked in JDBC
+ * would, still holds the manifest until it finishes, so the next manifest of
+ * the slice can't run alongside it
+ *
+ */
+public class ManifestWorkerThreadTest {
+	private static final long WORKER_MS = 2500;
+
+	/**
+	 * Takes WORKER_MS no matter what
+	 */
+	private static class StubbornWorker extends AbstractWorker {
+		volatile boolean finished = false;
+
+		@Override
+		public String getName() {
+			return "stubborn";
+		}
+
+		@Override
+		public List<DocType> listDocTypes() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public void runAtStartup() {
+		}
+
+		@Override
+		public void processManifest(ManifestContext ctx) {
+			long end = System.currentTimeMillis() + WORKER_MS;
+			long left;
+			while ((left = end - System.currentTimeMillis()) > 0) {
+				try {
+					Thread.sleep(left);
+				} catch (InterruptedException ie) {
+					;
+				}
+			}
+			finished = true;
+		}
+	}
+
+	private final StubbornWorker worker = new StubbornWorker();
+
+	@Before
+	public void setUp() {
+		Properties p = new Properties();
+		p.setProperty("pubsub.worker.timeout", "1");
+		Globals.getInstance().setConfigProperties(p);
+		Globals.getInstance().addWorker(worker);
+	}
+
+	@After
+	public void tearDown() {
+		Globals.getInstance().removeWorker(worker);
+		Globals.getInstance().setConfigProperties(null);
+	}
+
+	@Test
+	public void timedOutStageHoldsTheManifest() {
+		ManifestWorkerThread mwt = new ManifestWorkerThread("manifest-" + System.nanoTime(), "urn:slice", "uuid", "sm", "sm-guid");
+		long start = System.currentTimeMillis();
+		mwt.run();
+		assertTrue("run() returned while the cancelled worker was still going", worker.finished);
+		assertTrue(System.currentTimeMillis() - start >= WORKER_MS);
+	}
+}
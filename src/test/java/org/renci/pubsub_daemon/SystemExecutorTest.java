@@ -0,0 +1,143 @@
+package org.renci.pubsub_daemon;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.renci.pubsub_daemon.SystemExecutor.Result;
+
+/**
+ * Commands run through SystemExecutor: output capture and truncation, input that
+ * the command doesn't read, timeouts reaching descendants, descendants left holding
+ * the pipes, and many at once on a few threads
+ *
+ */
+public class SystemExecutorTest {
+	// pumps and writers at the default pubsub.exec.io.threads, and the timer
+	private static final int MAX_THREADS = 2 * 2 + 1;
+	private final SystemExecutor se = new SystemExecutor(null);
+
+	@After
+	public void tearDown() {
+		Globals.getInstance().setConfigProperties(null);
+	}
+
+	private static List<String> sh(String script) {
+		return Arrays.asList("/bin/sh", "-c", script);
+	}
+
+	@Test
+	public void capturesOutputAndExitValue() throws Exception {
+		Result r = se.submit(sh("echo out; echo err >&2; exit 3"), null, null, null, 10000).get(10, TimeUnit.SECONDS);
+		assertEquals(3, r.exitValue);
+		assertEquals("out\n", new String(r.stdout));
+		assertEquals("err\n", new String(r.stderr));
+		assertFalse(r.killed);
+		assertFalse(r.truncated);
+		assertFalse(r.succeeded());
+	}
+
+	@Test
+	public void echoesInput() throws Exception {
+		byte[] input = new byte[256*1024];
+		for (int i = 0; i < input.length; i++)
+			input[i] = (byte)('a' + i % 26);
+		Result r = se.submit(Arrays.asList("cat"), null, null, input, 10000).get(10, TimeUnit.SECONDS);
+		assertTrue(r.succeeded());
+		assertArrayEquals(input, r.stdout);
+	}
+
+	@Test
+	public void echoesSmallInput() throws Exception {
+		Result r = se.submit(Arrays.asList("cat"), null, null, "small\n".getBytes(), 10000).get(10, TimeUnit.SECONDS);
+		assertTrue(r.succeeded());
+		assertEquals("small\n", new String(r.stdout));
+	}
+
+	@Test
+	public void truncatesOutput() throws Exception {
+		Properties p = new Properties();
+		p.setProperty("pubsub.exec.max.output", "1000");
+		Globals.getInstance().setConfigProperties(p);
+		// far more than a pipe holds, so it only finishes if reading goes on past the limit
+		Result r = se.submit(sh("head -c 1000000 /dev/zero"), null, null, null, 10000).get(10, TimeUnit.SECONDS);
+		assertTrue(r.succeeded());
+		assertTrue(r.truncated);
+		assertEquals(1000, r.stdout.length);
+	}
+
+	@Test
+	public void submitDoesNotWaitForInput() throws Exception {
+		// more input than a pipe holds, to a command that never reads it
+		long start = System.currentTimeMillis();
+		Future<Result> f = se.submit(sh("sleep 2"), null, null, new byte[1024*1024], 10000);
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertTrue(f.get(10, TimeUnit.SECONDS).succeeded());
+	}
+
+	@Test
+	public void timeoutKillsDescendants() throws Exception {
+		long start = System.currentTimeMillis();
+		Result r = se.submit(sh("sleep 30 & sleep 30"), null, null, null, 500).get(20, TimeUnit.SECONDS);
+		assertTrue(r.killed);
+		assertFalse(r.succeeded());
+		assertTrue(System.currentTimeMillis() - start < 20000);
+	}
+
+	@Test
+	public void reparentedDescendantDoesNotHoldResult() throws Exception {
+		// the grandchild outlives the shell with its stdout and stderr open
+		long start = System.currentTimeMillis();
+		Result r = se.submit(sh("(sleep 30 &); echo done"), null, null, null, 0).get(20, TimeUnit.SECONDS);
+		assertTrue(r.succeeded());
+		assertEquals("done\n", new String(r.stdout));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+	}
+
+	@Test
+	public void timeoutWithReparentedDescendant() throws Exception {
+		// the kill can't find the grandchild, which still has the pipes open
+		long start = System.currentTimeMillis();
+		Result r = se.submit(sh("(sleep 30 &); sleep 30"), null, null, null, 500).get(20, TimeUnit.SECONDS);
+		assertTrue(r.killed);
+		assertTrue(System.currentTimeMillis() - start < 5000);
+	}
+
+	@Test
+	public void cancelKills() throws Exception {
+		Future<Result> f = se.submit(sh("sleep 30"), null, null, null, 0);
+		assertTrue(f.cancel(true));
+		assertTrue(f.isCancelled());
+	}
+
+	@Test
+	public void manyAtOnce() throws Exception {
+		List<Future<Result>> results = new ArrayList<Future<Result>>();
+		for (int i = 0; i < 64; i++)
+			results.add(se.submit(sh("sleep 0.2; echo " + i), null, null, null, 30000));
+		assertTrue(executorThreads() <= MAX_THREADS);
+		for (int i = 0; i < results.size(); i++) {
+			Result r = results.get(i).get(30, TimeUnit.SECONDS);
+			assertTrue(r.succeeded());
+			assertEquals(i + "\n", new String(r.stdout));
+		}
+	}
+
+	private static int executorThreads() {
+		int n = 0;
+		for (Thread t: Thread.getAllStackTraces().keySet())
+			if (t.getName().startsWith("SystemExecutor"))
+				n++;
+		return n;
+	}
+}
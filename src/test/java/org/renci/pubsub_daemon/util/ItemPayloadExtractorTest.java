@@ -0,0 +1,120 @@
+package org.renci.pubsub_daemon.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.StringReader;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.xpath.XPathFactory;
+
+import org.junit.Test;
+import org.xml.sax.InputSource;
+
+/**
+ * ItemPayloadExtractor against XPath '/item', the evaluation it replaced, on
+ * items taking the direct scan and items that need the StAX pass
+ *
+ */
+public class ItemPayloadExtractorTest {
+	private static final String PAYLOAD = "H4sIAAAAAAAAAO29B2AcSZYlJi9tynt/SvV+B/P+Zw==";
+
+	private static String xpath(String item) throws Exception {
+		return XPathFactory.newInstance().newXPath().evaluate("/item",
+				DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(item))));
+	}
+
+	private static String extract(String item) throws XMLStreamException {
+		return ItemPayloadExtractor.getInstance().extract(item);
+	}
+
+	/**
+	 * Same as XPath and through the direct scan
+	 */
+	private static void assertDirect(String item) throws Exception {
+		assertNotNull("needed the parser: " + item, ItemPayloadExtractor.getInstance().extractDirect(item));
+		assertEquals(xpath(item), extract(item));
+	}
+
+	/**
+	 * Same as XPath and through the parser
+	 */
+	private static void assertStax(String item) throws Exception {
+		assertNull("scanned directly: " + item, ItemPayloadExtractor.getInstance().extractDirect(item));
+		assertEquals(xpath(item), extract(item));
+	}
+
+	@Test
+	public void plainItems() throws Exception {
+		assertDirect("<item id=\"manifest\">" + PAYLOAD + "</item>");
+		assertDirect("  \n<item>" + PAYLOAD + "</item>\n");
+		// '>' inside an attribute value
+		assertDirect("<item id='a>b' node=\"x>y\">" + PAYLOAD + "</item>");
+		// text is collected from nested elements too
+		assertDirect("<item><a>one</a> two <b/>three</item>");
+		assertDirect("<item xmlns=\"http://jabber.org/protocol/pubsub\">" + PAYLOAD + "</item>");
+	}
+
+	@Test
+	public void missingPayload() throws Exception {
+		assertDirect("<item></item>");
+		assertDirect("<item/>");
+		assertDirect("<item id=\"manifest\"/>");
+		assertEquals("", extract("<items><item>" + PAYLOAD + "</item></items>"));
+		assertEquals("", extract("<other>" + PAYLOAD + "</other>"));
+		assertNull(extract(null));
+	}
+
+	@Test
+	public void cdata() throws Exception {
+		assertStax("<item><![CDATA[" + PAYLOAD + "<&>]]></item>");
+		assertStax("<item>" + PAYLOAD.substring(0, 10) + "<![CDATA[" + PAYLOAD.substring(10) + "]]></item>");
+	}
+
+	@Test
+	public void entities() throws Exception {
+		assertStax("<item>" + PAYLOAD + "&#10;</item>");
+		assertStax("<item>a &amp; b &lt;c&gt; &quot;d&quot; &apos;e&apos;</item>");
+	}
+
+	@Test
+	public void commentsAndProcessingInstructions() throws Exception {
+		assertStax("<?xml version=\"1.0\"?><item>" + PAYLOAD + "</item>");
+		assertStax("<item>" + PAYLOAD.substring(0, 10) + "<!-- comment -->" + PAYLOAD.substring(10) + "</item>");
+	}
+
+	@Test
+	public void prefixedItem() throws Exception {
+		// matched by local name, where XPath on a DOM without namespaces doesn't see an item
+		String item = "<ps:item xmlns:ps=\"http://jabber.org/protocol/pubsub\">" + PAYLOAD + "</ps:item>";
+		assertNull(ItemPayloadExtractor.getInstance().extractDirect(item));
+		assertEquals(PAYLOAD, extract(item));
+	}
+
+	@Test(expected = XMLStreamException.class)
+	public void cutOff() throws Exception {
+		extract("<item>" + PAYLOAD);
+	}
+
+	@Test(expected = XMLStreamException.class)
+	public void cutOffInTag() throws Exception {
+		extract("<item>" + PAYLOAD + "</item");
+	}
+
+	@Test(expected = XMLStreamException.class)
+	public void unbalanced() throws Exception {
+		extract("<item>" + PAYLOAD + "</item></item>");
+	}
+
+	@Test(expected = XMLStreamException.class)
+	public void textAfterItem() throws Exception {
+		extract("<item>" + PAYLOAD + "</item>trailing");
+	}
+
+	@Test(expected = XMLStreamException.class)
+	public void badEntity() throws Exception {
+		extract("<item>a & b</item>");
+	}
+}
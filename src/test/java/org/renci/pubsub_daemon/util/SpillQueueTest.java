@@ -0,0 +1,265 @@
+package org.renci.pubsub_daemon.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * SpillQueue replaying into a stub database that can be down, let commits
+ * through one at a time, or reject some statements for good
+ *
+ */
+public class SpillQueueTest {
+	private static final String INSERT = "INSERT INTO t VALUES (?, ?)";
+	// the stub rejects statements with this in them while up
+	private static final String POISON = "poison";
+	private static final int SEGMENT_BYTES = 4096;
+	private static final long MAX_BACKOFF_MS = 500;
+	private static final long WAIT_MS = 20000;
+
+	/**
+	 * Connections record the first parameter of each row and hand them over on commit
+	 */
+	private static class StubPool extends DbPool {
+		volatile boolean up = true;
+		// commits wait for a permit if set
+		volatile Semaphore gate = null;
+		final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+
+		StubPool() {
+			super("stub");
+		}
+
+		@Override
+		public Connection getDbConnection() throws SQLException {
+			if (!up)
+				throw new SQLNonTransientConnectionException("Communications link failure", "08S01");
+			final List<String> rows = new ArrayList<String>();
+			return (Connection)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+				public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+					if (m.getName().equals("prepareStatement"))
+						return statement((String)args[0], rows);
+					if (m.getName().equals("commit")) {
+						Semaphore g = gate;
+						if (g != null)
+							g.acquire();
+						written.addAll(rows);
+					} else if (m.getName().equals("rollback"))
+						rows.clear();
+					else if (m.getName().equals("isValid"))
+						return up;
+					return null;
+				}
+			});
+		}
+
+		private PreparedStatement statement(final String sql, final List<String> rows) {
+			final List<String> batch = new ArrayList<String>();
+			final String[] first = new String[1];
+			return (PreparedStatement)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+				public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+					String n = m.getName();
+					if (n.equals("setObject") && ((Integer)args[0] == 1))
+						first[0] = String.valueOf(args[1]);
+					else if (n.equals("execute") || n.equals("executeBatch") || n.equals("addBatch")) {
+						if (sql.contains(POISON))
+							throw new SQLException("Data too long for column", "22001", 1406);
+						if (n.equals("addBatch"))
+							batch.add(first[0]);
+						else if (n.equals("execute")) {
+							rows.add(first[0]);
+							return false;
+						} else {
+							rows.addAll(batch);
+							return new int[batch.size()];
+						}
+					}
+					return null;
+				}
+			});
+		}
+	}
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("spill", "");
+		assertTrue(dir.delete());
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f: files)
+				f.delete();
+		dir.delete();
+	}
+
+	private SpillQueue queue(StubPool pool, int maxAttempts) throws IOException {
+		return new SpillQueue("TEST", dir, pool, SEGMENT_BYTES, MAX_BACKOFF_MS, maxAttempts);
+	}
+
+	private static SqlUnitOfWork unit(String id, String sql) {
+		SqlUnitOfWork u = new SqlUnitOfWork();
+		// padding so a few units fill a segment
+		char[] pad = new char[500];
+		Arrays.fill(pad, 'x');
+		u.add(sql, id, new String(pad));
+		return u;
+	}
+
+	private static SqlUnitOfWork unit(String id) {
+		return unit(id, INSERT);
+	}
+
+	private List<String> segments() {
+		String[] names = dir.list(new FilenameFilter() {
+			public boolean accept(File d, String n) {
+				return n.endsWith(".seg");
+			}
+		});
+		return Arrays.asList(names);
+	}
+
+	private static void awaitWritten(StubPool pool, int n) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MS;
+		while (pool.written.size() < n) {
+			if (System.currentTimeMillis() > deadline)
+				fail("only " + pool.written + " written");
+			Thread.sleep(10);
+		}
+	}
+
+	private static void awaitPending(SpillQueue q, int n) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MS;
+		while (!q.getStats().contains(": " + n + " units")) {
+			if (System.currentTimeMillis() > deadline)
+				fail(q.getStats());
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void replaysInOrderAcrossSegments() throws Exception {
+		StubPool pool = new StubPool();
+		pool.up = false;
+		// fewer attempts than the queue will fail, which must not count with the database down
+		SpillQueue q = queue(pool, 2);
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < 20; i++) {
+			String id = (i % 2 == 0 ? "a" : "b") + i;
+			ids.add(id);
+			q.enqueue(id.substring(0, 1), unit(id));
+		}
+		assertTrue(segments().toString(), segments().size() > 1);
+		assertTrue(q.hasPending("a"));
+		assertTrue(q.hasPending("b"));
+		assertFalse(q.hasPending("c"));
+
+		Thread.sleep(3 * MAX_BACKOFF_MS);
+		pool.up = true;
+		awaitWritten(pool, ids.size());
+		awaitPending(q, 0);
+		assertEquals(ids, pool.written);
+		assertFalse(q.hasPending("a"));
+		assertFalse(q.hasPending("b"));
+		// replayed segments are deleted
+		assertEquals(1, segments().size());
+		assertTrue(q.getStats(), q.getStats().contains(" 0 set aside"));
+	}
+
+	@Test
+	public void hasPendingUntilSlicesLastUnitIsReplayed() throws Exception {
+		StubPool pool = new StubPool();
+		pool.gate = new Semaphore(0);
+		SpillQueue q = queue(pool, 10);
+		q.enqueue("x", unit("x1"));
+		q.enqueue("y", unit("y1"));
+		q.enqueue("x", unit("x2"));
+
+		pool.gate.release();
+		awaitWritten(pool, 1);
+		awaitPending(q, 2);
+		assertTrue(q.hasPending("x"));
+		assertTrue(q.hasPending("y"));
+
+		pool.gate.release();
+		awaitWritten(pool, 2);
+		awaitPending(q, 1);
+		assertTrue(q.hasPending("x"));
+		assertFalse(q.hasPending("y"));
+
+		pool.gate.release();
+		awaitWritten(pool, 3);
+		awaitPending(q, 0);
+		assertFalse(q.hasPending("x"));
+		assertEquals(Arrays.asList("x1", "y1", "x2"), pool.written);
+	}
+
+	@Test
+	public void restartResumesAtReadPosition() throws Exception {
+		StubPool first = new StubPool();
+		SpillQueue q = queue(first, 10);
+		q.enqueue("a", unit("a1"));
+		q.enqueue("a", unit("a2"));
+		awaitWritten(first, 2);
+		awaitPending(q, 0);
+		// stays down, so this queue leaves the rest alone
+		first.up = false;
+		q.enqueue("b", unit("b1"));
+		q.enqueue("b", unit("b2"));
+
+		StubPool second = new StubPool();
+		second.up = false;
+		SpillQueue restarted = queue(second, 10);
+		assertFalse(restarted.hasPending("a"));
+		assertTrue(restarted.hasPending("b"));
+		second.up = true;
+		awaitWritten(second, 2);
+		awaitPending(restarted, 0);
+		assertEquals(Arrays.asList("b1", "b2"), second.written);
+		assertEquals(Arrays.asList("a1", "a2"), first.written);
+	}
+
+	@Test
+	public void unitThatKeepsFailingIsSetAside() throws Exception {
+		StubPool pool = new StubPool();
+		pool.up = false;
+		SpillQueue q = queue(pool, 2);
+		q.enqueue("p", unit("p1", "INSERT INTO " + POISON + " VALUES (?, ?)"));
+		q.enqueue("r", unit("r1"));
+		q.enqueue("p", unit("p2"));
+
+		pool.up = true;
+		awaitWritten(pool, 2);
+		awaitPending(q, 0);
+		assertEquals(Arrays.asList("r1", "p2"), pool.written);
+		assertFalse(q.hasPending("p"));
+		assertTrue(q.getStats(), q.getStats().contains(" 1 set aside"));
+		File deadLetter = new File(dir, "dead-letter");
+		assertTrue(deadLetter.length() > 500);
+	}
+}
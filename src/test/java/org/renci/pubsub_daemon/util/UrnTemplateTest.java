@@ -0,0 +1,114 @@
+package org.renci.pubsub_daemon.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import orca.ndl.NdlToRSpecHelper;
+
+import org.junit.Test;
+
+/**
+ * UrnTemplate against the String.replaceAll chains GENIWorker used to build
+ * URNs with. Values seen in manifests come out the same; values with '$', '\'
+ * or slot characters in them are where the two differ, the template inserting
+ * them literally.
+ *
+ */
+public class UrnTemplateTest {
+	private static final UrnTemplate SLIVER_URN = new UrnTemplate(NdlToRSpecHelper.SLIVER_URN_PATTERN, '@', '^', '%');
+	private static final UrnTemplate CM_URN = new UrnTemplate(NdlToRSpecHelper.CM_URN_PATTERN, '@');
+
+	// aggregate, type and id as GENIWorker fills them for scripts/manifests/test1.xml
+	private static final String[][] SLIVERS = {
+		{ "exogeni.net:bbnvmsite", "node", "2bd6f351-fd34-4daf-9ad1-d69e3c662960:bbn-w1:guid4" },
+		{ "exogeni.net:bbnvmsite", "link", "2bd6f351-fd34-4daf-9ad1-d69e3c662960:vlan-3" },
+		{ "exogeni.net:bbnvmsite", "interface", "bbn-w1:3" },
+		{ "exogeni.net:bbnvmsite", "interface", "bbn-w1:guid4:3+tap" },
+		{ "exogeni.net:bbnvmsite", "interface", "bbn-w1:guid4:3+tap+0" },
+		{ "exogeni.net:bbnvmsite", "link", "bbn-w1:guid4:3:link" },
+		{ "exogeni.net:bbnNet", "link", "bbn-w1:guid4:2:link" },
+		{ "", "", "" } };
+
+	private static String oldSliverUrn(String aggregate, String type, String id) {
+		return NdlToRSpecHelper.SLIVER_URN_PATTERN.replaceAll("@", aggregate).replaceAll("\\^", type).replaceAll("%", id);
+	}
+
+	@Test
+	public void sliverUrnsMatchReplaceAll() {
+		for (String[] s: SLIVERS)
+			assertEquals(oldSliverUrn(s[0], s[1], s[2]), SLIVER_URN.fill(s[0], s[1], s[2]));
+	}
+
+	@Test
+	public void prefixMatchesReplaceAll() {
+		for (String[] s: SLIVERS)
+			assertEquals(oldSliverUrn(s[0], s[1], s[2]), SLIVER_URN.prefix(s[0], s[1]) + s[2]);
+	}
+
+	@Test
+	public void appendToMatchesFill() {
+		for (String[] s: SLIVERS) {
+			StringBuilder sb = new StringBuilder("urn=");
+			assertEquals("urn=" + SLIVER_URN.fill(s[0], s[1], s[2]), SLIVER_URN.appendTo(sb, s[0], s[1], s[2]).toString());
+		}
+	}
+
+	@Test
+	public void cmUrnsMatchReplaceAll() {
+		for (String agg: new String[] { "bbnvmsite", "rcivmsite", "" })
+			assertEquals(NdlToRSpecHelper.CM_URN_PATTERN.replaceAll("@", agg), CM_URN.fill(agg));
+	}
+
+	@Test
+	public void dollarIsLiteral() {
+		UrnTemplate t = new UrnTemplate("urn:@+^+%", '@', '^', '%');
+		assertEquals("urn:agg+node+id$1", t.fill("agg", "node", "id$1"));
+		assertEquals("urn:agg+node+id$", t.fill("agg", "node", "id$"));
+		// replaceAll took these as group references
+		try {
+			"urn:@+^+%".replaceAll("%", "id$1");
+			fail("replaceAll accepted a group reference that doesn't exist");
+		} catch (IndexOutOfBoundsException ie) {
+			;
+		}
+		try {
+			"urn:@+^+%".replaceAll("%", "id$");
+			fail("replaceAll accepted a dangling '$'");
+		} catch (IllegalArgumentException ie) {
+			;
+		}
+	}
+
+	@Test
+	public void backslashIsLiteral() {
+		UrnTemplate t = new UrnTemplate("urn:@+^+%", '@', '^', '%');
+		assertEquals("urn:agg+node+a\\b", t.fill("agg", "node", "a\\b"));
+		// replaceAll dropped the escape
+		assertEquals("urn:agg+node+ab", "urn:@+^+%".replaceAll("@", "agg").replaceAll("\\^", "node").replaceAll("%", "a\\b"));
+	}
+
+	@Test
+	public void slotCharactersInValuesAreLiteral() {
+		UrnTemplate t = new UrnTemplate("urn:@+^+%", '@', '^', '%');
+		assertEquals("urn:a^b+node+id", t.fill("a^b", "node", "id"));
+		assertEquals("urn:agg+n%+id", t.fill("agg", "n%", "id"));
+		assertEquals("urn:agg+node+@^%", t.fill("agg", "node", "@^%"));
+		// the chain substituted slot characters again if a later replacement looked for them
+		String chain = "urn:@+^+%".replaceAll("@", "a^b").replaceAll("\\^", "node").replaceAll("%", "id");
+		assertEquals("urn:anodeb+node+id", chain);
+		chain = "urn:@+^+%".replaceAll("@", "agg").replaceAll("\\^", "n%").replaceAll("%", "id");
+		assertEquals("urn:agg+nid+id", chain);
+	}
+
+	@Test
+	public void repeatedSlots() {
+		UrnTemplate t = new UrnTemplate("@:@+%", '@', '%');
+		assertEquals("a:a+b", t.fill("a", "b"));
+		assertEquals("a:a+", t.prefix("a"));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void prefixNeedsLastSlotAtTheEnd() {
+		new UrnTemplate("urn:@+%+x", '@', '%').prefix("a");
+	}
+}
@@ -0,0 +1,208 @@
+package org.renci.pubsub_daemon.workers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.renci.pubsub_daemon.Globals;
+import org.renci.pubsub_daemon.workers.AbstractWorker.DocType;
+
+/**
+ * Node and link callbacks of test1: fields of batch callback records can't split
+ * a record, batch mode runs each executable once per manifest with the same records
+ * the per-sliver mode passes as arguments, and delivered callbacks are suppressed
+ * while a ttl is set. There is no datastore, so the rows are built but not saved.
+ *
+ */
+public class GENIWorkerCallbackTest {
+	private static final String NDL = "scripts/manifests/test1.rdf";
+	private static final String RSPEC = "scripts/manifests/test1.xml";
+	private static final String[] CALLBACKS = { "node", "link" };
+	private static final long CALLBACK_WAIT_MS = 60000;
+	private static final Pattern SUPPRESSED = Pattern.compile("(\\d+) suppressed");
+
+	private File dir;
+	private Map<DocType, String> manifests;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("genicallback", "");
+		assertTrue(dir.delete() && dir.mkdir());
+		// each run is counted in <name>.runs; records, whether arguments or stdin, go to <name>.records
+		for (String name: CALLBACKS) {
+			File callback = new File(dir, name + ".sh");
+			String prefix = dir.getAbsolutePath() + "/" + name;
+			FileWriter fw = new FileWriter(callback);
+			try {
+				fw.write("#!/bin/sh\necho run >> \"" + prefix + ".runs\"\n" +
+						"if [ $# -gt 0 ]; then\n" +
+						"  r=\"$1\"; shift\n" +
+						"  for a in \"$@\"; do r=\"$r\t$a\"; done\n" +
+						"  printf '%s\\n' \"$r\" >> \"" + prefix + ".records\"\n" +
+						"else\n" +
+						"  cat >> \"" + prefix + ".records\"\n" +
+						"fi\n");
+			} finally {
+				fw.close();
+			}
+			assertTrue(callback.setExecutable(true));
+		}
+		manifests = new EnumMap<DocType, String>(DocType.class);
+		manifests.put(DocType.NDL_MANIFEST, Globals.readFileToString(NDL));
+		manifests.put(DocType.RSPEC_MANIFEST, Globals.readFileToString(RSPEC));
+	}
+
+	@After
+	public void tearDown() {
+		Globals.getInstance().setConfigProperties(null);
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f: files)
+				f.delete();
+		dir.delete();
+	}
+
+	private static String escape(String s) {
+		return GENIWorker.appendEscaped(new StringBuilder(), s).toString();
+	}
+
+	@Test
+	public void plainFieldsAreUnchanged() {
+		assertEquals("urn:publicid:IDN+exogeni.net:bbnvmsite+node+bbn-w1:guid4", escape("urn:publicid:IDN+exogeni.net:bbnvmsite+node+bbn-w1:guid4"));
+		assertEquals("", escape(""));
+	}
+
+	@Test
+	public void separatorsAreEscaped() {
+		assertEquals("a\\tb\\nc\\rd", escape("a\tb\nc\rd"));
+		assertEquals("a\\\\tb", escape("a\\tb"));
+		assertEquals("\\\\", escape("\\"));
+	}
+
+	/**
+	 * Worker reading the configuration with these callback settings
+	 */
+	private GENIWorker worker(boolean batch, long dedupTtl) {
+		Properties p = new Properties();
+		p.setProperty("GENI.site.prefix", "bbn");
+		p.setProperty("GENI.selfref.prefix", "http://localhost/info/");
+		p.setProperty("GENI.schema.prefix", "http://localhost/schema/");
+		for (String name: CALLBACKS)
+			p.setProperty("GENI.callback." + name, "exec://" + new File(dir, name + ".sh").getAbsolutePath());
+		p.setProperty("GENI.callback.batch", String.valueOf(batch));
+		p.setProperty("GENI.callback.dedup.ttl", String.valueOf(dedupTtl));
+		Globals.getInstance().setConfigProperties(p);
+		return new GENIWorker();
+	}
+
+	private void process(GENIWorker worker, String uuid) {
+		worker.processManifest(new ManifestContext(manifests, null, null, "urn:publicid:IDN+exogeni.net+slice+" + uuid, uuid, "sm", "sm-guid"));
+	}
+
+	@Test
+	public void batchRunsEachCallbackOncePerManifest() throws Exception {
+		process(worker(false, 0), "slice-1");
+		waitForQuiet();
+		Map<String, List<String>> perSliver = new HashMap<String, List<String>>();
+		for (String name: CALLBACKS) {
+			perSliver.put(name, lines(name + ".records"));
+			assertEquals(perSliver.get(name).size(), lines(name + ".runs").size());
+			assertTrue(new File(dir, name + ".runs").delete() && new File(dir, name + ".records").delete());
+		}
+
+		process(worker(true, 0), "slice-1");
+		waitForQuiet();
+		for (String name: CALLBACKS) {
+			assertEquals(name, 1, lines(name + ".runs").size());
+			assertFalse(name, perSliver.get(name).isEmpty());
+			assertEquals(name, perSliver.get(name), lines(name + ".records"));
+		}
+	}
+
+	@Test
+	public void deliveredCallbacksAreSuppressed() throws Exception {
+		GENIWorker worker = worker(true, 3600);
+		process(worker, "slice-1");
+		waitForQuiet();
+		List<String> nodes = lines("node.records");
+		assertFalse(nodes.isEmpty());
+		long suppressed = suppressed(worker);
+
+		// same slice again: nothing new to deliver, so nothing runs
+		process(worker, "slice-1");
+		waitForQuiet();
+		for (String name: CALLBACKS)
+			assertEquals(name, 1, lines(name + ".runs").size());
+		assertEquals(nodes, lines("node.records"));
+		assertEquals(worker.getStats(), nodes.size() + lines("link.records").size(), suppressed(worker) - suppressed);
+
+		// another slice has its own arguments
+		process(worker, "slice-2");
+		waitForQuiet();
+		for (String name: CALLBACKS)
+			assertEquals(name, 2, lines(name + ".runs").size());
+		assertEquals(2 * nodes.size(), lines("node.records").size());
+	}
+
+	private static long suppressed(GENIWorker worker) {
+		Matcher m = SUPPRESSED.matcher(worker.getStats());
+		assertTrue(worker.getStats(), m.find());
+		return Long.parseLong(m.group(1));
+	}
+
+	/**
+	 * Wait until the callback files have not changed for a second
+	 */
+	private void waitForQuiet() throws Exception {
+		long deadline = System.currentTimeMillis() + CALLBACK_WAIT_MS;
+		String last = snapshot();
+		long changed = System.currentTimeMillis();
+		while (System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+			String now = snapshot();
+			if (!now.equals(last))
+				changed = System.currentTimeMillis();
+			last = now;
+			if (System.currentTimeMillis() - changed > 1000)
+				return;
+		}
+	}
+
+	private String snapshot() {
+		StringBuilder sb = new StringBuilder();
+		for (String name: CALLBACKS)
+			sb.append(new File(dir, name + ".runs").length()).append(' ').append(new File(dir, name + ".records").length()).append(' ');
+		return sb.toString();
+	}
+
+	/**
+	 * Sorted lines of a file in the callback directory, empty if it doesn't exist
+	 */
+	private List<String> lines(String file) {
+		File f = new File(dir, file);
+		List<String> ret = new ArrayList<String>();
+		if (!f.exists())
+			return ret;
+		for (String line: Globals.readFileToString(f.getAbsolutePath()).split("\n"))
+			if (line.length() > 0)
+				ret.add(line);
+		Collections.sort(ret);
+		return ret;
+	}
+}
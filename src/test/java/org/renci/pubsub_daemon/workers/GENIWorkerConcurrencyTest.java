@@ -0,0 +1,192 @@
+package org.renci.pubsub_daemon.workers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.renci.pubsub_daemon.Globals;
+import org.renci.pubsub_daemon.workers.AbstractWorker.DocType;
+
+/**
+ * One GENIWorker instance processing manifests of many slices from many threads
+ * at once produces, for every slice, exactly the callbacks it produces for a
+ * single slice processed alone. Callbacks carry the slice uuid, so state leaking
+ * between concurrent manifests shows up as missing, extra or mixed up records.
+ * There is no datastore, so the rows are built but not saved.
+ *
+ */
+public class GENIWorkerConcurrencyTest {
+	private static final String NDL = "scripts/manifests/test1.rdf";
+	private static final String RSPEC = "scripts/manifests/test1.xml";
+	private static final String REFERENCE = "reference";
+	private static final int THREADS = 8;
+	private static final int SLICES_PER_THREAD = 5;
+	private static final long CALLBACK_WAIT_MS = 60000;
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("geniworker", "");
+		assertTrue(dir.delete() && dir.mkdir());
+		// every callback appends its arguments to a file named after the slice uuid
+		File callback = new File(dir, "callback.sh");
+		FileWriter fw = new FileWriter(callback);
+		try {
+			fw.write("#!/bin/sh\necho \"$*\" >> \"" + dir.getAbsolutePath() + "/$1\"\n");
+		} finally {
+			fw.close();
+		}
+		assertTrue(callback.setExecutable(true));
+
+		Properties p = new Properties();
+		p.setProperty("GENI.site.prefix", "bbn");
+		p.setProperty("GENI.selfref.prefix", "http://localhost/info/");
+		p.setProperty("GENI.schema.prefix", "http://localhost/schema/");
+		p.setProperty("GENI.callback.node", "exec://" + callback.getAbsolutePath());
+		p.setProperty("GENI.callback.link", "exec://" + callback.getAbsolutePath());
+		p.setProperty("GENI.callback.size", "4");
+		Globals.getInstance().setConfigProperties(p);
+	}
+
+	@After
+	public void tearDown() {
+		Globals.getInstance().setConfigProperties(null);
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f: files)
+				f.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void concurrentSlicesDoNotMix() throws Exception {
+		final Map<DocType, String> manifests = new EnumMap<DocType, String>(DocType.class);
+		manifests.put(DocType.NDL_MANIFEST, Globals.readFileToString(NDL));
+		manifests.put(DocType.RSPEC_MANIFEST, Globals.readFileToString(RSPEC));
+
+		final GENIWorker worker = new GENIWorker();
+
+		// what one slice alone gets
+		worker.processManifest(context(worker, manifests, REFERENCE, false));
+		List<String> expected = waitForQuiet(REFERENCE);
+		assertFalse("no callbacks for the reference slice", expected.isEmpty());
+
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for (int t = 0; t < THREADS; t++) {
+				final int thread = t;
+				results.add(threads.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						start.await();
+						for (int i = 0; i < SLICES_PER_THREAD; i++)
+							worker.processManifest(context(worker, manifests, uuid(thread, i), (thread + i) % 2 == 0));
+						return null;
+					}
+				}));
+			}
+			start.countDown();
+			for (Future<?> f: results)
+				f.get();
+		} finally {
+			threads.shutdownNow();
+		}
+
+		for (int t = 0; t < THREADS; t++) {
+			for (int i = 0; i < SLICES_PER_THREAD; i++) {
+				String uuid = uuid(t, i);
+				List<String> got = waitFor(uuid, expected.size());
+				List<String> asReference = new ArrayList<String>();
+				for (String line: got) {
+					assertTrue("record of another slice in " + uuid + ": " + line, line.startsWith(uuid + " "));
+					asReference.add(REFERENCE + line.substring(uuid.length()));
+				}
+				Collections.sort(asReference);
+				assertEquals("callbacks of " + uuid, expected, asReference);
+			}
+		}
+	}
+
+	/**
+	 * Slices either come pre-parsed by the worker's listener or are parsed by the worker
+	 */
+	private static ManifestContext context(GENIWorker worker, Map<DocType, String> manifests, String uuid, boolean preParsed) throws Exception {
+		String sliceUrn = "urn:publicid:IDN+exogeni.net+slice+" + uuid;
+		GENIWorkerManifestParser parsed = null;
+		if (preParsed) {
+			parsed = (GENIWorkerManifestParser)worker.getNdlParseListener(sliceUrn);
+			parsed.parse(manifests.get(DocType.NDL_MANIFEST));
+		}
+		return new ManifestContext(manifests, parsed, null, sliceUrn, uuid, "sm", "sm-guid");
+	}
+
+	private static String uuid(int thread, int i) {
+		return "slice-" + thread + "-" + i;
+	}
+
+	/**
+	 * Sorted callback records of a slice once at least n have arrived
+	 */
+	private List<String> waitFor(String uuid, int n) throws Exception {
+		long deadline = System.currentTimeMillis() + CALLBACK_WAIT_MS;
+		List<String> lines = read(uuid);
+		while ((lines.size() < n) && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(50);
+			lines = read(uuid);
+		}
+		// extra records would arrive right behind the expected ones
+		Thread.sleep(100);
+		return read(uuid);
+	}
+
+	/**
+	 * Sorted callback records of a slice once no more have arrived for a second
+	 */
+	private List<String> waitForQuiet(String uuid) throws Exception {
+		long deadline = System.currentTimeMillis() + CALLBACK_WAIT_MS;
+		List<String> lines = read(uuid);
+		long changed = System.currentTimeMillis();
+		while (System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+			List<String> now = read(uuid);
+			if (now.size() != lines.size())
+				changed = System.currentTimeMillis();
+			lines = now;
+			if (!lines.isEmpty() && (System.currentTimeMillis() - changed > 1000))
+				break;
+		}
+		return lines;
+	}
+
+	private List<String> read(String uuid) {
+		File f = new File(dir, uuid);
+		if (!f.exists())
+			return new ArrayList<String>();
+		List<String> ret = new ArrayList<String>();
+		for (String line: Globals.readFileToString(f.getAbsolutePath()).split("\n"))
+			if (line.length() > 0)
+				ret.add(line);
+		Collections.sort(ret);
+		return ret;
+	}
+}
@@ -0,0 +1,102 @@
+package org.renci.pubsub_daemon.workers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.Test;
+import org.renci.pubsub_daemon.Globals;
+import org.renci.pubsub_daemon.workers.RSpecManifestReader.Sliver;
+
+/**
+ * RSpecManifestReader against the XPath expressions GENIWorker evaluated, on
+ * test1.xml, a generated manifest, and manifests with attributes missing or
+ * elements in prefixed namespaces
+ *
+ */
+public class RSpecManifestReaderTest {
+
+	private static void assertSameAsXPath(String manifest, int slivers) throws Exception {
+		List<String> expected = RSpecManifests.xpath(manifest);
+		assertEquals(slivers, expected.size());
+		assertEquals(expected, RSpecManifests.read(manifest));
+	}
+
+	@Test
+	public void test1() throws Exception {
+		String m = Globals.readFileToString(RSpecManifests.TEST1);
+		assertSameAsXPath(m, 6);
+
+		RSpecManifestReader r = new RSpecManifestReader(m);
+		Sliver n = r.getNodes().get(0);
+		assertEquals("urn:publicid:IDN+exogeni.net:unknownvmsite+sliver+2bd6f351-fd34-4daf-9ad1-d69e3c662960:Node2", n.sliverId);
+		assertEquals("urn:publicid:IDN+exogeni.net:bbnvmsite+authority+am", n.componentManagerId);
+		assertEquals("xo.large", n.sliverType);
+		assertEquals(Arrays.asList("VLAN0-Node2", "Link18-Node2"), n.interfaces);
+		assertEquals("bbn-w1:guid4", n.sliverInfo.resourceId);
+		assertEquals("ready", n.sliverInfo.state);
+
+		Sliver l = r.getLinks().get(0);
+		assertNull(l.componentManagerId);
+		assertEquals(Arrays.asList("urn:publicid:IDN+exogeni.net:bbnvmsite+authority+am"), l.componentManagers);
+		assertEquals(Arrays.asList("VLAN0-Node2", "VLAN0-Node0", "VLAN0-Node1"), l.interfaces);
+		assertEquals("3", l.sliverInfo.resourceId);
+	}
+
+	@Test
+	public void synthetic() throws Exception {
+		assertSameAsXPath(RSpecManifests.synthetic(200), 300);
+	}
+
+	@Test
+	public void missingAttributes() throws Exception {
+		String m = "<rspec xmlns=\"http://www.geni.net/resources/rspec/3\">" +
+				"<node><sliver_type/><interface/><interface client_id=\"i1\"/><geni_sliver_info/></node>" +
+				"<node sliver_id=\"n2\"/>" +
+				"<link><component_manager/><interface_ref/></link>" +
+				"</rspec>";
+		assertSameAsXPath(m, 3);
+
+		RSpecManifestReader r = new RSpecManifestReader(m);
+		Sliver n = r.getNodes().get(0);
+		assertEquals("", n.sliverId);
+		assertNull(n.componentManagerId);
+		assertEquals("", n.sliverType);
+		assertEquals(Arrays.asList("i1"), n.interfaces);
+		assertEquals("", n.sliverInfo.state);
+		assertEquals("", n.sliverInfo.resourceId);
+		assertNull(r.getNodes().get(1).sliverInfo);
+		Sliver l = r.getLinks().get(0);
+		assertEquals(Arrays.asList(""), l.componentManagers);
+		assertEquals(Collections.emptyList(), l.interfaces);
+	}
+
+	@Test
+	public void prefixedNamespaces() throws Exception {
+		String m = "<r:rspec xmlns:r=\"http://www.geni.net/resources/rspec/3\" xmlns:s=\"urn:sliver-info\">" +
+				"<r:node sliver_id=\"n1\" component_manager_id=\"cm\"><r:sliver_type name=\"xo.small\"/>" +
+				"<r:interface client_id=\"i1\"/><s:geni_sliver_info state=\"ready\" resource_id=\"w1:guid1\"/></r:node>" +
+				"<r:link sliver_id=\"l1\"><r:component_manager name=\"cm\"/><r:interface_ref client_id=\"i1\"/></r:link>" +
+				"</r:rspec>";
+		assertSameAsXPath(m, 2);
+		assertEquals("w1:guid1", new RSpecManifestReader(m).getNodes().get(0).sliverInfo.resourceId);
+	}
+
+	@Test
+	public void nestedElementsAreNotSlivers() throws Exception {
+		// only top-level nodes and links, and only their direct children
+		String m = "<rspec><node sliver_id=\"n1\"><services><interface client_id=\"x\"/><node sliver_id=\"inner\"/></services></node>" +
+				"<group><node sliver_id=\"n2\"/></group></rspec>";
+		assertSameAsXPath(m, 1);
+	}
+
+	@Test(expected = XMLStreamException.class)
+	public void malformed() throws Exception {
+		new RSpecManifestReader("<rspec><node sliver_id=\"n1\"></rspec>");
+	}
+}
@@ -0,0 +1,138 @@
+package org.renci.pubsub_daemon.workers;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+
+import org.renci.pubsub_daemon.workers.RSpecManifestReader.Sliver;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * RSpec manifests for RSpecManifestReader tests and benchmarks, and both ways of
+ * reading them: the reader, and the DOM + per-sliver XPath GENIWorker used to do.
+ * Each produces one record per sliver (nodes, then links) with the fields
+ * GENIWorker uses.
+ *
+ */
+class RSpecManifests {
+	static final String TEST1 = "scripts/manifests/test1.xml";
+	private static final String SLIVER_INFO_PATH = "geni_sliver_info";
+	private static final String SLICE_UUID = "2bd6f351-fd34-4daf-9ad1-d69e3c662960";
+	private static final String[] SITES = { "bbnvmsite", "rcivmsite", "uhvmsite", "fiuvmsite" };
+	private static final String SLIVER_INFO_ATTRS = "creator_urn=\"EMAILADDRESS=exogeni-ops@renci.org, CN=geni-orca, OU=NRIG, O=RENCI, L=Chapel Hill, ST=NC, C=US\" " +
+			"creation_time=\"2014-09-19T17:20:07.734-04:00\" expiration_time=\"2014-09-20T17:20:07.734-04:00\" start_time=\"2014-09-19T17:20:07.734-04:00\" state=\"ready\"";
+
+	/**
+	 * Manifest laid out like test1.xml with the given number of distinct nodes,
+	 * spread over several sites and paired up by point-to-point links
+	 * @param nodes
+	 * @return
+	 */
+	static String synthetic(int nodes) {
+		StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+		sb.append("<rspec type=\"manifest\" xmlns=\"http://www.geni.net/resources/rspec/3\" ");
+		sb.append("xmlns:ns4=\"http://groups.geni.net/exogeni/attachment/wiki/RspecExtensions/sliver-info/1\" ");
+		sb.append("xmlns:ns3=\"http://groups.geni.net/exogeni/attachment/wiki/RspecExtensions/slice-info/1\">\n");
+		for (int i = 0; i < nodes; i++) {
+			String site = SITES[i % SITES.length];
+			sb.append("    <node client_id=\"Node").append(i).append("\" component_id=\"urn:publicid:IDN+exogeni.net:").append(site).
+				append("+node+orca-vm-cloud\" component_manager_id=\"urn:publicid:IDN+exogeni.net:").append(site).
+				append("+authority+am\" exclusive=\"false\" sliver_id=\"urn:publicid:IDN+exogeni.net:").append(site).
+				append("+sliver+").append(SLICE_UUID).append(":Node").append(i).append("\">\n");
+			sb.append("        <sliver_type name=\"xo.large\"><disk_image name=\"http://geni-images.renci.org/images/standard/debian/deb6-ovs-neuca-v1.0.3.xml\" ").
+				append("version=\"ef7e0b4883e23c218d19b0f22980436020c72b4d\"/></sliver_type>\n");
+			sb.append("        <services/>\n");
+			if (i / 2 < nodes / 2)
+				sb.append("        <interface client_id=\"Link").append(i / 2).append("-Node").append(i).append("\"/>\n");
+			sb.append("        <ns4:geni_sliver_info ").append(SLIVER_INFO_ATTRS).append(" resource_id=\"").append(site).
+				append("-w").append(i % 8).append(":guid").append(i).append("\"/>\n");
+			sb.append("    </node>\n");
+		}
+		for (int l = 0; l < nodes / 2; l++) {
+			String site = SITES[(2 * l) % SITES.length];
+			sb.append("    <link client_id=\"Link").append(l).append("\" sliver_id=\"urn:publicid:IDN+exogeni.net:").append(site).
+				append("+sliver+").append(SLICE_UUID).append(":Link").append(l).append("\" vlantag=\"").append(l % 4000 + 1).append("\">\n");
+			sb.append("        <component_manager name=\"urn:publicid:IDN+exogeni.net:").append(site).append("+authority+am\"/>\n");
+			for (int n = 2 * l; n < 2 * l + 2; n++) {
+				sb.append("        <interface_ref client_id=\"Link").append(l).append("-Node").append(n).append("\"/>\n");
+				sb.append("        <property source_id=\"Link").append(l).append("-Node").append(n).append("\" dest_id=\"Link").append(l).
+					append("-Node").append(n ^ 1).append("\" capacity=\"10000000\"/>\n");
+			}
+			sb.append("        <ns4:geni_sliver_info ").append(SLIVER_INFO_ATTRS).append(" resource_id=\"").append(l % 4000 + 1).append("\"/>\n");
+			sb.append("    </link>\n");
+		}
+		sb.append("    <ns3:geni_slice_info urn=\"synthetic\" uuid=\"").append(SLICE_UUID).append("\" state=\"ready\"/>\n");
+		return sb.append("</rspec>\n").toString();
+	}
+
+	static List<String> read(String manifest) throws XMLStreamException {
+		RSpecManifestReader r = new RSpecManifestReader(manifest);
+		List<String> ret = new ArrayList<String>();
+		for (Sliver s: r.getNodes())
+			ret.add(record(s));
+		for (Sliver s: r.getLinks())
+			ret.add(record(s));
+		return ret;
+	}
+
+	static List<String> xpath(String manifest) throws Exception {
+		DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+		Document doc = db.parse(new InputSource(new StringReader(manifest)));
+		doc.getDocumentElement().normalize();
+		XPath xpath = XPathFactory.newInstance().newXPath();
+		List<String> ret = new ArrayList<String>();
+		NodeList nl = (NodeList)xpath.compile("/rspec/node").evaluate(doc, XPathConstants.NODESET);
+		for (int i = 0; i < nl.getLength(); i++)
+			ret.add(record(xpath, nl.item(i), "interface/@client_id"));
+		nl = (NodeList)xpath.compile("/rspec/link").evaluate(doc, XPathConstants.NODESET);
+		for (int i = 0; i < nl.getLength(); i++)
+			ret.add(record(xpath, nl.item(i), "interface_ref/@client_id"));
+		return ret;
+	}
+
+	private static String record(Sliver s) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(s.sliverId).append('|').append(s.componentManagerId).append('|').append(s.componentManagers);
+		sb.append('|').append(s.sliverType).append('|').append(s.interfaces);
+		if (s.sliverInfo != null)
+			sb.append('|').append(s.sliverInfo.state).append('|').append(s.sliverInfo.creatorUrn).append('|').append(s.sliverInfo.startTime).
+				append('|').append(s.sliverInfo.expirationTime).append('|').append(s.sliverInfo.resourceId);
+		return sb.toString();
+	}
+
+	// same expressions GENIWorker evaluated on each node or link
+	private static String record(XPath xpath, Node n, String interfaces) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		sb.append(xpath.compile("@sliver_id").evaluate(n)).append('|');
+		NodeList cmAttr = (NodeList)xpath.compile("@component_manager_id").evaluate(n, XPathConstants.NODESET);
+		sb.append(cmAttr.getLength() > 0 ? xpath.compile("@component_manager_id").evaluate(n) : null).append('|');
+		List<String> l = new ArrayList<String>();
+		NodeList cmElem = (NodeList)xpath.compile("component_manager").evaluate(n, XPathConstants.NODESET);
+		for (int i = 0; i < cmElem.getLength(); i++)
+			l.add(xpath.compile("@name").evaluate(cmElem.item(i)));
+		sb.append(l).append('|');
+		sb.append(xpath.compile("sliver_type/@name").evaluate(n)).append('|');
+		l = new ArrayList<String>();
+		NodeList ifaces = (NodeList)xpath.compile(interfaces).evaluate(n, XPathConstants.NODESET);
+		for (int i = 0; i < ifaces.getLength(); i++)
+			l.add(ifaces.item(i).getNodeValue());
+		sb.append(l);
+		if (((NodeList)xpath.compile(SLIVER_INFO_PATH).evaluate(n, XPathConstants.NODESET)).getLength() > 0)
+			sb.append('|').append(xpath.compile(SLIVER_INFO_PATH + "/@state").evaluate(n)).
+				append('|').append(xpath.compile(SLIVER_INFO_PATH + "/@creator_urn").evaluate(n)).
+				append('|').append(xpath.compile(SLIVER_INFO_PATH + "/@start_time").evaluate(n)).
+				append('|').append(xpath.compile(SLIVER_INFO_PATH + "/@expiration_time").evaluate(n)).
+				append('|').append(xpath.compile(SLIVER_INFO_PATH + "/@resource_id").evaluate(n));
+		return sb.toString();
+	}
+}